@@ -0,0 +1,145 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.google.gwt.user.client.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs the simulations of documents whose tab isn't shown.
+//
+// Only the active document has a SimulationLoop running; it draws every frame and gets all
+// the CPU it needs. Running background documents share a fixed budget instead: every tick,
+// BACKGROUND_PERCENT_OPTION percent of the tick (set in the options dialog) is split evenly
+// between them, and each runs headless (no rendering, no scope drawing) for its part. Their
+// simulation keeps in step with the wall clock while it fits in the budget and slows down
+// when it doesn't, so the number of open tabs doesn't change how fast the active one runs.
+// A budget of 0 suspends background documents; they continue where they stopped when they
+// become active again.
+//
+// The time each document spends simulating is measured, and getCpuShare() reports it as a
+// fraction of the last measurement period.
+class BackgroundScheduler {
+
+    // option: percentage of CPU time for all background documents together
+    static final String BACKGROUND_PERCENT_OPTION = "backgroundSimulationPercent";
+    static final int DEFAULT_BACKGROUND_PERCENT = 10;
+
+    private static final int TICK_MILLIS = 100;
+    private static final int MEASURE_MILLIS = 1000;
+
+    private final DocumentManager documentManager;
+    private int backgroundPercent =
+            clampPercent(OptionsManager.getIntOptionFromStorage(BACKGROUND_PERCENT_OPTION, DEFAULT_BACKGROUND_PERCENT));
+    private boolean ticking;
+    // rotates the order of the documents, so none always gets the end of a tick
+    private int nextIndex;
+
+    private long measureStart;
+
+    private final Timer timer = new Timer() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    BackgroundScheduler(DocumentManager documentManager) {
+        this.documentManager = documentManager;
+    }
+
+    /**
+     * Starts or stops the background tick, after a document was activated, started or
+     * stopped.
+     */
+    void update() {
+        boolean needed = getBudget() > 0 && !getBackgroundDocuments().isEmpty();
+        if (needed && !ticking) {
+            ticking = true;
+            timer.scheduleRepeating(TICK_MILLIS);
+        } else if (!needed && ticking) {
+            ticking = false;
+            timer.cancel();
+        }
+    }
+
+    int getBackgroundPercent() {
+        return backgroundPercent;
+    }
+
+    void setBackgroundPercent(int percent) {
+        backgroundPercent = clampPercent(percent);
+        OptionsManager.setOptionInStorage(BACKGROUND_PERCENT_OPTION, backgroundPercent);
+        update();
+    }
+
+    private static int clampPercent(int percent) {
+        return Math.max(0, Math.min(percent, 100));
+    }
+
+    // total simulation time per tick for all background documents, in ms
+    private int getBudget() {
+        return backgroundPercent * TICK_MILLIS / 100;
+    }
+
+    private ArrayList<CircuitDocument> getBackgroundDocuments() {
+        ArrayList<CircuitDocument> background = new ArrayList<>();
+        List<CircuitDocument> documents = documentManager.getDocuments();
+        for (int i = 0; i < documents.size(); i++) {
+            CircuitDocument document = documents.get(i);
+            if (document.isRunning() && !document.isActive()) {
+                background.add(document);
+            }
+        }
+        return background;
+    }
+
+    private void tick() {
+        updateMeasurement();
+        int budget = getBudget();
+        ArrayList<CircuitDocument> background = getBackgroundDocuments();
+        if (budget == 0 || background.isEmpty()) {
+            update();
+            return;
+        }
+        int count = background.size();
+        int share = Math.max(1, budget / count);
+        long tickStart = System.currentTimeMillis();
+        for (int k = 0; k < count; k++) {
+            if (System.currentTimeMillis() - tickStart >= budget) {
+                break;
+            }
+            CircuitDocument document = background.get((nextIndex + k) % count);
+            // a document may have been stopped or activated since the list was made
+            if (document.isRunning() && !document.isActive()) {
+                document.simulationLoop.runInBackground(share);
+            }
+        }
+        nextIndex = (nextIndex + 1) % count;
+    }
+
+    private void updateMeasurement() {
+        long now = System.currentTimeMillis();
+        if (measureStart == 0) {
+            measureStart = now;
+            return;
+        }
+        long period = now - measureStart;
+        if (period < MEASURE_MILLIS) {
+            return;
+        }
+        List<CircuitDocument> documents = documentManager.getDocuments();
+        for (int i = 0; i < documents.size(); i++) {
+            documents.get(i).simulationLoop.finishMeasurement(period);
+        }
+        measureStart = now;
+    }
+
+    /**
+     * Fraction of the wall clock time the document spent simulating in the last
+     * measurement period.
+     */
+    double getCpuShare(CircuitDocument document) {
+        updateMeasurement();
+        return document.simulationLoop.getCpuShare();
+    }
+}
@@ -0,0 +1,229 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.lushprojects.circuitjs1.client.element.CircuitElm;
+import com.lushprojects.circuitjs1.client.element.LabeledNodeElm;
+
+// Runs a circuit to a fixed end time as fast as possible, without the SimulationLoop timer,
+// the renderer or the per-frame time limit in runCircuit(), and records probe values.
+//
+// A probe is either a labeled node name (node voltage), an element id (voltage across the
+// element) or an element id followed by ":I" (current through the element).
+// Samples are taken every sampleInterval seconds of simulated time; each row holds
+// the time followed by one value per probe. Rows are handed to a SampleSink in chunks of
+// CHUNK_ROWS as they are produced, so the runner never holds more than one chunk.
+class BatchRunner {
+
+    // guard against runaway output when the caller keeps every sample
+    static final int MAX_SAMPLES = 1000000;
+
+    static final int CHUNK_ROWS = 4096;
+
+    interface SampleSink {
+        // rowCount rows of getSampleWidth() values each. Return false to stop the run.
+        boolean addRows(double[] rows, int rowCount);
+    }
+
+    private final CircuitDocument document;
+
+    private double endTime;
+    private double maxTimeStep;
+    private double sampleInterval;
+    private String[] probes = new String[0];
+    private long maxSamples = MAX_SAMPLES;
+
+    private String errorMessage;
+
+    // resolved probes
+    private int[] probeNodes;
+    private CircuitElm[] probeElms;
+    private boolean[] probeCurrents;
+
+    BatchRunner(CircuitDocument document) {
+        this.document = document;
+    }
+
+    void setEndTime(double endTime) {
+        this.endTime = endTime;
+    }
+
+    // 0 keeps the timestep stored in the circuit
+    void setMaxTimeStep(double maxTimeStep) {
+        this.maxTimeStep = maxTimeStep;
+    }
+
+    // 0 samples once per maxTimeStep
+    void setSampleInterval(double sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    void setProbes(String[] probes) {
+        this.probes = probes;
+    }
+
+    // 0 for no limit, when the sink doesn't keep the rows
+    void setMaxSamples(long maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    String getHeader() {
+        StringBuilder sb = new StringBuilder("t");
+        for (String probe : probes) {
+            sb.append(',').append(probe);
+        }
+        return sb.toString();
+    }
+
+    int getSampleWidth() {
+        return probes.length + 1;
+    }
+
+    CircuitDocument getDocument() {
+        return document;
+    }
+
+    // load circuitText (any format known to CircuitLoader) into the document
+    void load(String circuitText) {
+        document.circuitLoader.readCircuit(circuitText, 0);
+    }
+
+    // number of rows a run of the loaded circuit produces
+    long getSampleCount() {
+        double step = maxTimeStep > 0 ? maxTimeStep : document.simulator.maxTimeStep;
+        double interval = sampleInterval > 0 ? sampleInterval : step;
+        return (long) Math.floor(endTime / interval) + 1;
+    }
+
+    boolean run(String circuitText, SampleSink sink) {
+        load(circuitText);
+        return run(sink);
+    }
+
+    /**
+     * Runs the circuit loaded in the document from t = 0, passing the samples to sink as
+     * rows of (t, probe values...). Returns false if the run failed or the sink stopped it;
+     * getErrorMessage() says why. Rows passed before a failure are not taken back.
+     */
+    boolean run(SampleSink sink) {
+        errorMessage = null;
+        CircuitSimulator simulator = document.simulator;
+        document.clearError();
+        simulator.clearStopState();
+        if (maxTimeStep > 0) {
+            simulator.maxTimeStep = simulator.timeStep = maxTimeStep;
+        }
+        simulator.t = simulator.timeStepAccum = 0;
+        simulator.timeStepCount = 0;
+
+        simulator.analyzeCircuit();
+        document.circuitInfo.dcAnalysisFlag = false;
+        if (simulator.stopMessage != null) {
+            errorMessage = simulator.stopMessage;
+            return false;
+        }
+        if (!resolveProbes()) {
+            return false;
+        }
+        long sampleCount = getSampleCount();
+        if (maxSamples > 0 && sampleCount > maxSamples) {
+            errorMessage = "Too many samples: " + sampleCount;
+            return false;
+        }
+        simulator.preStampAndStampCircuit();
+
+        double interval = sampleInterval > 0 ? sampleInterval : simulator.maxTimeStep;
+        int width = getSampleWidth();
+        double[] rows = new double[(int) Math.min(sampleCount, CHUNK_ROWS) * width];
+        int pos = 0;
+        for (long s = 0; s < sampleCount; s++) {
+            double sampleTime = s * interval;
+            if (sampleTime > simulator.t) {
+                // allow for rounding in t so we don't take an extra step before each sample
+                simulator.batchEndTime = sampleTime - interval * 1e-6;
+                try {
+                    simulator.runCircuit(false);
+                } finally {
+                    simulator.batchEndTime = 0;
+                }
+            }
+            if (simulator.stopMessage != null) {
+                errorMessage = simulator.stopMessage;
+                return false;
+            }
+            rows[pos++] = simulator.t;
+            for (int p = 0; p < probes.length; p++) {
+                rows[pos++] = getProbeValue(p);
+            }
+            if (pos == rows.length || s == sampleCount - 1) {
+                if (!sink.addRows(rows, pos / width)) {
+                    errorMessage = "Stopped by the caller";
+                    return false;
+                }
+                pos = 0;
+            }
+        }
+        return true;
+    }
+
+    // format rows passed to a SampleSink as CSV lines
+    String toCsv(double[] rows, int rowCount) {
+        StringBuilder sb = new StringBuilder();
+        int width = getSampleWidth();
+        for (int i = 0; i < rowCount * width; i += width) {
+            for (int j = 0; j < width; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append(rows[i + j]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private boolean resolveProbes() {
+        int n = probes.length;
+        probeNodes = new int[n];
+        probeElms = new CircuitElm[n];
+        probeCurrents = new boolean[n];
+        for (int p = 0; p < n; p++) {
+            String name = probes[p];
+            probeNodes[p] = LabeledNodeElm.getByName(name);
+            if (probeNodes[p] >= 0) {
+                continue;
+            }
+            String id = name;
+            if (name.endsWith(":I")) {
+                id = name.substring(0, name.length() - 2);
+                probeCurrents[p] = true;
+            }
+            for (CircuitElm ce : document.simulator.elmList) {
+                if (id.equals(ce.getElementId())) {
+                    probeElms[p] = ce;
+                    break;
+                }
+            }
+            if (probeElms[p] == null) {
+                errorMessage = "Unknown probe: " + name;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double getProbeValue(int p) {
+        CircuitElm ce = probeElms[p];
+        if (ce == null) {
+            int node = probeNodes[p];
+            // ground is not included in nodeVoltages[]
+            return node <= 0 ? 0 : document.simulator.getNodeVoltages(node - 1);
+        }
+        if (probeCurrents[p]) {
+            return ce.getCurrent();
+        }
+        return ce.getPostCount() < 2 ? ce.getPostVoltage(0) : ce.getPostVoltage(0) - ce.getPostVoltage(1);
+    }
+}
@@ -0,0 +1,291 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.Arrays;
+
+// Solver for nonlinear circuits where only a few rows change between sub-iterations.
+//
+// The matrix indices are split into a large interior set and a small border set that
+// contains every row modified by doStep(). With the same split for rows and columns:
+//
+//   [ A11 A12 ] [x1]   [b1]
+//   [ A21 A22 ] [x2] = [b2]
+//
+// A11 and A12 never change, so A11 is factored once and Y = A11^-1 A12 is precomputed
+// in setup(). Most interior nodes are far from most border nodes, so Y is kept sparse, by
+// row. Each sub-iteration then only builds and factors the small dense Schur complement
+// S = A22 - A21 Y, and solve() computes
+//
+//   z = A11^-1 b1,  S x2 = b2 - A21 z,  x1 = z - Y x2
+class BorderedSolver {
+
+    // above this the dense Schur complement costs more than refactoring the whole matrix
+    static final int MAX_BORDER_SIZE = 200;
+
+    // number of times setup() may move a singular interior column into the border
+    static final int MAX_SINGULAR_RETRIES = 8;
+
+    private int n;
+    private int borderSize;
+    private int interiorSize;
+
+    // matrix index -> position in border/interior, or -1
+    private int[] borderIndex = new int[0];
+    private int[] interiorIndex = new int[0];
+    // position -> matrix index
+    private int[] borderRows = new int[0];
+    private int[] interiorRows = new int[0];
+
+    private final SparseMatrix interiorMatrix = new SparseMatrix(0);
+    private final SparseLU interiorLU = new SparseLU();
+
+    // Y = A11^-1 * A12 by interior position: the nonzeros of row ii are at border positions
+    // couplingCols[k] with values couplingValues[k], couplingStart[ii] <= k < couplingStart[ii+1]
+    private int[] couplingStart = new int[1];
+    private int[] couplingCols = new int[0];
+    private double[] couplingValues = new double[0];
+    // Y column by column while it is being computed, before packing it by row
+    private int[] entryRows = new int[0];
+    private int[] entryCols = new int[0];
+    private double[] entryValues = new double[0];
+    private double[] column = new double[0];
+
+    private double[][] schur = new double[0][0];
+    private int[] schurPermute = new int[0];
+    private double[] interiorRightSide = new double[0];
+    private double[] borderRightSide = new double[0];
+
+    // matrix passed to the last factor(), whose border rows hold A21 and A22
+    private SparseMatrix matrix;
+    private boolean ready;
+
+    void invalidate() {
+        ready = false;
+        matrix = null;
+    }
+
+    // check that all rows changed since the last copyFrom() are border rows
+    boolean coversChangedRows(SparseMatrix m) {
+        if (!ready || m.size != n) {
+            return false;
+        }
+        for (int k = 0; k < m.dirtyCount; k++) {
+            if (borderIndex[m.dirtyRows[k]] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // add the current border to borderMask, so extending the border doesn't drop rows
+    void addBorderRows(boolean[] borderMask) {
+        if (!ready) {
+            return;
+        }
+        for (int a = 0; a < borderSize; a++) {
+            borderMask[borderRows[a]] = true;
+        }
+    }
+
+    /**
+     * Splits the matrix using the given border rows and factors the static interior block.
+     * staticMatrix must hold the values of all non-border rows. borderMask may be extended
+     * with singular interior columns. Returns false if bordering is not worthwhile.
+     */
+    boolean setup(SparseMatrix staticMatrix, boolean[] borderMask) {
+        invalidate();
+        n = staticMatrix.size;
+        if (borderIndex.length < n) {
+            borderIndex = new int[n];
+            interiorIndex = new int[n];
+            borderRows = new int[n];
+            interiorRows = new int[n];
+        }
+        for (int retry = 0; retry <= MAX_SINGULAR_RETRIES; retry++) {
+            borderSize = interiorSize = 0;
+            for (int i = 0; i < n; i++) {
+                if (borderMask[i]) {
+                    borderIndex[i] = borderSize;
+                    interiorIndex[i] = -1;
+                    borderRows[borderSize++] = i;
+                } else {
+                    interiorIndex[i] = interiorSize;
+                    borderIndex[i] = -1;
+                    interiorRows[interiorSize++] = i;
+                }
+            }
+            if (borderSize > MAX_BORDER_SIZE || borderSize * 4 > n) {
+                return false;
+            }
+
+            interiorMatrix.resize(interiorSize);
+            for (int ii = 0; ii < interiorSize; ii++) {
+                int row = interiorRows[ii];
+                int[] cols = staticMatrix.rowCols[row];
+                double[] vals = staticMatrix.rowValues[row];
+                for (int k = 0; k < staticMatrix.rowLength[row]; k++) {
+                    int jj = interiorIndex[cols[k]];
+                    if (jj >= 0) {
+                        interiorMatrix.add(ii, jj, vals[k]);
+                    }
+                }
+            }
+            // the interior pattern rarely changes between restamps, so reuse its analysis
+            if (interiorLU.refactor(interiorMatrix)) {
+                break;
+            }
+            int failColumn = CircuitMath.getLastLuFailColumn();
+            if (retry == MAX_SINGULAR_RETRIES || failColumn < 0) {
+                return false;
+            }
+            borderMask[interiorRows[failColumn]] = true;
+        }
+
+        allocateBorderWorkspace();
+        computeCoupling(staticMatrix);
+        ready = true;
+        return true;
+    }
+
+    // solve for Y one column at a time, keeping only its nonzeros, then pack them by row
+    private void computeCoupling(SparseMatrix staticMatrix) {
+        int[] start = couplingStart;
+        for (int ii = 0; ii <= interiorSize; ii++) {
+            start[ii] = 0;
+        }
+        double[] y = column;
+        int count = 0;
+        for (int b = 0; b < borderSize; b++) {
+            int col = borderRows[b];
+            for (int ii = 0; ii < interiorSize; ii++) {
+                int row = interiorRows[ii];
+                y[ii] = 0;
+                int[] cols = staticMatrix.rowCols[row];
+                for (int k = 0; k < staticMatrix.rowLength[row]; k++) {
+                    if (cols[k] == col) {
+                        y[ii] = staticMatrix.rowValues[row][k];
+                        break;
+                    }
+                }
+            }
+            interiorLU.solve(y);
+            for (int ii = 0; ii < interiorSize; ii++) {
+                if (y[ii] == 0) {
+                    continue;
+                }
+                if (count == entryRows.length) {
+                    int capacity = Math.max(16, count * 2);
+                    entryRows = Arrays.copyOf(entryRows, capacity);
+                    entryCols = Arrays.copyOf(entryCols, capacity);
+                    entryValues = Arrays.copyOf(entryValues, capacity);
+                }
+                entryRows[count] = ii;
+                entryCols[count] = b;
+                entryValues[count++] = y[ii];
+                start[ii + 1]++;
+            }
+        }
+
+        // counting sort by row: start[ii] is first the end of the previous row, and is
+        // advanced to the end of row ii while filling it, then shifted back
+        for (int ii = 0; ii < interiorSize; ii++) {
+            start[ii + 1] += start[ii];
+        }
+        if (couplingCols.length < count) {
+            couplingCols = new int[count];
+            couplingValues = new double[count];
+        }
+        for (int k = 0; k < count; k++) {
+            int pos = start[entryRows[k]]++;
+            couplingCols[pos] = entryCols[k];
+            couplingValues[pos] = entryValues[k];
+        }
+        for (int ii = interiorSize; ii > 0; ii--) {
+            start[ii] = start[ii - 1];
+        }
+        start[0] = 0;
+    }
+
+    private void allocateBorderWorkspace() {
+        if (couplingStart.length <= interiorSize) {
+            couplingStart = new int[interiorSize + 1];
+            column = new double[interiorSize];
+        }
+        if (schur.length < borderSize) {
+            schur = new double[borderSize][borderSize];
+            schurPermute = new int[borderSize];
+            borderRightSide = new double[borderSize];
+        }
+        if (interiorRightSide.length < interiorSize) {
+            interiorRightSide = new double[interiorSize];
+        }
+    }
+
+    // build and factor the Schur complement from the border rows of m
+    boolean factor(SparseMatrix m) {
+        int s = borderSize;
+        double[][] schur = this.schur;
+        int[] start = couplingStart;
+        int[] couplingCols = this.couplingCols;
+        double[] couplingValues = this.couplingValues;
+        for (int a = 0; a < s; a++) {
+            double[] schurRow = schur[a];
+            for (int b = 0; b < s; b++) {
+                schurRow[b] = 0;
+            }
+            int row = borderRows[a];
+            int[] cols = m.rowCols[row];
+            double[] vals = m.rowValues[row];
+            for (int k = 0; k < m.rowLength[row]; k++) {
+                double val = vals[k];
+                int b = borderIndex[cols[k]];
+                if (b >= 0) {
+                    schurRow[b] += val;
+                    continue;
+                }
+                int ii = interiorIndex[cols[k]];
+                for (int j = start[ii]; j < start[ii + 1]; j++) {
+                    schurRow[couplingCols[j]] -= val * couplingValues[j];
+                }
+            }
+        }
+        matrix = m;
+        return CircuitMath.lu_factor(schur, s, schurPermute);
+    }
+
+    // solve using the last factor(). rightSide is replaced with the solution.
+    void solve(double[] rightSide) {
+        int s = borderSize;
+        double[] z = interiorRightSide;
+        for (int ii = 0; ii < interiorSize; ii++) {
+            z[ii] = rightSide[interiorRows[ii]];
+        }
+        interiorLU.solve(z);
+
+        SparseMatrix m = matrix;
+        for (int a = 0; a < s; a++) {
+            int row = borderRows[a];
+            double sum = rightSide[row];
+            int[] cols = m.rowCols[row];
+            double[] vals = m.rowValues[row];
+            for (int k = 0; k < m.rowLength[row]; k++) {
+                int ii = interiorIndex[cols[k]];
+                if (ii >= 0) {
+                    sum -= vals[k] * z[ii];
+                }
+            }
+            borderRightSide[a] = sum;
+        }
+        CircuitMath.lu_solve(schur, s, schurPermute, borderRightSide);
+
+        for (int a = 0; a < s; a++) {
+            rightSide[borderRows[a]] = borderRightSide[a];
+        }
+        for (int ii = 0; ii < interiorSize; ii++) {
+            double x = z[ii];
+            for (int j = couplingStart[ii]; j < couplingStart[ii + 1]; j++) {
+                x -= couplingValues[j] * borderRightSide[couplingCols[j]];
+            }
+            rightSide[interiorRows[ii]] = x;
+        }
+    }
+}
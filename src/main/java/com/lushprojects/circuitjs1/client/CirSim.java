@@ -518,7 +518,10 @@ public class CirSim extends BaseCirSim implements NativePreviewHandler {
     }
 
     public double getIterCount() {
-        int speedValue = speedBar.getValue();
+        return getIterCount(speedBar.getValue());
+    }
+
+    static double getIterCount(int speedValue) {
         if (speedValue == 0)
             return 0;
 
@@ -971,8 +974,7 @@ public class CirSim extends BaseCirSim implements NativePreviewHandler {
 
         // Clear node-related state so old node dots can't persist after clear
         simulator.nodeList.clear();
-        simulator.postDrawList.clear();
-        simulator.badConnectionList.clear();
+        simulator.clearPostDrawList();
         com.lushprojects.circuitjs1.client.element.LabeledNodeElm.resetNodeList();
         com.lushprojects.circuitjs1.client.element.GroundElm.resetNodeList();
         
@@ -1255,6 +1257,144 @@ public class CirSim extends BaseCirSim implements NativePreviewHandler {
         renderer.repaint();
     }
 
+    // JSInterface - Run a circuit to endTime as fast as possible and pass the probe samples to
+    // onData as they are produced: a CSV header line and then CSV text per chunk of rows, or
+    // Float64Arrays of rows (t, probe values...) if binary is set. Returns false on failure;
+    // the reason is logged. The sample limit only applies if the caller keeps the data.
+    boolean runBatch(String circuit, double endTime, double maxTimeStep, double sampleInterval, String probes,
+            boolean binary, boolean unlimited, JavaScriptObject onData) {
+        BatchRunner runner = createBatchRunner(endTime, maxTimeStep, sampleInterval, probes);
+        if (unlimited) {
+            runner.setMaxSamples(0);
+        }
+        if (!binary) {
+            passBatchData(onData, runner.getHeader() + "\n");
+        }
+        boolean ok = runner.run(circuit, (rows, rowCount) -> binary
+                ? passBatchRows(onData, rows, rowCount * runner.getSampleWidth())
+                : passBatchData(onData, runner.toCsv(rows, rowCount)));
+        if (!ok) {
+            logManager.addLogEntry("Batch run failed: " + runner.getErrorMessage());
+        }
+        renderer.repaint();
+        return ok;
+    }
+
+    // a callback that returns false stops the run
+    private static native boolean passBatchData(JavaScriptObject onData, String text) /*-{
+        return onData(text) !== false;
+    }-*/;
+
+    private static native boolean passBatchRows(JavaScriptObject onData, double[] rows, int length) /*-{
+        var data = new $wnd.Float64Array(length);
+        for (var i = 0; i < length; i++)
+            data[i] = rows[i];
+        return onData(data) !== false;
+    }-*/;
+
+    // JSInterface - Monte-Carlo tolerance sweep. parameters is a comma separated list of
+    // "elementId:editItem=tolerance" entries. Returns per-sample statistics as CSV, or null on failure.
+    String runSweep(String circuit, double endTime, double maxTimeStep, double sampleInterval, String probes,
+            String parameters, int runs, double seed) {
+        SweepRunner sweep = new SweepRunner(createBatchRunner(endTime, maxTimeStep, sampleInterval, probes));
+        sweep.setRunCount(runs > 0 ? runs : 100);
+        sweep.setSeed((long) seed);
+        if (parameters != null && !parameters.isEmpty()) {
+            for (String entry : parameters.split(",")) {
+                int eq = entry.indexOf('=');
+                int colon = entry.lastIndexOf(':', eq);
+                if (eq < 0 || colon < 0) {
+                    logManager.addLogEntry("Sweep failed: bad parameter " + entry);
+                    return null;
+                }
+                try {
+                    sweep.addParameter(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1, eq)),
+                            Double.parseDouble(entry.substring(eq + 1)));
+                } catch (NumberFormatException e) {
+                    logManager.addLogEntry("Sweep failed: bad parameter " + entry);
+                    return null;
+                }
+            }
+        }
+        boolean ok = sweep.run(circuit);
+        renderer.repaint();
+        if (!ok) {
+            logManager.addLogEntry("Sweep failed: " + sweep.getErrorMessage());
+            return null;
+        }
+        return sweep.getCsv();
+    }
+
+    // JSInterface - Time the dense and sparse solvers on a synthetic size x size circuit matrix
+    JavaScriptObject benchmarkSolver(int size, int iterations) {
+        SolverBenchmark benchmark = new SolverBenchmark(size, iterations);
+        benchmark.run();
+        return createSolverBenchmarkObject(size, benchmark.denseFactorNs, benchmark.denseSolveNs,
+                benchmark.sparseFactorNs, benchmark.sparseRefactorNs, benchmark.sparseRefactorChangedNs,
+                benchmark.sparseSolveNs, benchmark.sparseFactorNonZeros);
+    }
+
+    private native JavaScriptObject createSolverBenchmarkObject(int size, double denseFactorNs, double denseSolveNs,
+            double sparseFactorNs, double sparseRefactorNs, double sparseRefactorChangedNs, double sparseSolveNs,
+            int sparseFactorNonZeros) /*-{
+        return {
+            size: size,
+            denseFactorNs: denseFactorNs,
+            denseSolveNs: denseSolveNs,
+            sparseFactorNs: sparseFactorNs,
+            sparseRefactorNs: sparseRefactorNs,
+            sparseRefactorChangedNs: sparseRefactorChangedNs,
+            sparseSolveNs: sparseSolveNs,
+            sparseFactorNonZeros: sparseFactorNonZeros
+        };
+    }-*/;
+
+    // JSInterface - Check SparseLU against the dense solver on a synthetic size x size circuit
+    // matrix, or on the stamped matrix of the current circuit if size is 0. Returns null if
+    // there is no circuit matrix.
+    JavaScriptObject checkSolver(int size) {
+        SolverCheck check;
+        if (size > 0) {
+            double[] rightSide = new double[size];
+            for (int i = 0; i < size; i++) {
+                rightSide[i] = (i % 7) - 3;
+            }
+            check = new SolverCheck(SolverBenchmark.buildMeshMatrix(size), rightSide);
+            check.run();
+        } else {
+            check = simulator.checkStampedMatrix();
+            if (check == null) {
+                return null;
+            }
+        }
+        return createSolverCheckObject(check.getSize(), check.denseSingular, check.sparseSingular, check.denseResidual,
+                check.sparseResidual, check.refactorResidual, check.maxDifference);
+    }
+
+    private native JavaScriptObject createSolverCheckObject(int size, boolean denseSingular, boolean sparseSingular,
+            double denseResidual, double sparseResidual, double refactorResidual, double maxDifference) /*-{
+        return {
+            size: size,
+            denseSingular: denseSingular,
+            sparseSingular: sparseSingular,
+            denseResidual: denseResidual,
+            sparseResidual: sparseResidual,
+            refactorResidual: refactorResidual,
+            maxDifference: maxDifference
+        };
+    }-*/;
+
+    private BatchRunner createBatchRunner(double endTime, double maxTimeStep, double sampleInterval, String probes) {
+        // the SimulationLoop must not step the document while the batch runs
+        setSimRunning(false);
+        BatchRunner runner = new BatchRunner(getActiveDocument());
+        runner.setEndTime(endTime);
+        runner.setMaxTimeStep(maxTimeStep);
+        runner.setSampleInterval(sampleInterval);
+        runner.setProbes(probes == null || probes.isEmpty() ? new String[0] : probes.split(","));
+        return runner;
+    }
+
     // JSInterface - Get simulation info
     JavaScriptObject getSimInfo() {
         CircuitSimulator simulator = getActiveDocument().simulator;
@@ -1444,6 +1584,44 @@ public class CirSim extends BaseCirSim implements NativePreviewHandler {
 	        resetSimulation: $entry(function() { that.@com.lushprojects.circuitjs1.client.CirSim::resetSimulation()(); } ),
 	        stepSimulation: $entry(function() { that.@com.lushprojects.circuitjs1.client.CirSim::stepSimulation()(); } ),
 	        getSimInfo: $entry(function() { return that.@com.lushprojects.circuitjs1.client.CirSim::getSimInfo()(); } ),
+	        runBatch: $entry(function(circuit, opts) {
+	            opts = opts || {};
+	            var probes = opts.probes ? opts.probes.join(',') : '';
+	            var endTime = opts.endTime || 0, timeStep = opts.timeStep || 0, interval = opts.sampleInterval || 0;
+	            var binary = opts.format === 'binary';
+	            var streaming = typeof opts.onData === 'function';
+	            var chunks = [];
+	            var onData = streaming ? opts.onData : function(data) { chunks.push(data); };
+	            var ok = that.@com.lushprojects.circuitjs1.client.CirSim::runBatch(Ljava/lang/String;DDDLjava/lang/String;ZZLcom/google/gwt/core/client/JavaScriptObject;)(circuit,
+	                endTime, timeStep, interval, probes, binary, streaming, onData);
+	            if (streaming)
+	                return ok;
+	            if (!ok)
+	                return null;
+	            if (!binary)
+	                return chunks.join('');
+	            var length = 0;
+	            for (var i = 0; i < chunks.length; i++)
+	                length += chunks[i].length;
+	            var samples = new $wnd.Float64Array(length);
+	            for (var i = 0, pos = 0; i < chunks.length; pos += chunks[i].length, i++)
+	                samples.set(chunks[i], pos);
+	            return samples;
+	        } ),
+	        benchmarkSolver: $entry(function(size, iterations) { return that.@com.lushprojects.circuitjs1.client.CirSim::benchmarkSolver(II)(size, iterations || 10); } ),
+	        checkSolver: $entry(function(size) { return that.@com.lushprojects.circuitjs1.client.CirSim::checkSolver(I)(size || 0); } ),
+	        runSweep: $entry(function(circuit, opts) {
+	            opts = opts || {};
+	            var probes = opts.probes ? opts.probes.join(',') : '';
+	            var params = [];
+	            var tol = opts.tolerances || {};
+	            for (var key in tol) {
+	                if (tol.hasOwnProperty(key))
+	                    params.push(key + '=' + tol[key]);
+	            }
+	            return that.@com.lushprojects.circuitjs1.client.CirSim::runSweep(Ljava/lang/String;DDDLjava/lang/String;Ljava/lang/String;ID)(circuit,
+	                opts.endTime || 0, opts.timeStep || 0, opts.sampleInterval || 0, probes, params.join(','), opts.runs || 0, opts.seed || 0);
+	        } ),
 	        
 	        // Node and voltage access
 	        getNodeVoltage: $entry(function(n) { return that.@com.lushprojects.circuitjs1.client.CirSim::getLabeledNodeVoltage(Ljava/lang/String;)(n); } ),
@@ -75,6 +75,15 @@ public class CircuitDocument {
         updateSimulationLoop();
     }
 
+    public boolean isActive() {
+        return isActive;
+    }
+
+    // simulation speed; set with the speed bar while the document is active
+    double getIterCount() {
+        return isActive ? cirSim.getIterCount() : CirSim.getIterCount(speedValue);
+    }
+
     public void addStateListener(SimulationStateListener listener) {
         stateListeners.add(listener);
     }
@@ -125,6 +134,8 @@ public class CircuitDocument {
         } else {
             simulationLoop.stop();
         }
+        // background documents are run by the document manager's scheduler
+        cirSim.documentManager.updateBackgroundScheduler();
     }
 
     public void stop(String message, CircuitElm elm) {
@@ -147,7 +158,17 @@ public class CircuitDocument {
         }
     }
 
+    // Runs the simulation and redraws the circuit.
+    //
+    // Every frame runs the simulation for a short slice and then renders. If the simulation
+    // is behind the wall clock, more slices follow as separate browser tasks, so input
+    // events are handled in between and a heavy circuit uses the CPU between frames instead
+    // of holding up the next one. The slices of one frame stop after the simulator's frame
+    // time limit (1000 / minFrameRate ms), so the display keeps at least that rate.
     public class SimulationLoop {
+        // simulation time per slice, in ms
+        private static final int SLICE_TIME_LIMIT = 8;
+
         private final Timer timer = new Timer() {
             @Override
             public void run() {
@@ -155,46 +176,91 @@ public class CircuitDocument {
             }
         };
 
+        private final SliceScheduler sliceScheduler = new SliceScheduler(this::runSlice);
+
+        private boolean started;
+        private long frameStartTime;
+
+        // simulation time since the last measurement, and its share of that period
+        private long busyTime;
+        private double cpuShare;
+
         public void start() {
+            started = true;
             timer.scheduleRepeating(16); // ~60 FPS
         }
 
         public void stop() {
+            started = false;
             timer.cancel();
         }
 
         private void update() {
-            if (isRunning) {
-                try {
-                    // Logic copied/adapted from CircuitRenderer.updateCircuit
-
-                    // 1. Analyze if needed
-                    if (circuitInfo.dcAnalysisFlag) { // needsAnalysis is tracked in Renderer, but maybe should be here?
-                        // For now, let's assume we handle dcAnalysisFlag here
-                        simulator.analyzeCircuit();
-                        circuitInfo.dcAnalysisFlag = false;
-                    }
+            frameStartTime = System.currentTimeMillis();
+            boolean behind = simulate(SLICE_TIME_LIMIT);
+            notifyUpdateListeners();
+            if (behind) {
+                sliceScheduler.schedule();
+            }
+        }
 
-                    // 2. Stamp if needed
-                    if (simulator.needsStamp) {
-                        try {
-                            simulator.preStampAndStampCircuit();
-                        } catch (Exception e) {
-                            logBuffer.log("Exception in stampCircuit(): " + e.getMessage());
-                            CircuitDocument.this.stop("Exception in stampCircuit(): " + e.getMessage(), null);
-                        }
-                    }
+        private void runSlice() {
+            if (!started ||
+                    System.currentTimeMillis() - frameStartTime >= simulator.getFrameTimeLimit()) {
+                return;
+            }
+            if (simulate(SLICE_TIME_LIMIT)) {
+                sliceScheduler.schedule();
+            }
+        }
 
-                    // 3. Run Circuit
-                    simulator.runCircuit(false); // wasAnalyzed?
+        // run the simulation for at most timeLimit ms without rendering
+        void runInBackground(int timeLimit) {
+            simulate(timeLimit);
+        }
 
-                } catch (Exception e) {
-                    logBuffer.log("Exception in simulation: " + e.getMessage());
-                    CircuitDocument.this.stop("Exception in simulation: " + e.getMessage(), null);
-                }
+        void finishMeasurement(long period) {
+            cpuShare = (double) busyTime / period;
+            busyTime = 0;
+        }
+
+        double getCpuShare() {
+            return cpuShare;
+        }
+
+        // returns true if the simulation is still behind the wall clock
+        private boolean simulate(int timeLimit) {
+            if (!isRunning) {
+                return false;
             }
+            long start = System.currentTimeMillis();
+            try {
+                // 1. Analyze if needed
+                if (circuitInfo.dcAnalysisFlag) {
+                    simulator.analyzeCircuit();
+                    circuitInfo.dcAnalysisFlag = false;
+                }
 
-            notifyUpdateListeners();
+                // 2. Stamp if needed
+                if (simulator.needsStamp) {
+                    try {
+                        simulator.preStampAndStampCircuit();
+                    } catch (Exception e) {
+                        logBuffer.log("Exception in stampCircuit(): " + e.getMessage());
+                        CircuitDocument.this.stop("Exception in stampCircuit(): " + e.getMessage(), null);
+                    }
+                }
+
+                // 3. Run Circuit
+                return simulator.runCircuit(false, Math.min(timeLimit, simulator.getFrameTimeLimit()));
+
+            } catch (Exception e) {
+                logBuffer.log("Exception in simulation: " + e.getMessage());
+                CircuitDocument.this.stop("Exception in simulation: " + e.getMessage(), null);
+                return false;
+            } finally {
+                busyTime += System.currentTimeMillis() - start;
+            }
         }
     }
 
@@ -30,6 +30,8 @@ import com.lushprojects.circuitjs1.client.element.ScopeElm;
 import com.lushprojects.circuitjs1.client.element.SwitchElm;
 import com.lushprojects.circuitjs1.client.element.WireElm;
 
+import java.util.ArrayList;
+
 public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandler, MouseMoveHandler, MouseUpHandler,
         ClickHandler, DoubleClickHandler, ContextMenuHandler, MouseOutHandler, MouseWheelHandler {
 
@@ -102,6 +104,18 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
 
     Canvas window;
 
+    // spatial index of the elements for hit testing, and a buffer for its results
+    private final ElementGrid elementGrid = new ElementGrid();
+    private final ArrayList<CircuitElm> gridElms = new ArrayList<>();
+    private boolean selectAreaAdd;
+
+    // element grid, brought up to date with the elements added, removed, moved or redrawn
+    // since the last call
+    ElementGrid getElementGrid() {
+        elementGrid.update(simulator().elmList);
+        return elementGrid;
+    }
+
     protected CircuitEditor(BaseCirSim cirSim, CircuitDocument circuitDocument) {
         super(cirSim, circuitDocument);
         window = renderer().getCanvas();
@@ -295,9 +309,8 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
         if (deltaY == 0) {
             return;
         }
-        CircuitSimulator simulator = simulator();
-        for (int i = 0; i != simulator.elmList.size(); i++) {
-            CircuitElm element = simulator.elmList.get(i);
+        getElementGrid().queryRow(dragGridY, gridElms);
+        for (CircuitElm element : gridElms) {
             if (element.getY() == dragGridY) {
                 element.movePoint(0, 0, deltaY);
             }
@@ -313,9 +326,8 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
         if (deltaX == 0) {
             return;
         }
-        CircuitSimulator simulator = simulator();
-        for (int i = 0; i != simulator.elmList.size(); i++) {
-            CircuitElm element = simulator.elmList.get(i);
+        getElementGrid().queryColumn(dragGridX, gridElms);
+        for (CircuitElm element : gridElms) {
             if (element.getX() == dragGridX) {
                 element.movePoint(0, deltaX, 0);
             }
@@ -388,9 +400,8 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
         }
 
         if (all) {
-            CircuitSimulator simulator = simulator();
-            for (int i = 0; i != simulator.elmList.size(); i++) {
-                CircuitElm element = simulator.elmList.get(i);
+            getElementGrid().queryRow(dragGridY, gridElms);
+            for (CircuitElm element : gridElms) {
                 int postIndex = -1;
                 if (element.getX() == dragGridX && element.getY() == dragGridY) {
                     postIndex = 0;
@@ -412,10 +423,23 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
         int x2 = Math.max(x, initDragGridX);
         int y1 = Math.min(y, initDragGridY);
         int y2 = Math.max(y, initDragGridY);
+        Rectangle previousArea = selectedArea;
         selectedArea = new Rectangle(x1, y1, x2 - x1, y2 - y1);
-        for (CircuitElm element : simulator().elmList) {
-            element.selectRect(selectedArea, add);
+        if (previousArea == null || add != selectAreaAdd) {
+            for (CircuitElm element : simulator().elmList) {
+                element.selectRect(selectedArea, add);
+            }
+        } else {
+            // while dragging out the area, only elements in the old or the new area
+            // can change selection
+            getElementGrid().queryRect(Math.min(x1, previousArea.x), Math.min(y1, previousArea.y),
+                    Math.max(x2, previousArea.x + previousArea.width),
+                    Math.max(y2, previousArea.y + previousArea.height), gridElms);
+            for (CircuitElm element : gridElms) {
+                element.selectRect(selectedArea, add);
+            }
         }
+        selectAreaAdd = add;
         cirSim.enableDisableMenuItems();
     }
 
@@ -524,9 +548,8 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
 
             int bestDist = Integer.MAX_VALUE;
             CircuitElm bestElm = null;
-            CircuitSimulator simulator = simulator();
-            for (int i = 0; i != simulator.elmList.size(); i++) {
-                CircuitElm element = simulator.elmList.get(i);
+            getElementGrid().queryRect(gridX, gridY, gridX, gridY, gridElms);
+            for (CircuitElm element : gridElms) {
                 if (element.getBoundingBox().contains(gridX, gridY)) {
                     int dist = element.getMouseDistance(gridX, gridY);
                     if (dist >= 0) {
@@ -568,9 +591,9 @@ public class CircuitEditor extends BaseCirSimDelegate implements MouseDownHandle
         CircuitElm bestPostElm = null;
         int bestPost = -1;
 
-        CircuitSimulator simulator = simulator();
-        for (int i = 0; i != simulator.elmList.size(); i++) {
-            CircuitElm element = simulator.elmList.get(i);
+        // posts closer than sqrt(26), and handles within sqrt(POST_GRAB_SQ)
+        getElementGrid().queryRect(gridX - 5, gridY - 5, gridX + 5, gridY + 5, gridElms);
+        for (CircuitElm element : gridElms) {
             if (mouseMode == MouseMode.DRAG_POST) {
                 if (element.getHandleGrabbedClose(gridX, gridY, POST_GRAB_SQ, 0) >= 0) {
                     return element;
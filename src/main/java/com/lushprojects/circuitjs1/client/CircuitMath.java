@@ -20,6 +20,13 @@ public class CircuitMath {
         return lastLuFailPivotAbs;
     }
 
+    // used by other factorization backends (SparseLU) to report failures the same way
+    static void setLuFailure(int column, int row, double pivotAbs) {
+        lastLuFailColumn = column;
+        lastLuFailRow = row;
+        lastLuFailPivotAbs = pivotAbs;
+    }
+
     public static boolean isConverged(double v1, double v2) {
         double delta = Math.abs(v2 - v1);
         double mean = Math.abs((v1 + v2) / 2.0);
@@ -10,6 +10,7 @@ import com.lushprojects.circuitjs1.client.element.ResistorElm;
 import com.lushprojects.circuitjs1.client.util.Locale;
 import com.lushprojects.circuitjs1.client.util.PerfMonitor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class CircuitRenderer extends BaseCirSimDelegate {
@@ -187,6 +188,12 @@ public class CircuitRenderer extends BaseCirSimDelegate {
 
     private final PerfMonitor perfmon = new PerfMonitor();
 
+    // grid units drawn around the visible area; value labels and current dots may be
+    // drawn outside an element's bounding box
+    private static final int CULL_MARGIN = 128;
+
+    private final ArrayList<CircuitElm> visibleElms = new ArrayList<>();
+
     public void resetTimers() {
         lastTimeMillis = 0;
         lastSecondTimeMillis = 0;
@@ -311,8 +318,16 @@ public class CircuitRenderer extends BaseCirSimDelegate {
     }
 
     private void drawElements(Graphics graphics, CircuitSimulator simulator) {
+        // only draw elements near the visible part of the circuit, and those that have not
+        // computed their bounding box yet
+        int viewX1 = inverseTransformX(0) - CULL_MARGIN;
+        int viewY1 = inverseTransformY(0) - CULL_MARGIN;
+        int viewX2 = inverseTransformX(circuitArea.width) + CULL_MARGIN;
+        int viewY2 = inverseTransformY(circuitArea.height) + CULL_MARGIN;
+        circuitEditor().getElementGrid().queryVisible(viewX1, viewY1, viewX2, viewY2, visibleElms);
+
         perfmon.startContext("elm.draw()");
-        for (CircuitElm ce : simulator.elmList) {
+        for (CircuitElm ce : visibleElms) {
             if (cirSim.menuManager.powerCheckItem.getState()) {
                 graphics.setColor(Color.gray);
             }
@@ -329,19 +344,12 @@ public class CircuitRenderer extends BaseCirSimDelegate {
 
         CircuitEditor circuitEditor = circuitEditor();
         if (circuitEditor.mouseMode != MouseMode.DRAG_ROW && circuitEditor.mouseMode != MouseMode.DRAG_COLUMN) {
-            for (Point pt : simulator.postDrawList) {
-                // Find voltage at this point from any element connected to it
-                double voltage = 0;
-                for (CircuitElm ce : simulator.elmList) {
-                    int posts = ce.getPostCount();
-                    for (int j = 0; j < posts; j++) {
-                        if (ce.getPost(j).equals(pt)) {
-                            voltage = ce.getPostVoltage(j);
-                            break;
-                        }
-                    }
+            for (int i = 0; i < simulator.postDrawList.size(); i++) {
+                Point pt = simulator.postDrawList.get(i);
+                if (pt.x < viewX1 || pt.x > viewX2 || pt.y < viewY1 || pt.y > viewY2) {
+                    continue;
                 }
-                graphics.setColor(ColorSettings.get().getVoltageColor(voltage));
+                graphics.setColor(ColorSettings.get().getVoltageColor(simulator.getPostDrawVoltage(i)));
                 graphics.fillOval(pt.x - 3, pt.y - 3, 7, 7);
             }
         }
@@ -350,7 +358,7 @@ public class CircuitRenderer extends BaseCirSimDelegate {
                 circuitEditor.tempMouseMode == MouseMode.DRAG_COLUMN ||
                 circuitEditor.tempMouseMode == MouseMode.DRAG_POST ||
                 circuitEditor.tempMouseMode == MouseMode.DRAG_SELECTED) {
-            for (CircuitElm ce : simulator.elmList) {
+            for (CircuitElm ce : visibleElms) {
                 if (ce != circuitEditor.mouseElm || circuitEditor.tempMouseMode != MouseMode.DRAG_POST) {
                     graphics.setColor(Color.gray);
                     graphics.fillOval(ce.getX() - 3, ce.getY() - 3, 7, 7);
@@ -412,6 +420,16 @@ public class CircuitRenderer extends BaseCirSimDelegate {
                 height += increment);
         graphics.drawString("iterc: " + CircuitElm.showFormat(cirSim.getIterCount()), 10, height += increment);
         graphics.drawString("Frames: " + frameCount, 10, height += increment);
+        graphics.drawString("Event-driven logic: " + simulator().digitalIslands.getElementCount() + " elements, " +
+                simulator().digitalIslands.getNodeCount() + " nodes", 10, height += increment);
+        double backgroundShare = 0;
+        for (CircuitDocument document : cirSim.documentManager.getDocuments()) {
+            if (document != cirSim.getActiveDocument()) {
+                backgroundShare += cirSim.documentManager.getCpuShare(document);
+            }
+        }
+        graphics.drawString("Sim CPU: " + CircuitElm.showFormat(100 * cirSim.documentManager.getCpuShare(cirSim.getActiveDocument())) +
+                "%, background tabs: " + CircuitElm.showFormat(100 * backgroundShare) + "%", 10, height += increment);
 
         height += (increment * 2);
 
@@ -3,6 +3,7 @@ package com.lushprojects.circuitjs1.client;
 import static com.lushprojects.circuitjs1.client.CirSim.console;
 
 import com.google.gwt.user.client.Window;
+import com.lushprojects.circuitjs1.client.element.CapacitorElm;
 import com.lushprojects.circuitjs1.client.element.ChipElm;
 import com.lushprojects.circuitjs1.client.element.CircuitElm;
 import com.lushprojects.circuitjs1.client.element.GraphicElm;
@@ -15,6 +16,7 @@ import com.lushprojects.circuitjs1.client.element.WireElm;
 import com.lushprojects.circuitjs1.client.util.Locale;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
@@ -36,13 +38,19 @@ public class CircuitSimulator extends BaseCirSimDelegate {
 
     public double minFrameRate = 20;
     public boolean adjustTimeStep;
+    // simulate digital islands outside the matrix (see DigitalIslands)
+    public boolean eventDrivenLogic = OptionsManager.getBoolOptionFromStorage("eventDrivenLogic", false);
 
-    public final ArrayList<CircuitElm> elmList = new ArrayList<>(256);
+    public final ElementList elmList = new ElementList(256);
 
     boolean simRunning;
     private CircuitElm[] elmArr;
+    // elmArr without the elements simulated by digitalIslands
+    private CircuitElm[] stepElmArr;
     ScopeElm[] scopeElmArr;
 
+    final DigitalIslands digitalIslands = new DigitalIslands(this);
+
     public final ArrayList<CircuitNode> nodeList = new ArrayList<>(128);
 
     // map points to node numbers
@@ -52,7 +60,10 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     private final ArrayList<WireInfo> wireInfoList = new ArrayList<>(256);
 
     final ArrayList<Point> postDrawList = new ArrayList<>(64);
-    final HashMap<Point, Double> postVoltageMap = new HashMap<>(64);
+    // element and post number each point of postDrawList belongs to, so the renderer can
+    // get its voltage without searching the element list
+    final ArrayList<CircuitElm> postDrawElms = new ArrayList<>(64);
+    private int[] postDrawPostNumbers = new int[64];
     final ArrayList<Point> badConnectionList = new ArrayList<>(64);
 
     private CircuitElm[] voltageSources;
@@ -71,6 +82,32 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     private int circuitMatrixFullSize;
     private boolean circuitNeedsMap;
 
+    // Large circuits are stamped into a sparse matrix and solved with SparseLU instead of
+    // the dense circuitMatrix. The choice is made in stampCircuit() from the matrix size,
+    // and confirmed after simplification from the density of the reduced matrix.
+    static final int SPARSE_MATRIX_MIN_SIZE = 150;
+    static final double SPARSE_MATRIX_MAX_DENSITY = 0.1;
+
+    private boolean circuitSparse;
+    private SparseMatrix sparseMatrix;
+    private SparseMatrix origSparseMatrix;
+    private final SparseLU nonLinearSparseLU = new SparseLU();
+    private SparseLU sparseLU = nonLinearSparseLU;
+
+    // For nonlinear sparse circuits, the rows changed by doStep() are split off as a border
+    // so each sub-iteration only refactors a small Schur complement (see BorderedSolver).
+    private BorderedSolver borderedSolver = new BorderedSolver();
+    private boolean borderedSolverDisabled;
+    private boolean borderedSolverActive;
+
+    // buffers reused by stampCircuit(), so adaptive timestep restamps don't allocate
+    private SolverWorkspace workspace = new SolverWorkspace();
+
+    // factorizations of the linear matrix for recently used timesteps.
+    // circuitRevision changes whenever the circuit topology changes, which invalidates them.
+    private final FactorizationCache factorizationCache = new FactorizationCache();
+    private int circuitRevision;
+
     public CircuitSimulator(BaseCirSim cirSim, CircuitDocument circuitDocument) {
         super(cirSim, circuitDocument);
         adjustTimeStep = true;
@@ -81,6 +118,8 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         stopElm = ce;
 
         circuitMatrix = null; // causes an exception
+        sparseMatrix = null;
+        topology.invalidate();
 
         getActiveDocument().stop(message, ce);
     }
@@ -104,6 +143,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
 
         // Force full re-stamp on next run.
         needsStamp = true;
+        topology.invalidate();
 
         // Drop any existing matrix/voltage state so nothing "leaks" across resets.
         circuitMatrix = null;
@@ -114,6 +154,12 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         lastNodeVoltages = null;
         circuitRowInfo = null;
         circuitPermute = null;
+        sparseMatrix = null;
+        origSparseMatrix = null;
+        circuitSparse = false;
+        workspace = new SolverWorkspace();
+        factorizationCache.clear();
+        sparseLU = nonLinearSparseLU;
 
         circuitNonLinear = false;
         voltageSourceCount = 0;
@@ -199,13 +245,8 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             }
             NodeMapEntry cn2 = nodeMap.get(p1);
             if (cn != null && cn2 != null) {
-                // merge nodes; go through map and change all keys pointing to cn2 to point to
-                // cn
-                for (Map.Entry<Point, NodeMapEntry> entry : nodeMap.entrySet()) {
-                    if (entry.getValue() == cn2) {
-                        entry.setValue(cn);
-                    }
-                }
+                // merge nodes; map entries are pointed at the merged group after the loop
+                NodeMapEntry.union(cn, cn2);
                 continue;
             }
             if (cn != null) {
@@ -222,6 +263,11 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             nodeMap.put(p1, cn);
         }
 
+        // point every post at the representative entry of its group
+        for (Map.Entry<Point, NodeMapEntry> entry : nodeMap.entrySet()) {
+            entry.setValue(entry.getValue().find());
+        }
+
         // console("got " + (groupCount-mergeCount) + " groups with " + nodeMap.size() +
         // " nodes " + mergeCount);
     }
@@ -449,6 +495,8 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         voltageSources = new CircuitElm[vscount];
     }
 
+    private final CircuitTopology topology = new CircuitTopology();
+
     final ArrayList<Integer> unconnectedNodes = new ArrayList<>();
     final ArrayList<CircuitElm> nodesWithGroundConnection = new ArrayList<>();
     int nodesWithGroundConnectionCount;
@@ -561,6 +609,8 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         }
         voltageSourceCount = vscount;
 
+        digitalIslands.build(elmList, nodeList, voltageSourceCount, eventDrivenLogic);
+
         // show resistance in voltage sources if there's only one.
         // can't use voltageSourceCount here since that counts internal voltage sources,
         // like the one in GroundElm
@@ -576,14 +626,20 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             }
         }
 
-        findUnconnectedNodes();
-        if (!validateCircuit()) {
-            return false;
+        // if connectivity is unchanged since the last successful analysis (e.g. an element
+        // was dragged or a value was edited), its unconnected nodes and loop checks still hold
+        if (topology.update(elmList)) {
+            revalidateCircuit();
+        } else {
+            findUnconnectedNodes();
+            if (!validateCircuit()) {
+                return false;
+            }
+            // nodesWithGroundConnection is kept for revalidateCircuit()
+            nodesWithGroundConnectionCount = nodesWithGroundConnection.size();
+            circuitRevision++;
         }
-
-        nodesWithGroundConnectionCount = nodesWithGroundConnection.size();
-        // only need this for validation
-        nodesWithGroundConnection.clear();
+        topology.markValid();
 
         timeStep = maxTimeStep;
         needsStamp = true;
@@ -623,21 +679,37 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     // auto-adjusting timestep
     void stampCircuit() {
         int matrixSize = nodeList.size() - 1 + voltageSourceCount;
-        circuitMatrix = new double[matrixSize][matrixSize];
-        circuitRightSide = new double[matrixSize];
-        nodeVoltages = new double[nodeList.size() - 1];
+        SolverWorkspace workspace = this.workspace;
+        circuitSparse = matrixSize >= SPARSE_MATRIX_MIN_SIZE;
+        if (circuitSparse) {
+            sparseMatrix = workspace.stampSparseMatrix;
+            sparseMatrix.resize(matrixSize);
+            origSparseMatrix = workspace.origSparseMatrix;
+            circuitMatrix = origMatrix = null;
+        } else {
+            circuitMatrix = workspace.getStampMatrix(matrixSize);
+            origMatrix = workspace.getOrigMatrix(matrixSize);
+            sparseMatrix = origSparseMatrix = null;
+        }
+        circuitRightSide = workspace.getStampRightSide(matrixSize);
+        if (nodeVoltages == null || nodeVoltages.length != nodeList.size() - 1) {
+            nodeVoltages = new double[nodeList.size() - 1];
+        } else {
+            Arrays.fill(nodeVoltages, 0);
+        }
         if (lastNodeVoltages == null || lastNodeVoltages.length != nodeVoltages.length) {
             lastNodeVoltages = new double[nodeList.size() - 1];
         }
-        origMatrix = new double[matrixSize][matrixSize];
-        origRightSide = new double[matrixSize];
+        origRightSide = workspace.getOrigRightSide(matrixSize);
         circuitMatrixSize = circuitMatrixFullSize = matrixSize;
-        circuitRowInfo = new RowInfo[matrixSize];
-        for (int i = 0; i < matrixSize; i++) {
-            circuitRowInfo[i] = new RowInfo();
-        }
-        circuitPermute = new int[matrixSize];
+        circuitRowInfo = workspace.getRowInfo(matrixSize);
+        circuitPermute = workspace.getPermute(matrixSize);
         circuitNeedsMap = false;
+        // SparseLU keeps its symbolic analysis across restamps; refactor() checks the pattern.
+        // The bordered split depends on the linear values, so it is looked up in
+        // factorizationCache once the matrix is stamped.
+        borderedSolverDisabled = false;
+        borderedSolverActive = false;
 
         connectUnconnectedNodes();
 
@@ -658,38 +730,71 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             }
         }
 
-        if (!simplifyMatrix(matrixSize)) {
+        // take the digital islands out of the matrix
+        digitalIslands.markRows(circuitRowInfo);
+
+        if (circuitSparse) {
+            if (!simplifySparseMatrix(matrixSize)) {
+                return;
+            }
+        } else if (!simplifyMatrix(matrixSize)) {
             return;
         }
 
         // check if we called stop()
-        if (circuitMatrix == null) {
+        if (!hasCircuitMatrix()) {
             return;
         }
 
         // if a matrix is linear, we can do the lu_factor here instead of
         // needing to do it every frame
+        factorizationCache.setRevision(circuitRevision);
         if (!circuitNonLinear) {
-            if (!CircuitMath.lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+            if (!factorLinearCircuitMatrix()) {
                 stop("Singular matrix!", null);
                 return;
             }
+        } else if (circuitSparse) {
+            sparseLU = nonLinearSparseLU;
+            FactorizationCache.Entry entry = factorizationCache.findSparse(timeStep, origSparseMatrix);
+            if (entry == null) {
+                entry = factorizationCache.add(timeStep, false);
+                entry.setSparseMatrix(origSparseMatrix);
+            }
+            borderedSolver = entry.borderedSolver;
         }
 
         // copy elmList to an array to avoid a bunch of calls to canCast() when doing
         // simulation
-        elmArr = new CircuitElm[elmList.size()];
+        if (elmArr == null || elmArr.length != elmList.size()) {
+            elmArr = new CircuitElm[elmList.size()];
+        }
         int scopeElmCount = 0;
+        int stepElmCount = 0;
         for (int i = 0; i < elmList.size(); i++) {
             elmArr[i] = elmList.get(i);
             if (elmArr[i] instanceof ScopeElm) {
                 scopeElmCount++;
             }
+            if (!digitalIslands.contains(i)) {
+                stepElmCount++;
+            }
+        }
+        if (stepElmArr == null || stepElmArr.length != stepElmCount) {
+            stepElmArr = new CircuitElm[stepElmCount];
+        }
+        stepElmCount = 0;
+        for (int i = 0; i < elmList.size(); i++) {
+            if (!digitalIslands.contains(i)) {
+                stepElmArr[stepElmCount++] = elmArr[i];
+            }
         }
 
         // copy ScopeElms to an array to avoid a second pass over entire list of elms
         // during simulation
-        scopeElmArr = new ScopeElm[scopeElmCount];
+        if (scopeElmArr == null || scopeElmArr.length != scopeElmCount) {
+            scopeElmArr = new ScopeElm[scopeElmCount];
+        }
         int j = 0;
         for (CircuitElm ce : elmList) {
             if (ce instanceof ScopeElm) {
@@ -700,113 +805,217 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         needsStamp = false;
     }
 
+    // dense matrix seen through MatrixRows
+    private static final class DenseRows implements MatrixRows {
+        private final double[][] matrix;
+        private final int size;
+
+        DenseRows(double[][] matrix, int size) {
+            this.matrix = matrix;
+            this.size = size;
+        }
+
+        public int getRowLength(int row) {
+            return size;
+        }
+
+        public int getColumn(int row, int k) {
+            return k;
+        }
+
+        public double getValue(int row, int k) {
+            return matrix[row][k];
+        }
+
+        public double get(int row, int col) {
+            return matrix[row][col];
+        }
+
+        public void add(int row, int col, double x) {
+            matrix[row][col] += x;
+        }
+    }
+
     // simplify the matrix; this speeds things up quite a bit, especially for
     // digital circuits.
     // or at least it did before we added wire removal
     boolean simplifyMatrix(int matrixSize) {
+        MatrixRows matrix = new DenseRows(circuitMatrix, matrixSize);
+        if (!findConstantRows(matrix, matrixSize)) {
+            return false;
+        }
+        int newMatrixSize = mapSimplifiedColumns(matrixSize);
+        if (newMatrixSize != matrixSize) {
+            double[][] newCircuitMatrix = workspace.getSimplifiedMatrix(newMatrixSize);
+            double[] newRightSide = workspace.getSimplifiedRightSide(newMatrixSize);
+            copySimplifiedRows(matrix, matrixSize, new DenseRows(newCircuitMatrix, newMatrixSize), newRightSide);
+            this.circuitMatrix = newCircuitMatrix;
+            this.circuitRightSide = newRightSide;
+            this.circuitMatrixSize = newMatrixSize;
+            circuitNeedsMap = true;
+        }
+        // snapshot the base matrix/right side for nonlinear sub-iterations
+        System.arraycopy(this.circuitRightSide, 0, this.origRightSide, 0, newMatrixSize);
+        for (int i = 0; i < newMatrixSize; i++) {
+            System.arraycopy(this.circuitMatrix[i], 0, this.origMatrix[i], 0, newMatrixSize);
+        }
+        return true;
+    }
+
+    // sparse version of simplifyMatrix(), used for large circuits. If the reduced matrix turns
+    // out to be dense, it is converted back to the dense representation.
+    boolean simplifySparseMatrix(int matrixSize) {
+        SparseMatrix matrix = this.sparseMatrix;
+        if (!findConstantRows(matrix, matrixSize)) {
+            return false;
+        }
+        int newMatrixSize = mapSimplifiedColumns(matrixSize);
+        if (newMatrixSize != matrixSize) {
+            SparseMatrix newMatrix = workspace.simplifiedSparseMatrix;
+            newMatrix.resize(newMatrixSize);
+            double[] newRightSide = workspace.getSimplifiedRightSide(newMatrixSize);
+            copySimplifiedRows(matrix, matrixSize, newMatrix, newRightSide);
+            this.sparseMatrix = matrix = newMatrix;
+            this.circuitRightSide = newRightSide;
+            this.circuitMatrixSize = newMatrixSize;
+            circuitNeedsMap = true;
+        }
+
+        int nonZeroCount = matrix.getNonZeroCount();
+        if (newMatrixSize < SPARSE_MATRIX_MIN_SIZE ||
+                nonZeroCount > SPARSE_MATRIX_MAX_DENSITY * newMatrixSize * newMatrixSize) {
+            // not worth solving sparsely; switch to the dense solver
+            circuitSparse = false;
+            this.circuitMatrix = workspace.getSimplifiedMatrix(newMatrixSize);
+            matrix.copyToDense(this.circuitMatrix);
+            this.origMatrix = workspace.getOrigMatrix(newMatrixSize);
+            for (int i = 0; i < newMatrixSize; i++) {
+                System.arraycopy(this.circuitMatrix[i], 0, this.origMatrix[i], 0, newMatrixSize);
+            }
+            this.sparseMatrix = this.origSparseMatrix = null;
+        } else {
+            this.origSparseMatrix.copyFrom(matrix);
+        }
+        System.arraycopy(this.circuitRightSide, 0, this.origRightSide, 0, newMatrixSize);
+        return true;
+    }
+
+    // check the solvers against each other on the stamped (linear, simplified) matrix of
+    // the current circuit; returns null if there is no matrix
+    SolverCheck checkStampedMatrix() {
+        if (!hasCircuitMatrix()) {
+            return null;
+        }
+        int matrixSize = circuitMatrixSize;
+        SparseMatrix matrix = new SparseMatrix(matrixSize);
+        if (circuitSparse) {
+            matrix.copyFrom(origSparseMatrix);
+        } else {
+            for (int i = 0; i < matrixSize; i++) {
+                for (int j = 0; j < matrixSize; j++) {
+                    if (origMatrix[i][j] != 0) {
+                        matrix.add(i, j, origMatrix[i][j]);
+                    }
+                }
+            }
+        }
+        SolverCheck check = new SolverCheck(matrix, Arrays.copyOf(origRightSide, matrixSize));
+        check.run();
+        return check;
+    }
+
+    // Find the rows with a single unknown left: that unknown is a constant, and the row
+    // can be dropped. Constants found are folded into the other rows when they are
+    // scanned, which may leave them with a single unknown too. Returns false (after
+    // stopping the simulation) if a row has no unknowns at all.
+    private boolean findConstantRows(MatrixRows matrix, int matrixSize) {
         RowInfo[] circuitRowInfo = this.circuitRowInfo;
-        double[][] circuitMatrix = this.circuitMatrix;
         double[] circuitRightSide = this.circuitRightSide;
 
         int i, j;
-        // Iterate through each row of the matrix to find opportunities for
-        // simplification.
         for (i = 0; i < matrixSize; i++) {
-            int pivotColumnIndex = -1; // Index of the first non-zero, non-constant element in the row.
-            double pivotValue = 0; // Value of the first non-zero, non-constant element.
             RowInfo rowInfo = circuitRowInfo[i];
             // Skip rows that are already simplified, marked for dropping, or have changing
             // right-hand sides.
             if (rowInfo.lsChanges || rowInfo.dropRow || rowInfo.rsChanges) {
                 continue;
             }
+            int pivotColumnIndex = -1; // Index of the first non-zero, non-constant element in the row.
+            double pivotValue = 0; // Value of the first non-zero, non-constant element.
             double rightSideAdjustment = 0; // Accumulator for adjustments to the right-hand side of the equation.
+            boolean simplifiable = true;
 
-            // Scan the row to see if it can be simplified.
             // A row can be simplified if it contains exactly one non-zero element
             // corresponding to a non-constant variable.
-            for (j = 0; j < matrixSize; j++) {
-                double elementValue = circuitMatrix[i][j];
+            int rowLength = matrix.getRowLength(i);
+            for (int k = 0; k < rowLength; k++) {
+                RowInfo columnRowInfo = circuitRowInfo[matrix.getColumn(i, k)];
+                double elementValue = matrix.getValue(i, k);
                 // If the element corresponds to a known constant, adjust the right-hand side.
-                if (circuitRowInfo[j].type == RowInfo.ROW_CONST) {
-                    rightSideAdjustment -= circuitRowInfo[j].value * elementValue;
+                if (columnRowInfo.type == RowInfo.ROW_CONST) {
+                    rightSideAdjustment -= columnRowInfo.value * elementValue;
                     continue;
                 }
                 if (elementValue == 0) {
                     continue;
                 }
-                // If this is the first non-zero element found, record its position and value.
                 if (pivotColumnIndex == -1) {
-                    pivotColumnIndex = j;
+                    pivotColumnIndex = matrix.getColumn(i, k);
                     pivotValue = elementValue;
                     continue;
                 }
-                // If more than one non-zero element is found, this row cannot be simplified at
-                // this time.
+                // More than one unknown: this row cannot be simplified at this time.
+                simplifiable = false;
                 break;
             }
+            if (!simplifiable) {
+                continue;
+            }
 
-            // If the loop completed, it means we found a row that can be simplified (j ==
-            // matrixSize).
-            if (j == matrixSize) {
-                if (pivotColumnIndex == -1) {
-                    // This should not happen in a valid circuit. It might indicate a singular
-                    // matrix.
-                    stop("Matrix error", null);
-                    return false;
-                }
-                RowInfo pivotRowInfo = circuitRowInfo[pivotColumnIndex];
-                // We've found a row with a single unknown. We can solve for this unknown.
-                if (pivotRowInfo.type != RowInfo.ROW_NORMAL) {
-                    // This case should ideally not be reached if logic is correct.
-                    System.out.println("type already " + pivotRowInfo.type + " for " + pivotColumnIndex + "!");
-                    continue;
-                }
-                // Mark the variable as a constant and calculate its value.
-                pivotRowInfo.type = RowInfo.ROW_CONST;
-                pivotRowInfo.value = (circuitRightSide[i] + rightSideAdjustment) / pivotValue;
-                circuitRowInfo[i].dropRow = true; // Mark the current row to be removed from the matrix.
-
-                // Now that we have a new constant, we need to re-check previous rows.
-                // Find the first row that referenced the element we just turned into a
-                // constant.
-                for (j = 0; j != i; j++) {
-                    if (circuitMatrix[j][pivotColumnIndex] != 0) {
-                        break;
-                    }
-                }
-                // Restart the main loop from just before that row to apply the new
-                // simplification.
-                i = j - 1;
+            if (pivotColumnIndex == -1) {
+                // This should not happen in a valid circuit. It might indicate a singular
+                // matrix.
+                stop("Matrix error", null);
+                return false;
             }
-        }
+            RowInfo pivotRowInfo = circuitRowInfo[pivotColumnIndex];
+            if (pivotRowInfo.type != RowInfo.ROW_NORMAL) {
+                // This case should ideally not be reached if logic is correct.
+                console("type already " + pivotRowInfo.type + " for " + pivotColumnIndex + "!");
+                continue;
+            }
+            // Mark the variable as a constant and calculate its value.
+            pivotRowInfo.type = RowInfo.ROW_CONST;
+            pivotRowInfo.value = (circuitRightSide[i] + rightSideAdjustment) / pivotValue;
+            rowInfo.dropRow = true; // Mark the current row to be removed from the matrix.
 
-        // Create the new, smaller matrix by removing the simplified rows and columns.
-        int newSizeCounter = 0; // Counter for the size of the new matrix.
-        for (i = 0; i < matrixSize; i++) {
-            RowInfo rowInfo = circuitRowInfo[i];
-            if (rowInfo.type == RowInfo.ROW_NORMAL) {
-                rowInfo.mapCol = newSizeCounter++; // Map old column index to new column index.
-            } else {
-                rowInfo.mapCol = -1; // Mark constant columns.
+            // Restart the main loop from the first row that referenced the element we
+            // just turned into a constant.
+            for (j = 0; j != i; j++) {
+                if (matrix.get(j, pivotColumnIndex) != 0) {
+                    break;
+                }
             }
+            i = j - 1;
         }
+        return true;
+    }
 
-        int newMatrixSize = newSizeCounter;
-        if (newMatrixSize == matrixSize) {
-            // No simplification was possible, no need to rebuild the matrix.
-            // Still need to snapshot the base matrix/right side for nonlinear sub-iterations.
-            System.arraycopy(this.circuitRightSide, 0, this.origRightSide, 0, matrixSize);
-            for (i = 0; i < matrixSize; i++) {
-                System.arraycopy(this.circuitMatrix[i], 0, this.origMatrix[i], 0, matrixSize);
-            }
-            return true;
+    // number the columns that are still unknowns; returns how many there are
+    private int mapSimplifiedColumns(int matrixSize) {
+        int newMatrixSize = 0;
+        for (int i = 0; i < matrixSize; i++) {
+            RowInfo rowInfo = circuitRowInfo[i];
+            rowInfo.mapCol = (rowInfo.type == RowInfo.ROW_NORMAL) ? newMatrixSize++ : -1;
         }
+        return newMatrixSize;
+    }
 
-        double[][] newCircuitMatrix = new double[newMatrixSize][newMatrixSize];
-        double[] newRightSide = new double[newMatrixSize];
-        int newRowIndex = 0; // Row index for the new matrix.
-        for (i = 0; i < matrixSize; i++) {
+    // copy the rows that are kept into the smaller matrix, moving the constant columns
+    // to the right side
+    private void copySimplifiedRows(MatrixRows matrix, int matrixSize, MatrixRows newMatrix, double[] newRightSide) {
+        int newRowIndex = 0;
+        for (int i = 0; i < matrixSize; i++) {
             RowInfo currentRowInfo = circuitRowInfo[i];
             if (currentRowInfo.dropRow) {
                 currentRowInfo.mapRow = -1;
@@ -814,29 +1023,18 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             }
             newRightSide[newRowIndex] = circuitRightSide[i];
             currentRowInfo.mapRow = newRowIndex;
-            for (j = 0; j != matrixSize; j++) {
-                RowInfo columnRowInfo = circuitRowInfo[j];
+            int rowLength = matrix.getRowLength(i);
+            for (int k = 0; k < rowLength; k++) {
+                RowInfo columnRowInfo = circuitRowInfo[matrix.getColumn(i, k)];
+                double value = matrix.getValue(i, k);
                 if (columnRowInfo.type == RowInfo.ROW_CONST) {
-                    // Adjust the right-hand side with the value of the constant.
-                    newRightSide[newRowIndex] -= columnRowInfo.value * circuitMatrix[i][j];
-                } else {
-                    // Copy the matrix element to its new position.
-                    newCircuitMatrix[newRowIndex][columnRowInfo.mapCol] += circuitMatrix[i][j];
+                    newRightSide[newRowIndex] -= columnRowInfo.value * value;
+                } else if (value != 0) {
+                    newMatrix.add(newRowIndex, columnRowInfo.mapCol, value);
                 }
             }
             newRowIndex++;
         }
-
-        // Replace the old matrix and right-side vector with the new simplified ones.
-        this.circuitMatrix = newCircuitMatrix;
-        this.circuitRightSide = newRightSide;
-        matrixSize = this.circuitMatrixSize = newMatrixSize;
-        System.arraycopy(this.circuitRightSide, 0, this.origRightSide, 0, matrixSize);
-        for (i = 0; i < matrixSize; i++) {
-            System.arraycopy(this.circuitMatrix[i], 0, this.origMatrix[i], 0, matrixSize);
-        }
-        circuitNeedsMap = true;
-        return true;
     }
 
     // make list of posts we need to draw. posts shared by 2 elements should be
@@ -845,27 +1043,40 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     // because wires
     // have the same node number at both ends.
     void makePostDrawList() {
-        HashMap<Point, Integer> postCountMap = new HashMap<>();
-        for (CircuitElm ce : elmList) {
+        // for each point: number of posts, then element index and post number of the last one
+        HashMap<Point, int[]> postCountMap = new HashMap<>();
+        for (int i = 0; i < elmList.size(); i++) {
+            CircuitElm ce = elmList.get(i);
             int posts = ce.getPostCount();
             for (int j = 0; j < posts; j++) {
                 Point pt = ce.getPost(j);
-                postCountMap.compute(pt, (k, v) -> (v == null) ? 1 : v + 1);
+                int[] info = postCountMap.get(pt);
+                if (info == null) {
+                    info = new int[3];
+                    postCountMap.put(pt, info);
+                }
+                info[0]++;
+                info[1] = i;
+                info[2] = j;
             }
         }
 
-        postDrawList.clear();
-        postVoltageMap.clear();
-        badConnectionList.clear();
-        for (Map.Entry<Point, Integer> entry : postCountMap.entrySet()) {
-            if (entry.getValue() != 2) {
+        clearPostDrawList();
+        if (postDrawPostNumbers.length < postCountMap.size()) {
+            postDrawPostNumbers = new int[postCountMap.size()];
+        }
+        for (Map.Entry<Point, int[]> entry : postCountMap.entrySet()) {
+            int[] info = entry.getValue();
+            if (info[0] != 2) {
+                postDrawPostNumbers[postDrawList.size()] = info[2];
                 postDrawList.add(entry.getKey());
+                postDrawElms.add(elmList.get(info[1]));
             }
 
             // look for bad connections, posts not connected to other elements which
             // intersect
             // other elements' bounding boxes
-            if (entry.getValue() == 1) {
+            if (info[0] == 1) {
                 boolean bad = false;
                 Point cn = entry.getKey();
                 for (int j = 0; j < elmList.size() && !bad; j++) {
@@ -896,10 +1107,25 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         }
     }
 
+    void clearPostDrawList() {
+        postDrawList.clear();
+        postDrawElms.clear();
+        badConnectionList.clear();
+    }
+
+    // voltage of the i'th point in postDrawList
+    double getPostDrawVoltage(int i) {
+        return postDrawElms.get(i).getPostVoltage(postDrawPostNumbers[i]);
+    }
+
     String stopMessage;
     CircuitElm stopElm;
 
+    // capacitors that the last validateCircuit() found shorted by wires
+    final ArrayList<CapacitorElm> shortedCapacitors = new ArrayList<>();
+
     boolean validateCircuit() {
+        shortedCapacitors.clear();
         for (CircuitElm ce : elmList) {
             if (!FindPathInfo.validateElement(this, ce)) {
                 stopElm = ce;
@@ -909,8 +1135,37 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         return true;
     }
 
+    // Redo the parts of validateCircuit() that can change while the topology doesn't. The
+    // loop and short checks only depend on the topology, so they still pass, but shorted
+    // capacitors have to be cleared again, and the current path checks also follow
+    // inductor currents.
+    void revalidateCircuit() {
+        for (CircuitElm ce : elmList) {
+            FindPathInfo.checkCurrentPaths(this, ce);
+        }
+        for (CapacitorElm ce : shortedCapacitors) {
+            ce.shorted();
+        }
+    }
+
     boolean needsStamp;
 
+    // when set, stamps go to this target instead of the circuit matrix.
+    // Used by subcircuits that condense their internal nodes (see CondensedSubcircuit).
+    private StampTarget stampTarget;
+
+    public void setStampTarget(StampTarget target) {
+        stampTarget = target;
+    }
+
+    // row of the current of voltage source vs in the matrix being stamped
+    public int getVoltageSourceNode(int vs) {
+        if (stampTarget != null) {
+            return stampTarget.getVoltageSourceNode(vs);
+        }
+        return nodeList.size() + vs;
+    }
+
     // If we detect a singular matrix during simulation, enable minimal
     // stabilization stamps (gmin + tiny voltage source series conductance)
     // and re-stamp the circuit. This avoids repeated LU failures during
@@ -925,8 +1180,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         stopElm = null;
         singularStabilizersActive = false;
         if (elmList.isEmpty()) {
-            postDrawList.clear();
-            badConnectionList.clear();
+            clearPostDrawList();
             return;
         }
         makePostDrawList();
@@ -938,9 +1192,17 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     // of dv in node j will increase the current into node i by x dv.
     // (Unless i or j is a voltage source node.)
     public void stampMatrix(int i, int j, double x) {
+        if (stampTarget != null) {
+            stampTarget.stampMatrix(i, j, x);
+            return;
+        }
         if (i > 0 && j > 0) {
             if (circuitNeedsMap) {
                 i = circuitRowInfo[i - 1].mapRow;
+                if (i < 0) {
+                    // row was simplified away
+                    return;
+                }
                 RowInfo ri = circuitRowInfo[j - 1];
                 if (ri.type == RowInfo.ROW_CONST) {
                     circuitRightSide[i] -= x * ri.value;
@@ -951,16 +1213,27 @@ public class CircuitSimulator extends BaseCirSimDelegate {
                 i--;
                 j--;
             }
-            circuitMatrix[i][j] += x;
+            if (circuitSparse) {
+                sparseMatrix.add(i, j, x);
+            } else {
+                circuitMatrix[i][j] += x;
+            }
         }
     }
 
     // stamp value x on the right side of row i, representing an
     // independent current source flowing into node i
     public void stampRightSide(int i, double x) {
+        if (stampTarget != null) {
+            stampTarget.stampRightSide(i, x);
+            return;
+        }
         if (i > 0) {
             if (circuitNeedsMap) {
                 i = circuitRowInfo[i - 1].mapRow;
+                if (i < 0) {
+                    return;
+                }
             } else {
                 i--;
             }
@@ -970,6 +1243,10 @@ public class CircuitSimulator extends BaseCirSimDelegate {
 
     // indicate that the value on the right side of row i changes in doStep()
     public void stampRightSide(int i) {
+        if (stampTarget != null) {
+            stampTarget.markRightSideChanges(i);
+            return;
+        }
         if (i > 0) {
             circuitRowInfo[i - 1].rsChanges = true;
         }
@@ -977,6 +1254,10 @@ public class CircuitSimulator extends BaseCirSimDelegate {
 
     // indicate that the values on the left side of row i change in doStep()
     public void stampNonLinear(int i) {
+        if (stampTarget != null) {
+            stampTarget.markNonLinear(i);
+            return;
+        }
         if (i > 0) {
             circuitRowInfo[i - 1].lsChanges = true;
         }
@@ -985,14 +1266,14 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     // control voltage source vs with voltage from n1 to n2 (must
     // also call stampVoltageSource())
     public void stampVCVS(int n1, int n2, double coef, int vs) {
-        int vn = nodeList.size() + vs;
+        int vn = getVoltageSourceNode(vs);
         stampMatrix(vn, n1, coef);
         stampMatrix(vn, n2, -coef);
     }
 
     // stamp independent voltage source #vs, from n1 to n2, amount v
     public void stampVoltageSource(int n1, int n2, int vs, double v) {
-        int vn = nodeList.size() + vs;
+        int vn = getVoltageSourceNode(vs);
         stampMatrix(vn, n1, -1);
         stampMatrix(vn, n2, 1);
         stampRightSide(vn, v);
@@ -1003,7 +1284,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     // use this if the amount of voltage is going to be updated in doStep(), by
     // updateVoltageSource()
     public void stampVoltageSource(int n1, int n2, int vs) {
-        int vn = nodeList.size() + vs;
+        int vn = getVoltageSourceNode(vs);
         stampMatrix(vn, n1, -1);
         stampMatrix(vn, n2, 1);
         stampRightSide(vn);
@@ -1013,7 +1294,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
 
     // update voltage source in doStep()
     public void updateVoltageSource(int n1, int n2, int vs, double v) {
-        int vn = nodeList.size() + vs;
+        int vn = getVoltageSourceNode(vs);
         stampRightSide(vn, v);
     }
 
@@ -1051,7 +1332,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
 
     // stamp a current source from n1 to n2 depending on current through vs
     public void stampCCCS(int n1, int n2, int vs, double gain) {
-        int vn = nodeList.size() + vs;
+        int vn = getVoltageSourceNode(vs);
         stampMatrix(n1, vn, gain);
         stampMatrix(n2, vn, -gain);
     }
@@ -1295,11 +1576,15 @@ public class CircuitSimulator extends BaseCirSimDelegate {
     public long lastIterTime;
     int steps = 0;
 
+    // when > 0, runCircuit() ignores wall-clock limits and steps until t reaches this time.
+    // Used by BatchRunner.
+    double batchEndTime;
+
     void dumpCircuitMatrix() {
         StringBuilder xBuilder = new StringBuilder();
         for (int j = 0; j < circuitMatrixSize; j++) {
             for (int i = 0; i < circuitMatrixSize; i++) {
-                xBuilder.append(circuitMatrix[j][i]).append(",");
+                xBuilder.append(circuitSparse ? sparseMatrix.get(j, i) : circuitMatrix[j][i]).append(",");
             }
             xBuilder.append("\n");
             console(xBuilder.toString());
@@ -1307,29 +1592,134 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         console("done");
     }
 
+    boolean hasCircuitMatrix() {
+        return circuitSparse ? sparseMatrix != null : circuitMatrix != null;
+    }
+
+    // factor the current circuit matrix with whichever solver it was stamped for
+    private boolean luFactorCircuitMatrix() {
+        if (circuitSparse) {
+            borderedSolverActive = circuitNonLinear && factorBorderedMatrix();
+            if (borderedSolverActive) {
+                return true;
+            }
+            // the pattern only changes on restamp, so sub-iterations reuse the symbolic analysis
+            return sparseLU.refactor(sparseMatrix);
+        }
+        return CircuitMath.lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute);
+    }
+
+    // factor a linear circuit matrix, reusing a cached factorization if we already factored
+    // the same matrix at this timestep
+    private boolean factorLinearCircuitMatrix() {
+        FactorizationCache.Entry entry;
+        if (circuitSparse) {
+            entry = factorizationCache.findSparse(timeStep, sparseMatrix);
+            if (entry != null) {
+                sparseLU = entry.sparseLU;
+                return true;
+            }
+            entry = factorizationCache.add(timeStep, false);
+            entry.setSparseMatrix(sparseMatrix);
+            sparseLU = entry.sparseLU;
+            if (!sparseLU.refactor(sparseMatrix)) {
+                factorizationCache.remove(entry);
+                return false;
+            }
+            return true;
+        }
+
+        entry = factorizationCache.findDense(timeStep, circuitMatrix, circuitMatrixSize);
+        if (entry != null) {
+            entry.getDenseFactors(circuitMatrix, circuitPermute);
+            return true;
+        }
+        entry = factorizationCache.add(timeStep, true);
+        entry.setDenseMatrix(circuitMatrix, circuitMatrixSize);
+        if (!CircuitMath.lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+            factorizationCache.remove(entry);
+            return false;
+        }
+        entry.setDenseFactors(circuitMatrix, circuitPermute);
+        return true;
+    }
+
+    // factor the nonlinear border of the sparse matrix, setting up the split on first use
+    // or when doStep() changed rows outside the current border
+    private boolean factorBorderedMatrix() {
+        if (borderedSolverDisabled) {
+            return false;
+        }
+        if (!borderedSolver.coversChangedRows(sparseMatrix)) {
+            boolean[] borderMask = workspace.getBorderMask(circuitMatrixSize);
+            for (int i = 0; i != circuitMatrixFullSize; i++) {
+                RowInfo ri = circuitRowInfo[i];
+                if (ri.lsChanges) {
+                    borderMask[circuitNeedsMap ? ri.mapRow : i] = true;
+                }
+            }
+            for (int k = 0; k < sparseMatrix.dirtyCount; k++) {
+                borderMask[sparseMatrix.dirtyRows[k]] = true;
+            }
+            borderedSolver.addBorderRows(borderMask);
+            if (!borderedSolver.setup(origSparseMatrix, borderMask)) {
+                console("bordered solver not used, falling back to full sparse factorization");
+                borderedSolverDisabled = true;
+                return false;
+            }
+        }
+        return borderedSolver.factor(sparseMatrix);
+    }
+
+    private void luSolveCircuitMatrix(double[] rightSide) {
+        if (borderedSolverActive) {
+            borderedSolver.solve(rightSide);
+        } else if (circuitSparse) {
+            sparseLU.solve(rightSide);
+        } else {
+            CircuitMath.lu_solve(circuitMatrix, circuitMatrixSize, circuitPermute, rightSide);
+        }
+    }
+
     void runCircuit(boolean didAnalyze) {
-        if (circuitMatrix == null || elmList.isEmpty()) {
+        runCircuit(didAnalyze, getFrameTimeLimit());
+    }
+
+    // longest time the simulation may take between two frames, in ms
+    int getFrameTimeLimit() {
+        return (int) (1000 / minFrameRate);
+    }
+
+    /**
+     * Steps the circuit until it has caught up with the wall clock, or for at most
+     * timeLimit ms. Returns true if it stopped on the time limit while still behind; the
+     * time not simulated, up to getFrameTimeLimit(), is carried over to the next call.
+     */
+    boolean runCircuit(boolean didAnalyze, int timeLimit) {
+        if (!hasCircuitMatrix() || elmList.isEmpty()) {
             circuitMatrix = null;
-            return;
+            sparseMatrix = null;
+            return false;
         }
 
         boolean debugPrint = dumpMatrix;
         dumpMatrix = false;
 
-        long stepRate = (long) (160 * cirSim.getIterCount());
+        long stepRate = (long) (160 * getActiveDocument().getIterCount());
         long tm = System.currentTimeMillis();
         long frameStart = tm; // Capture start time of this simulation step
         long lit = lastIterTime;
-        if (lit == 0) {
+        boolean batch = batchEndTime > 0;
+        if (lit == 0 && !batch) {
             lastIterTime = tm;
-            return;
+            return false;
         }
 
         // Check if we don't need to run simulation (for very slow simulation speeds).
         // If the circuit changed, do at least one iteration to make sure everything is
         // consistent.
-        if (1000 >= stepRate * (tm - lastIterTime) && !didAnalyze) {
-            return;
+        if (1000 >= stepRate * (tm - lastIterTime) && !didAnalyze && !batch) {
+            return false;
         }
 
         boolean delayWireProcessing = scopeManager().canDelayWireProcessing();
@@ -1339,7 +1729,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
         // keep track of iterations completed without convergence issues
         int goodIterations = 100;
 
-        int frameTimeLimit = (int) (1000 / minFrameRate);
+        boolean behind = false;
 
         for (;;) {
             if (goodIterations >= 3 && timeStep < maxTimeStep) {
@@ -1351,9 +1741,11 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             }
 
             CircuitElm[] elmArr = this.elmArr;
+            CircuitElm[] stepElmArr = this.stepElmArr;
             for (CircuitElm circuitElm : elmArr) {
                 circuitElm.startIteration();
             }
+            digitalIslands.step();
 
             steps++;
 
@@ -1365,7 +1757,6 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             int circuitMatrixSize = this.circuitMatrixSize;
             double[][] circuitMatrix = this.circuitMatrix;
             double[] circuitRightSide = this.circuitRightSide;
-            int[] circuitPermute = this.circuitPermute;
             double[][] origMatrix = this.origMatrix;
             double[] origRightSide = this.origRightSide;
 
@@ -1379,12 +1770,16 @@ public class CircuitSimulator extends BaseCirSimDelegate {
                 }
 
                 if (circuitNonLinear) {
-                    for (int i = 0; i < circuitMatrixSize; i++) {
-                        System.arraycopy(origMatrix[i], 0, circuitMatrix[i], 0, circuitMatrixSize);
+                    if (circuitSparse) {
+                        sparseMatrix.copyFrom(origSparseMatrix);
+                    } else {
+                        for (int i = 0; i < circuitMatrixSize; i++) {
+                            System.arraycopy(origMatrix[i], 0, circuitMatrix[i], 0, circuitMatrixSize);
+                        }
                     }
                 }
 
-                for (CircuitElm circuitElm : elmArr) {
+                for (CircuitElm circuitElm : stepElmArr) {
                     circuitElm.doStep();
                     if (!converged && firstNonConvergedElm == null) {
                         firstNonConvergedElm = circuitElm;
@@ -1392,7 +1787,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
                 }
 
                 if (stopMessage != null) {
-                    return;
+                    return false;
                 }
 
                 if (debugPrint) {
@@ -1405,14 +1800,14 @@ public class CircuitSimulator extends BaseCirSimDelegate {
                     if (converged && subIter > 0) {
                         break;
                     }
-                    if (!CircuitMath.lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+                    if (!luFactorCircuitMatrix()) {
                         // If LU factorization fails, enable persistent stabilizers and re-stamp.
                         // This handles idealized/legacy configurations that are structurally singular.
                         if (!singularStabilizersActive) {
                             singularStabilizersActive = true;
                             console("Enabling singular-matrix stabilizers and re-stamping circuit");
                             stampCircuit();
-                            return;
+                            return false;
                         }
 
                         int failColPre = CircuitMath.getLastLuFailColumn();
@@ -1427,7 +1822,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
                         // Try a minimal stabilization by adding a tiny conductance to ground for each
                         // external node and refactoring once.
                         stampSingularMatrixStabilizers();
-                        if (!CircuitMath.lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+                        if (!luFactorCircuitMatrix()) {
                             int failColPost = CircuitMath.getLastLuFailColumn();
                             int failRowPost = CircuitMath.getLastLuFailRow();
                             double failPivotPost = CircuitMath.getLastLuFailPivotAbs();
@@ -1446,12 +1841,12 @@ public class CircuitSimulator extends BaseCirSimDelegate {
                                 dumpCircuitMatrix();
                             }
                             stop("Singular matrix!", null);
-                            return;
+                            return false;
                         }
                     }
                 }
 
-                CircuitMath.lu_solve(circuitMatrix, circuitMatrixSize, circuitPermute, circuitRightSide);
+                luSolveCircuitMatrix(circuitRightSide);
 
                 applySolvedRightSide(circuitRightSide);
 
@@ -1513,21 +1908,37 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             for (ScopeElm scopeElm : scopeElmArr) {
                 scopeElm.stepScope();
             }
-            CirSim cirSim = (CirSim) this.cirSim;
-            cirSim.callTimeStepHook();
+            if (getActiveDocument().isActive()) {
+                CirSim cirSim = (CirSim) this.cirSim;
+                cirSim.callTimeStepHook();
+            }
 
             // save last node voltages so we can restart the next iteration if necessary
             System.arraycopy(nodeVoltages, 0, lastNodeVoltages, 0, lastNodeVoltages.length);
             // console("set lastrightside at " + t + " " + lastNodeVoltages);
 
+            if (batch) {
+                if (t >= batchEndTime) {
+                    break;
+                }
+                continue;
+            }
+
             tm = System.currentTimeMillis();
             lit = tm;
             // Check whether enough time has elapsed to perform an *additional* iteration
             // after
             // those we have already completed. But limit total computation time to 50ms
             // (20fps) by default
-            if ((long) (timeStepCount - timeStepCountAtFrameStart) * 1000 >= stepRate * (tm - lastIterTime)
-                    || (tm - frameStart > frameTimeLimit)) {
+            long stepsDone = timeStepCount - timeStepCountAtFrameStart;
+            if (stepsDone * 1000 >= stepRate * (tm - lastIterTime)) {
+                break;
+            }
+            if (tm - frameStart > timeLimit) {
+                // keep the steps we owe, so a run split into slices goes as fast as one
+                // long run, but don't let a circuit that can't keep up build a backlog
+                behind = true;
+                lit = Math.max(lastIterTime + stepsDone * 1000 / stepRate, tm - getFrameTimeLimit());
                 break;
             }
             if (!simRunning) {
@@ -1540,6 +1951,7 @@ public class CircuitSimulator extends BaseCirSimDelegate {
             calcWireCurrents();
         }
         // System.out.println((System.currentTimeMillis()-lastFrameTime)/(double) iter);
+        return behind;
     }
 
     /**
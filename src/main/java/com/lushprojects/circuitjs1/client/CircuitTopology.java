@@ -0,0 +1,115 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.lushprojects.circuitjs1.client.element.CircuitElm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Snapshot of everything the connectivity checks in preStampCircuit() depend on: the element
+// objects, their node numbers and voltage source counts, and the connection, wire and ideal
+// capacitor flags used by findUnconnectedNodes() and FindPathInfo.
+//
+// Most edits (dragging a component around, changing a value with a slider) leave this
+// unchanged. In that case the unconnected node list and the loop and short checks of the
+// last successful analysis still hold, and cached factorizations stay usable. The snapshot
+// is taken after node allocation and doesn't replace it: the wire closure, node list and
+// stamp are still rebuilt, and the current path checks, which also depend on inductor
+// currents, still run (see CircuitSimulator.revalidateCircuit()).
+class CircuitTopology {
+
+    private CircuitElm[] elements = new CircuitElm[0];
+    private int elementCount;
+    private int[] data = new int[0];
+    private int dataLength;
+
+    // snapshot being built by update()
+    private CircuitElm[] newElements = new CircuitElm[0];
+    private int[] newData = new int[0];
+    private int newDataLength;
+
+    // true if the saved snapshot belongs to an analysis that completed without errors
+    private boolean valid;
+
+    void invalidate() {
+        valid = false;
+    }
+
+    // called once the analysis of the snapshot taken by the last update() succeeded
+    void markValid() {
+        valid = true;
+    }
+
+    /**
+     * Takes a snapshot of the current circuit, which must have its nodes allocated, and
+     * returns true if it is identical to the last valid one. The new snapshot replaces the
+     * saved one either way, and stays invalid until markValid() is called.
+     */
+    boolean update(ArrayList<CircuitElm> elmList) {
+        int count = elmList.size();
+        if (newElements.length < count) {
+            newElements = new CircuitElm[count];
+        }
+        newDataLength = 0;
+        for (int i = 0; i < count; i++) {
+            CircuitElm ce = elmList.get(i);
+            newElements[i] = ce;
+            addElement(ce);
+        }
+
+        boolean same = valid && count == elementCount && newDataLength == dataLength;
+        for (int i = 0; same && i < count; i++) {
+            same = newElements[i] == elements[i];
+        }
+        for (int i = 0; same && i < dataLength; i++) {
+            same = newData[i] == data[i];
+        }
+
+        CircuitElm[] elementsSwap = elements;
+        elements = newElements;
+        newElements = elementsSwap;
+        // don't keep removed elements alive
+        Arrays.fill(newElements, null);
+        elementCount = count;
+        int[] dataSwap = data;
+        data = newData;
+        newData = dataSwap;
+        dataLength = newDataLength;
+        valid = false;
+        return same;
+    }
+
+    private void addElement(CircuitElm ce) {
+        int posts = ce.getPostCount();
+        int connections = ce.getConnectionNodeCount();
+        add(posts);
+        add(ce.getInternalNodeCount());
+        add(ce.getVoltageSourceCount());
+        add((ce.isWireEquivalent() ? 1 : 0) | (ce.isIdealCapacitor() ? 2 : 0));
+        for (int j = 0; j < posts; j++) {
+            add(ce.getNode(j));
+        }
+        add(connections);
+        for (int j = 0; j < connections; j++) {
+            add(ce.getConnectionNode(j));
+            add(ce.hasGroundConnection(j) ? 1 : 0);
+            // pack the connection flags of row j into 32 bit words
+            int bits = 0;
+            for (int k = 0; k < connections; k++) {
+                if (k != j && ce.getConnection(j, k)) {
+                    bits |= 1 << (k & 31);
+                }
+                if ((k & 31) == 31 || k == connections - 1) {
+                    add(bits);
+                    bits = 0;
+                }
+            }
+        }
+    }
+
+    private void add(int x) {
+        if (newDataLength == newData.length) {
+            newData = Arrays.copyOf(newData, Math.max(64, newDataLength * 2));
+        }
+        newData[newDataLength++] = x;
+    }
+}
@@ -23,6 +23,8 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
     public String infoText;
     String rules;
     public Vector<String> rulesLeft, rulesRight;
+    // rulesLeft and rulesRight compiled, null if CustomLogicElm must interpret them
+    public CustomLogicRules compiledRules;
     public boolean dumped;
     public boolean triState;
     private CircuitDocument circuitDocument;
@@ -69,6 +71,7 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
         rulesLeft = new Vector<String>();
         rulesRight = new Vector<String>();
         rules = "";
+        compiledRules = CustomLogicRules.compile(rulesLeft, rulesRight, 0);
     }
 
     CustomLogicModel(CustomLogicModel copy) {
@@ -79,6 +82,7 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
         rules = copy.rules;
         rulesLeft = copy.rulesLeft;
         rulesRight = copy.rulesRight;
+        compiledRules = copy.compiledRules;
     }
 
     public static void undumpModel(StringTokenizer st) {
@@ -186,24 +190,25 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
             String[] s0 = s.replaceAll(" ", "").split("=");
             if (s0.length != 2) {
                 Window.alert("Error on line " + (i + 1) + " of model description");
-                return;
+                break;
             }
             if (s0[0].length() < inputs.length) {
                 Window.alert("Model must have >= " + (inputs.length) + " digits on left side");
-                return;
+                break;
             }
             if (s0[0].length() > inputs.length + outputs.length) {
                 Window.alert("Model must have <= " + (inputs.length + outputs.length) + " digits on left side");
-                return;
+                break;
             }
             if (s0[1].length() != outputs.length) {
                 Window.alert("Model must have " + (outputs.length) + " digits on right side");
-                return;
+                break;
             }
             String rl = s0[0];
             boolean[] used = new boolean[26];
             int j;
             String newRl = "";
+            boolean badChar = false;
             for (j = 0; j != rl.length(); j++) {
                 char x = rl.charAt(j);
                 if (x == '?' || x == '+' || x == '-' || x == '0' || x == '1') {
@@ -212,7 +217,8 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
                 }
                 if (x < 'a' || x > 'z') {
                     Window.alert("Error on line " + (i + 1) + " of model description");
-                    return;
+                    badChar = true;
+                    break;
                 }
                 // if a letter appears twice, capitalize it the 2nd time so we can compare
                 if (used[x - 'a']) {
@@ -222,6 +228,9 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
                 used[x - 'a'] = true;
                 newRl += x;
             }
+            // keep the rules before the bad line, like the other errors
+            if (badChar)
+                break;
             String rr = s0[1];
             if (rr.contains("_")) {
                 triState = true;
@@ -229,6 +238,7 @@ public class CustomLogicModel implements Editable, SimulationContextAware {
             rulesLeft.add(newRl);
             rulesRight.add(s0[1]);
         }
+        compiledRules = CustomLogicRules.compile(rulesLeft, rulesRight, outputs.length);
     }
 
     public String dump() {
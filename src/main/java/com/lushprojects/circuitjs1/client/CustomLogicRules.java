@@ -0,0 +1,194 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+// Rules of a CustomLogicModel compiled to bit masks.
+//
+// The pin values a rule looks at are packed into an int, one bit per pin in pin order,
+// so a rule matches when a few masked compares succeed: fixed 0/1 digits (care mask and
+// value), + and - transitions against the state of the previous step, and repeated
+// pattern letters, which must equal the pin where the letter first appeared. If no rule
+// has a transition, the outcome only depends on the current pins, and match() is a
+// lookup in a table of the first matching rule for every state.
+//
+// Compiled rules are immutable and shared by all elements using the model. compile()
+// returns null for rules it can't express this way (more than 32 pins on the left side,
+// or an output taken from a pattern letter the rule doesn't set), which
+// CustomLogicElm then interprets as before.
+public final class CustomLogicRules {
+
+    public static final int OUTPUT_LOW = 0;
+    public static final int OUTPUT_HIGH = 1;
+    public static final int OUTPUT_HIGH_Z = 2;
+    // OUTPUT_PIN + n: value of pin n
+    public static final int OUTPUT_PIN = 3;
+
+    // largest left side that gets a lookup table (4096 entries)
+    private static final int MAX_TABLE_BITS = 12;
+
+    private final int ruleCount;
+    private final int pinCount;
+    private final int outputCount;
+
+    // indexed by rule
+    private final int[] careMask;
+    private final int[] careValue;
+    private final int[] riseMask;
+    private final int[] fallMask;
+    // pairs of pins that must be equal, rule r has pairs equalStart[r] to equalStart[r+1]-1
+    private final int[] equalStart;
+    private final int[] equalPin;
+    private final int[] equalFirst;
+    // rule r sets output n to outputs[r * outputCount + n]
+    private final int[] outputs;
+
+    // first matching rule for every state, or null if a rule has a transition
+    private int[] table;
+
+    private CustomLogicRules(int ruleCount, int pinCount, int outputCount, int equalCount) {
+        this.ruleCount = ruleCount;
+        this.pinCount = pinCount;
+        this.outputCount = outputCount;
+        careMask = new int[ruleCount];
+        careValue = new int[ruleCount];
+        riseMask = new int[ruleCount];
+        fallMask = new int[ruleCount];
+        equalStart = new int[ruleCount + 1];
+        equalPin = new int[equalCount];
+        equalFirst = new int[equalCount];
+        outputs = new int[ruleCount * outputCount];
+    }
+
+    /**
+     * Compiles rules in the form CustomLogicModel.parseRules() leaves them: left sides
+     * with a lowercase letter where a pattern letter first appears and uppercase after
+     * that. Returns null if they can't be compiled.
+     */
+    public static CustomLogicRules compile(Vector<String> rulesLeft, Vector<String> rulesRight, int outputCount) {
+        int ruleCount = rulesLeft.size();
+        int pinCount = 0;
+        int equalCount = 0;
+        for (int r = 0; r != ruleCount; r++) {
+            String rl = rulesLeft.get(r);
+            pinCount = Math.max(pinCount, rl.length());
+            for (int j = 0; j != rl.length(); j++) {
+                char x = rl.charAt(j);
+                if (x >= 'A' && x <= 'Z') {
+                    equalCount++;
+                }
+            }
+        }
+        if (pinCount > 32) {
+            return null;
+        }
+
+        CustomLogicRules rules = new CustomLogicRules(ruleCount, pinCount, outputCount, equalCount);
+        boolean transitions = false;
+        int equal = 0;
+        int[] letterPin = new int[26];
+        for (int r = 0; r != ruleCount; r++) {
+            String rl = rulesLeft.get(r);
+            rules.equalStart[r] = equal;
+            Arrays.fill(letterPin, -1);
+            for (int j = 0; j != rl.length(); j++) {
+                char x = rl.charAt(j);
+                int bit = 1 << j;
+                if (x == '0' || x == '1') {
+                    rules.careMask[r] |= bit;
+                    if (x == '1') {
+                        rules.careValue[r] |= bit;
+                    }
+                } else if (x == '+') {
+                    rules.riseMask[r] |= bit;
+                    transitions = true;
+                } else if (x == '-') {
+                    rules.fallMask[r] |= bit;
+                    transitions = true;
+                } else if (x >= 'a' && x <= 'z') {
+                    letterPin[x - 'a'] = j;
+                } else if (x >= 'A' && x <= 'Z') {
+                    rules.equalPin[equal] = j;
+                    rules.equalFirst[equal++] = letterPin[x - 'A'];
+                }
+            }
+
+            String rr = rulesRight.get(r);
+            for (int n = 0; n != outputCount; n++) {
+                char x = rr.charAt(n);
+                int output;
+                if (x >= 'a' && x <= 'z') {
+                    // a letter set by an earlier rule that didn't match; only the
+                    // interpreter keeps those
+                    if (letterPin[x - 'a'] < 0) {
+                        return null;
+                    }
+                    output = OUTPUT_PIN + letterPin[x - 'a'];
+                } else if (x == '_') {
+                    output = OUTPUT_HIGH_Z;
+                } else {
+                    output = (x == '1') ? OUTPUT_HIGH : OUTPUT_LOW;
+                }
+                rules.outputs[r * outputCount + n] = output;
+            }
+        }
+        rules.equalStart[ruleCount] = equal;
+
+        if (transitions || pinCount > MAX_TABLE_BITS) {
+            return rules;
+        }
+        int[] table = new int[1 << pinCount];
+        for (int state = 0; state != table.length; state++) {
+            table[state] = rules.search(state, 0);
+        }
+        rules.table = table;
+        return rules;
+    }
+
+    // number of pins, from the first, that the rules look at
+    public int getPinCount() {
+        return pinCount;
+    }
+
+    /**
+     * Returns the first rule matching the pins, or -1. Bit n of state is the value of pin
+     * n now, and of lastState its value after the previous step.
+     */
+    public int match(int state, int lastState) {
+        if (table != null) {
+            return table[state];
+        }
+        return search(state, lastState);
+    }
+
+    private int search(int state, int lastState) {
+        int rising = state & ~lastState;
+        int falling = ~state & lastState;
+        for (int r = 0; r != ruleCount; r++) {
+            if ((state & careMask[r]) != careValue[r] || (rising & riseMask[r]) != riseMask[r]
+                    || (falling & fallMask[r]) != fallMask[r]) {
+                continue;
+            }
+            int k = equalStart[r];
+            int end = equalStart[r + 1];
+            for (; k != end; k++) {
+                if (((state >>> equalPin[k]) & 1) != ((state >>> equalFirst[k]) & 1)) {
+                    break;
+                }
+            }
+            if (k == end) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    // what rule r does with output n: OUTPUT_LOW, OUTPUT_HIGH, OUTPUT_HIGH_Z or OUTPUT_PIN + pin
+    public int getOutput(int r, int n) {
+        return outputs[r * outputCount + n];
+    }
+
+    public int getOutputCount() {
+        return outputCount;
+    }
+}
@@ -0,0 +1,380 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.lushprojects.circuitjs1.client.element.CircuitElm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+// Event-driven simulation of the purely digital parts of a circuit.
+//
+// A logic element (see CircuitElm.isEventDriven()) drives its outputs with voltage sources
+// to ground and reads its inputs without drawing current. A node whose only connections
+// are one such output, inputs of logic elements and removable wires is a digital node: its
+// voltage is whatever the driving output says, so it doesn't need to be in the matrix.
+// Logic elements whose outputs are all on digital nodes form the digital islands. Their
+// nodes and voltage sources are marked as constant rows before the matrix is simplified,
+// which removes them from it, and the elements are left out of the doStep() loop.
+//
+// Once per time step, step() runs doStep() only for the island elements whose inputs
+// changed in the previous step, plus those with an input on an analog node, capturing
+// their output voltages through StampTarget. Changed outputs update the constant value of
+// the node's row, so the next solve hands them to every element on the node, and schedule
+// the elements reading that node for the next step. That is the same one-time-step
+// propagation delay gates have in the matrix when the circuit is linear; in nonlinear
+// circuits the matrix could propagate further within one step's subiterations. Because
+// that changes the timing of existing circuits, this is only used when
+// CircuitSimulator.eventDrivenLogic is set, which is off by default.
+final class DigitalIslands implements StampTarget {
+
+    private final CircuitSimulator simulator;
+
+    private CircuitElm[] elements = new CircuitElm[0];
+    private int count;
+    // indexed like the element list
+    private boolean[] inIsland = new boolean[0];
+    // island elements with an input on an analog node, evaluated every step
+    private int[] boundary = new int[0];
+    private int boundaryCount;
+
+    // indexed by node: level of digital nodes, elements reading them
+    private double[] level = new double[0];
+    private int[][] fanout = new int[0][];
+    private int digitalNodeCount;
+
+    // indexed by voltage source: node of island outputs, 0 for other sources
+    private int[] sourceNode = new int[0];
+    private double[] sourceValue = new double[0];
+    private int[] written = new int[16];
+    private int writtenCount;
+    private int nodeCount;
+
+    private int[] queue = new int[0];
+    private int[] evaluating = new int[0];
+    private int queueSize;
+    private boolean[] queued = new boolean[0];
+
+    private RowInfo[] rowInfo;
+    private double lastStepTime;
+
+    DigitalIslands(CircuitSimulator simulator) {
+        this.simulator = simulator;
+    }
+
+    /**
+     * Finds the digital islands of the circuit. Must be called after nodes and voltage
+     * sources have been allocated.
+     */
+    void build(ArrayList<CircuitElm> elmList, ArrayList<CircuitNode> nodeList, int voltageSourceCount, boolean enabled) {
+        count = 0;
+        inIsland = new boolean[0];
+        boundaryCount = 0;
+        digitalNodeCount = 0;
+        nodeCount = nodeList.size();
+        lastStepTime = Double.NaN;
+        if (sourceNode.length < voltageSourceCount) {
+            sourceNode = new int[voltageSourceCount];
+            sourceValue = new double[voltageSourceCount];
+        } else {
+            Arrays.fill(sourceNode, 0);
+        }
+        if (!enabled) {
+            return;
+        }
+
+        // logic elements, and their first voltage source
+        int n = elmList.size();
+        boolean[] logic = new boolean[n];
+        int[] firstSource = new int[n];
+        int vscount = 0;
+        boolean any = false;
+        for (int i = 0; i < n; i++) {
+            CircuitElm ce = elmList.get(i);
+            firstSource[i] = vscount;
+            int vsc = ce.getVoltageSourceCount();
+            vscount += vsc;
+            if (ce.isEventDriven() && ce.getInternalNodeCount() == 0 && countOutputs(ce) == vsc) {
+                logic[i] = any = true;
+            }
+        }
+        if (!any) {
+            return;
+        }
+        IdentityHashMap<CircuitElm, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (logic[i]) {
+                index.put(elmList.get(i), i);
+            }
+        }
+
+        // nodes driven by exactly one logic output and otherwise connected to logic inputs
+        // and wires
+        int[] driver = new int[nodeCount];
+        Arrays.fill(driver, -1);
+        for (int node = 1; node < nodeCount; node++) {
+            CircuitNode cn = nodeList.get(node);
+            if (cn.internal) {
+                continue;
+            }
+            int drv = -1;
+            boolean ok = true;
+            for (int k = 0; k < cn.links.size() && ok; k++) {
+                CircuitNodeLink link = cn.links.get(k);
+                Integer e = index.get(link.elm);
+                if (e == null) {
+                    ok = link.elm.isRemovableWire();
+                } else if (link.elm.hasGroundConnection(link.num)) {
+                    ok = drv < 0;
+                    drv = e;
+                }
+            }
+            if (ok && drv >= 0) {
+                driver[node] = drv;
+            }
+        }
+
+        // island elements have all their outputs on such nodes
+        boolean[] island = new boolean[n];
+        inIsland = island;
+        for (int i = 0; i < n; i++) {
+            if (!logic[i]) {
+                continue;
+            }
+            CircuitElm ce = elmList.get(i);
+            island[i] = true;
+            for (int p = 0; p < ce.getPostCount() && island[i]; p++) {
+                if (ce.hasGroundConnection(p) && driver[ce.getNode(p)] != i) {
+                    island[i] = false;
+                }
+            }
+        }
+
+        int[] elementIndex = new int[n];
+        if (elements.length < n) {
+            elements = new CircuitElm[n];
+        }
+        for (int i = 0; i < n; i++) {
+            if (island[i]) {
+                elementIndex[i] = count;
+                elements[count++] = elmList.get(i);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        Arrays.fill(elements, count, elements.length, null);
+
+        if (level.length < nodeCount) {
+            level = new double[nodeCount];
+            fanout = new int[nodeCount][];
+        } else {
+            Arrays.fill(level, 0);
+            Arrays.fill(fanout, null);
+        }
+        if (boundary.length < count) {
+            boundary = new int[count];
+            queue = new int[count];
+            evaluating = new int[count];
+            queued = new boolean[count];
+        }
+
+        queueSize = 0;
+        Arrays.fill(queued, true);
+
+        // outputs, and readers of each digital node
+        int[] fanoutCount = new int[nodeCount];
+        for (int i = 0; i < n; i++) {
+            if (!island[i]) {
+                continue;
+            }
+            CircuitElm ce = elmList.get(i);
+            int source = firstSource[i];
+            for (int p = 0; p < ce.getPostCount(); p++) {
+                int node = ce.getNode(p);
+                if (ce.hasGroundConnection(p)) {
+                    sourceNode[source++] = node;
+                } else if (isDigital(node, driver, island)) {
+                    fanoutCount[node]++;
+                }
+            }
+        }
+        for (int node = 1; node < nodeCount; node++) {
+            if (isDigital(node, driver, island)) {
+                fanout[node] = new int[fanoutCount[node]];
+                fanoutCount[node] = 0;
+                digitalNodeCount++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!island[i]) {
+                continue;
+            }
+            CircuitElm ce = elmList.get(i);
+            int e = elementIndex[i];
+            boolean analogInput = false;
+            for (int p = 0; p < ce.getPostCount(); p++) {
+                int node = ce.getNode(p);
+                if (ce.hasGroundConnection(p) || node == 0) {
+                    continue;
+                }
+                if (isDigital(node, driver, island)) {
+                    int[] readers = fanout[node];
+                    // an element may read a node on several inputs
+                    if (fanoutCount[node] == 0 || readers[fanoutCount[node] - 1] != e) {
+                        readers[fanoutCount[node]++] = e;
+                    }
+                } else {
+                    analogInput = true;
+                }
+            }
+            // evaluate everything in the first step. Boundary elements are evaluated every
+            // step anyway, so they stay marked as queued and never enter the queue.
+            if (analogInput) {
+                boundary[boundaryCount++] = e;
+            } else {
+                queue[queueSize++] = e;
+            }
+        }
+        for (int node = 1; node < nodeCount; node++) {
+            if (fanout[node] != null && fanoutCount[node] < fanout[node].length) {
+                fanout[node] = Arrays.copyOf(fanout[node], fanoutCount[node]);
+            }
+        }
+    }
+
+    private static int countOutputs(CircuitElm ce) {
+        int outputs = 0;
+        for (int p = 0; p < ce.getPostCount(); p++) {
+            if (ce.hasGroundConnection(p)) {
+                outputs++;
+            }
+        }
+        return outputs;
+    }
+
+    private static boolean isDigital(int node, int[] driver, boolean[] island) {
+        return node > 0 && driver[node] >= 0 && island[driver[node]];
+    }
+
+    // number of elements and nodes taken out of the matrix
+    int getElementCount() {
+        return count;
+    }
+
+    int getNodeCount() {
+        return digitalNodeCount;
+    }
+
+    /**
+     * Marks the rows of digital nodes and island voltage sources as constant, so
+     * simplification removes them from the matrix. Called after stamping.
+     */
+    void markRows(RowInfo[] rowInfo) {
+        this.rowInfo = rowInfo;
+        if (count == 0) {
+            return;
+        }
+        for (int node = 1; node < nodeCount; node++) {
+            if (fanout[node] != null) {
+                RowInfo ri = rowInfo[node - 1];
+                ri.type = RowInfo.ROW_CONST;
+                ri.value = level[node];
+                ri.dropRow = true;
+            }
+        }
+        for (int vs = 0; vs < sourceNode.length; vs++) {
+            if (sourceNode[vs] > 0) {
+                RowInfo ri = rowInfo[nodeCount - 1 + vs];
+                // no current flows into logic inputs
+                ri.type = RowInfo.ROW_CONST;
+                ri.value = 0;
+                ri.dropRow = true;
+            }
+        }
+    }
+
+    // is element i of the element list simulated here instead of in the doStep() loop?
+    boolean contains(int i) {
+        return i < inIsland.length && inIsland[i];
+    }
+
+    /**
+     * Evaluates the island elements whose inputs changed, once per time step.
+     */
+    void step() {
+        if (count == 0 || simulator.t == lastStepTime) {
+            // nothing to do, or a step being retried with a smaller time step
+            return;
+        }
+        lastStepTime = simulator.t;
+
+        int[] list = queue;
+        int size = queueSize;
+        queue = evaluating;
+        evaluating = list;
+        queueSize = 0;
+        for (int k = 0; k < size; k++) {
+            queued[list[k]] = false;
+        }
+
+        writtenCount = 0;
+        simulator.setStampTarget(this);
+        try {
+            for (int k = 0; k < size; k++) {
+                elements[list[k]].doStep();
+            }
+            for (int k = 0; k < boundaryCount; k++) {
+                elements[boundary[k]].doStep();
+            }
+        } finally {
+            simulator.setStampTarget(null);
+        }
+
+        for (int k = 0; k < writtenCount; k++) {
+            int vs = written[k];
+            int node = sourceNode[vs];
+            double v = sourceValue[vs];
+            if (v == level[node]) {
+                continue;
+            }
+            level[node] = v;
+            rowInfo[node - 1].value = v;
+            int[] readers = fanout[node];
+            for (int r = 0; r < readers.length; r++) {
+                int e = readers[r];
+                if (!queued[e]) {
+                    queued[e] = true;
+                    queue[queueSize++] = e;
+                }
+            }
+        }
+    }
+
+    public void stampMatrix(int i, int j, double x) {
+        // logic elements don't change the matrix in doStep()
+    }
+
+    // updateVoltageSource() of an island output
+    public void stampRightSide(int i, double x) {
+        int vs = i - nodeCount;
+        if (vs < 0 || vs >= sourceNode.length || sourceNode[vs] == 0) {
+            return;
+        }
+        sourceValue[vs] = x;
+        if (writtenCount == written.length) {
+            written = Arrays.copyOf(written, writtenCount * 2);
+        }
+        written[writtenCount++] = vs;
+    }
+
+    public void markRightSideChanges(int i) {
+    }
+
+    public void markNonLinear(int i) {
+    }
+
+    // the same rows as the circuit matrix, so stampRightSide() can find the source
+    public int getVoltageSourceNode(int vs) {
+        return nodeCount + vs;
+    }
+}
@@ -26,6 +26,7 @@ public class DocumentManager {
     private CircuitDocument activeDocument;
     private final Stack<String> closedTabsHistory = new Stack<>();
     private final List<DocumentManagerListener> listeners = new ArrayList<>();
+    private final BackgroundScheduler backgroundScheduler = new BackgroundScheduler(this);
     private final Timer saveTimer = new Timer() {
         @Override
         public void run() {
@@ -76,6 +77,7 @@ public class DocumentManager {
         int index = documents.indexOf(document);
         documents.remove(document);
         notifyDocumentRemoved(document);
+        backgroundScheduler.update();
 
         if (document == activeDocument) {
             if (documents.isEmpty()) {
@@ -155,6 +157,42 @@ public class DocumentManager {
         }.schedule(1);
     }
 
+    void updateBackgroundScheduler() {
+        backgroundScheduler.update();
+    }
+
+    /**
+     * Percentage of CPU time shared by the simulations of all documents that aren't shown.
+     */
+    public int getBackgroundPercent() {
+        return backgroundScheduler.getBackgroundPercent();
+    }
+
+    public void setBackgroundPercent(int percent) {
+        backgroundScheduler.setBackgroundPercent(percent);
+    }
+
+    /**
+     * Memory limit of each undo and redo stack of every document, in MB.
+     */
+    public int getUndoMemoryLimitMB() {
+        return UndoManager.getMemoryLimitMB();
+    }
+
+    public void setUndoMemoryLimitMB(int megabytes) {
+        OptionsManager.setOptionInStorage(UndoManager.MEMORY_LIMIT_OPTION, megabytes);
+        for (CircuitDocument document : documents) {
+            document.undoManager.setMemoryLimitMB(megabytes);
+        }
+    }
+
+    /**
+     * Fraction of the CPU time the document's simulation used in the last second.
+     */
+    public double getCpuShare(CircuitDocument document) {
+        return backgroundScheduler.getCpuShare(document);
+    }
+
     public CircuitDocument getActiveDocument() {
         return activeDocument;
     }
@@ -0,0 +1,437 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.lushprojects.circuitjs1.client.element.CircuitElm;
+import com.lushprojects.circuitjs1.client.element.ElmGeometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Uniform grid over the circuit elements, used by the editor for hit testing.
+//
+// Each element is entered in every cell touched by its bounding box, its posts and its
+// endpoints, and in a row and a column list for the coordinates of its endpoints.
+//
+// The grid is kept up to date incrementally. The ElementList tells it about appended and
+// removed elements, and each element's ElmGeometry tells it when its endpoints or its
+// bounding box were written. update() then re-enters only the reported elements whose
+// endpoints (geometry version) or bounding box actually changed, so its cost follows what
+// was edited or drawn, not the size of the circuit. Other changes to the list, like
+// clearing it when a circuit is loaded, rebuild the grid.
+//
+// Most elements compute their bounding box in draw(). Until they have done so for their
+// current endpoints, queryVisible() returns them wherever they are, so the renderer
+// draws them once and their box becomes usable for culling.
+//
+// Elements get slots in the order they are added, so slot order is list order and
+// queries return elements in element list order: callers that break ties by list order
+// behave exactly like a scan of the whole list. Slots of removed elements are reclaimed
+// by rebuilding once they outnumber the live ones.
+class ElementGrid implements ElementList.Listener, ElmGeometry.Listener {
+
+    // 64 grid units per cell, a few typical element lengths
+    private static final int CELL_SHIFT = 6;
+
+    // elements covering more cells than this are returned by every query instead
+    private static final int MAX_ELEMENT_CELLS = 1024;
+
+    // removed slots tolerated on top of the live ones before rebuilding
+    private static final int MIN_FREE_SLOTS = 64;
+
+    private static final class IndexList {
+        int[] items = new int[4];
+        int size;
+
+        void add(int index) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = index;
+        }
+
+        void remove(int index) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == index) {
+                    items[i] = items[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private final HashMap<Integer, IndexList> cells = new HashMap<>();
+    private final HashMap<Integer, IndexList> rows = new HashMap<>();
+    private final HashMap<Integer, IndexList> columns = new HashMap<>();
+    private final IndexList oversized = new IndexList();
+    // elements whose bounding box hasn't been computed for their endpoints
+    private final IndexList unboxed = new IndexList();
+
+    private ElementList elmList;
+    private boolean needsRebuild;
+    // slot of each element, for removals
+    private final IdentityHashMap<CircuitElm, Integer> slots = new IdentityHashMap<>();
+    // slots whose element was added or reported a geometry change since the last update()
+    private final IndexList changed = new IndexList();
+
+    // per slot; elements[slot] is null for removed elements
+    private CircuitElm[] elements = new CircuitElm[0];
+    private int slotCount;
+    private boolean[] entered = new boolean[0];
+    private int[] versions = new int[0];
+    // cell keys of each element, null if it is in the oversized list
+    private int[][] elementCells = new int[0][];
+    // x1, y1, x2, y2 of each element when it was entered
+    private int[] endpoints = new int[0];
+    // bounding box (x, y, width, height) of each element when it was entered
+    private int[] boxes = new int[0];
+    private boolean[] boxCurrent = new boolean[0];
+
+    // query results, deduplicated with marks
+    private int[] marks = new int[0];
+    private int markStamp;
+    private int[] result = new int[16];
+    private int resultSize;
+
+    private final IndexList keyBuffer = new IndexList();
+
+    /**
+     * Brings the grid up to date with the element list, which it follows from then on.
+     */
+    void update(ElementList list) {
+        if (list != elmList) {
+            if (elmList != null) {
+                elmList.setListener(null);
+            }
+            elmList = list;
+            list.setListener(this);
+            needsRebuild = true;
+        }
+        if (needsRebuild || slotCount - slots.size() > slots.size() + MIN_FREE_SLOTS) {
+            rebuild();
+            return;
+        }
+        for (int k = 0; k < changed.size; k++) {
+            int slot = changed.items[k];
+            CircuitElm ce = elements[slot];
+            if (ce == null) {
+                continue;
+            }
+            ce.geom().clearChangeReported();
+            if (!entered[slot]) {
+                addElement(slot, ce);
+            } else if (ce.geom().getVersion() != versions[slot] || !sameBox(slot, ce.getBoundingBox()) ||
+                    ce.geom().isBoundingBoxCurrent() != boxCurrent[slot]) {
+                removeElement(slot);
+                addElement(slot, ce);
+            }
+        }
+        changed.size = 0;
+    }
+
+    public void elementAdded(CircuitElm ce) {
+        if (needsRebuild) {
+            return;
+        }
+        int slot = slotCount++;
+        ensureSlots(slotCount);
+        elements[slot] = ce;
+        entered[slot] = false;
+        slots.put(ce, slot);
+        ce.geom().setListener(this, slot);
+        changed.add(slot);
+    }
+
+    public void elementRemoved(CircuitElm ce) {
+        if (needsRebuild) {
+            return;
+        }
+        Integer slot = slots.remove(ce);
+        if (slot == null) {
+            return;
+        }
+        if (entered[slot]) {
+            removeElement(slot);
+        }
+        elements[slot] = null;
+        ce.geom().setListener(null, -1);
+    }
+
+    public void elementsChanged() {
+        needsRebuild = true;
+    }
+
+    public void geometryChanged(CircuitElm ce, int slot) {
+        if (!needsRebuild) {
+            changed.add(slot);
+        }
+    }
+
+    private void rebuild() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (elements[slot] != null) {
+                elements[slot].geom().setListener(null, -1);
+            }
+        }
+        cells.clear();
+        rows.clear();
+        columns.clear();
+        oversized.size = 0;
+        unboxed.size = 0;
+        changed.size = 0;
+        slots.clear();
+        needsRebuild = false;
+        int count = elmList.size();
+        ensureSlots(count);
+        Arrays.fill(elements, count, elements.length, null);
+        slotCount = count;
+        for (int i = 0; i < count; i++) {
+            CircuitElm ce = elmList.get(i);
+            elements[i] = ce;
+            slots.put(ce, i);
+            addElement(i, ce);
+            ce.geom().setListener(this, i);
+        }
+    }
+
+    private void ensureSlots(int count) {
+        if (elements.length >= count) {
+            return;
+        }
+        int size = Math.max(count, elements.length * 2);
+        elements = Arrays.copyOf(elements, size);
+        entered = Arrays.copyOf(entered, size);
+        versions = Arrays.copyOf(versions, size);
+        elementCells = Arrays.copyOf(elementCells, size);
+        endpoints = Arrays.copyOf(endpoints, 4 * size);
+        boxes = Arrays.copyOf(boxes, 4 * size);
+        boxCurrent = Arrays.copyOf(boxCurrent, size);
+        marks = new int[size];
+        markStamp = 0;
+    }
+
+    private void addElement(int i, CircuitElm ce) {
+        entered[i] = true;
+        versions[i] = ce.geom().getVersion();
+
+        Rectangle bb = ce.getBoundingBox();
+        int b = 4 * i;
+        boxes[b] = bb.x;
+        boxes[b + 1] = bb.y;
+        boxes[b + 2] = bb.width;
+        boxes[b + 3] = bb.height;
+        boxCurrent[i] = ce.geom().isBoundingBoxCurrent();
+        if (!boxCurrent[i]) {
+            unboxed.add(i);
+        }
+        int cx1 = bb.x >> CELL_SHIFT;
+        int cy1 = bb.y >> CELL_SHIFT;
+        int cx2 = (bb.x + Math.max(bb.width, 0)) >> CELL_SHIFT;
+        int cy2 = (bb.y + Math.max(bb.height, 0)) >> CELL_SHIFT;
+        if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MAX_ELEMENT_CELLS) {
+            elementCells[i] = null;
+            oversized.add(i);
+        } else {
+            keyBuffer.size = 0;
+            for (int cx = cx1; cx <= cx2; cx++) {
+                for (int cy = cy1; cy <= cy2; cy++) {
+                    keyBuffer.add(cellKey(cx, cy));
+                }
+            }
+            // posts and endpoints normally lie in the bounding box, but not always
+            int posts = ce.getPostCount();
+            for (int j = 0; j < posts; j++) {
+                Point pt = ce.getPost(j);
+                addPointKey(pt.x, pt.y, cx1, cy1, cx2, cy2);
+            }
+            addPointKey(ce.getX(), ce.getY(), cx1, cy1, cx2, cy2);
+            addPointKey(ce.getX2(), ce.getY2(), cx1, cy1, cx2, cy2);
+
+            int[] keys = Arrays.copyOf(keyBuffer.items, keyBuffer.size);
+            elementCells[i] = keys;
+            for (int key : keys) {
+                getList(cells, key).add(i);
+            }
+        }
+
+        int e = 4 * i;
+        endpoints[e] = ce.getX();
+        endpoints[e + 1] = ce.getY();
+        endpoints[e + 2] = ce.getX2();
+        endpoints[e + 3] = ce.getY2();
+        getList(columns, endpoints[e]).add(i);
+        getList(rows, endpoints[e + 1]).add(i);
+        if (endpoints[e + 2] != endpoints[e]) {
+            getList(columns, endpoints[e + 2]).add(i);
+        }
+        if (endpoints[e + 3] != endpoints[e + 1]) {
+            getList(rows, endpoints[e + 3]).add(i);
+        }
+    }
+
+    private boolean sameBox(int i, Rectangle bb) {
+        int b = 4 * i;
+        return boxes[b] == bb.x && boxes[b + 1] == bb.y && boxes[b + 2] == bb.width && boxes[b + 3] == bb.height;
+    }
+
+    private void addPointKey(int x, int y, int cx1, int cy1, int cx2, int cy2) {
+        int cx = x >> CELL_SHIFT;
+        int cy = y >> CELL_SHIFT;
+        if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2) {
+            return;
+        }
+        int key = cellKey(cx, cy);
+        for (int k = 0; k < keyBuffer.size; k++) {
+            if (keyBuffer.items[k] == key) {
+                return;
+            }
+        }
+        keyBuffer.add(key);
+    }
+
+    private void removeElement(int i) {
+        entered[i] = false;
+        if (!boxCurrent[i]) {
+            unboxed.remove(i);
+        }
+        int[] keys = elementCells[i];
+        if (keys == null) {
+            oversized.remove(i);
+        } else {
+            for (int key : keys) {
+                removeFromList(cells, key, i);
+            }
+        }
+        int e = 4 * i;
+        removeFromList(columns, endpoints[e], i);
+        removeFromList(rows, endpoints[e + 1], i);
+        if (endpoints[e + 2] != endpoints[e]) {
+            removeFromList(columns, endpoints[e + 2], i);
+        }
+        if (endpoints[e + 3] != endpoints[e + 1]) {
+            removeFromList(rows, endpoints[e + 3], i);
+        }
+    }
+
+    private static IndexList getList(HashMap<Integer, IndexList> map, int key) {
+        IndexList list = map.get(key);
+        if (list == null) {
+            list = new IndexList();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    private static void removeFromList(HashMap<Integer, IndexList> map, int key, int index) {
+        IndexList list = map.get(key);
+        if (list != null) {
+            list.remove(index);
+            if (list.size == 0) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static int cellKey(int cx, int cy) {
+        return (cx << 16) | (cy & 0xffff);
+    }
+
+    /**
+     * Finds the elements that may have their bounding box, a post or an endpoint in the
+     * rectangle from (x1, y1) to (x2, y2), inclusive. The caller still has to test them.
+     */
+    void queryRect(int x1, int y1, int x2, int y2, ArrayList<CircuitElm> out) {
+        startQuery();
+        addRect(x1, y1, x2, y2);
+        finishQuery(out);
+    }
+
+    /**
+     * Finds the elements that may have to be drawn to show the rectangle from (x1, y1) to
+     * (x2, y2): those of queryRect(), and those whose bounding box isn't known yet.
+     */
+    void queryVisible(int x1, int y1, int x2, int y2, ArrayList<CircuitElm> out) {
+        startQuery();
+        addRect(x1, y1, x2, y2);
+        addResults(unboxed);
+        finishQuery(out);
+    }
+
+    private void addRect(int x1, int y1, int x2, int y2) {
+        int cx1 = x1 >> CELL_SHIFT;
+        int cy1 = y1 >> CELL_SHIFT;
+        int cx2 = x2 >> CELL_SHIFT;
+        int cy2 = y2 >> CELL_SHIFT;
+        if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > cells.size()) {
+            // large area: cheaper to go through the occupied cells
+            for (Map.Entry<Integer, IndexList> entry : cells.entrySet()) {
+                int key = entry.getKey();
+                int cx = key >> 16;
+                int cy = (short) key;
+                if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2) {
+                    addResults(entry.getValue());
+                }
+            }
+        } else {
+            for (int cx = cx1; cx <= cx2; cx++) {
+                for (int cy = cy1; cy <= cy2; cy++) {
+                    IndexList list = cells.get(cellKey(cx, cy));
+                    if (list != null) {
+                        addResults(list);
+                    }
+                }
+            }
+        }
+        addResults(oversized);
+    }
+
+    // elements with an endpoint at height y
+    void queryRow(int y, ArrayList<CircuitElm> out) {
+        startQuery();
+        IndexList list = rows.get(y);
+        if (list != null) {
+            addResults(list);
+        }
+        finishQuery(out);
+    }
+
+    // elements with an endpoint at x
+    void queryColumn(int x, ArrayList<CircuitElm> out) {
+        startQuery();
+        IndexList list = columns.get(x);
+        if (list != null) {
+            addResults(list);
+        }
+        finishQuery(out);
+    }
+
+    private void startQuery() {
+        resultSize = 0;
+        if (++markStamp == Integer.MAX_VALUE) {
+            Arrays.fill(marks, 0);
+            markStamp = 1;
+        }
+    }
+
+    private void addResults(IndexList list) {
+        for (int k = 0; k < list.size; k++) {
+            int i = list.items[k];
+            if (marks[i] != markStamp) {
+                marks[i] = markStamp;
+                if (resultSize == result.length) {
+                    result = Arrays.copyOf(result, resultSize * 2);
+                }
+                result[resultSize++] = i;
+            }
+        }
+    }
+
+    private void finishQuery(ArrayList<CircuitElm> out) {
+        Arrays.sort(result, 0, resultSize);
+        out.clear();
+        for (int k = 0; k < resultSize; k++) {
+            out.add(elements[result[k]]);
+        }
+    }
+}
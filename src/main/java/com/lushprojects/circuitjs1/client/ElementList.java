@@ -0,0 +1,140 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.lushprojects.circuitjs1.client.element.CircuitElm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+// The element list of a circuit. It tells a listener (the editor's ElementGrid) which
+// elements are appended and removed, so the listener can keep an index of the list up to
+// date without scanning it. Any other change (inserting in the middle, replacing, bulk
+// operations, clearing) is reported as a change of the whole list.
+public class ElementList extends ArrayList<CircuitElm> {
+
+    interface Listener {
+        void elementAdded(CircuitElm elm);
+
+        void elementRemoved(CircuitElm elm);
+
+        void elementsChanged();
+    }
+
+    private Listener listener;
+
+    ElementList(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private void changed() {
+        if (listener != null) {
+            listener.elementsChanged();
+        }
+    }
+
+    @Override
+    public boolean add(CircuitElm elm) {
+        super.add(elm);
+        if (listener != null) {
+            listener.elementAdded(elm);
+        }
+        return true;
+    }
+
+    @Override
+    public void add(int index, CircuitElm elm) {
+        super.add(index, elm);
+        changed();
+    }
+
+    @Override
+    public CircuitElm set(int index, CircuitElm elm) {
+        CircuitElm old = super.set(index, elm);
+        changed();
+        return old;
+    }
+
+    @Override
+    public CircuitElm remove(int index) {
+        CircuitElm elm = super.remove(index);
+        if (listener != null) {
+            listener.elementRemoved(elm);
+        }
+        return elm;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        changed();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends CircuitElm> c) {
+        boolean result = super.addAll(c);
+        changed();
+        return result;
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends CircuitElm> c) {
+        boolean result = super.addAll(index, c);
+        changed();
+        return result;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean result = super.removeAll(c);
+        changed();
+        return result;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        boolean result = super.retainAll(c);
+        changed();
+        return result;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super CircuitElm> filter) {
+        boolean result = super.removeIf(filter);
+        changed();
+        return result;
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<CircuitElm> operator) {
+        super.replaceAll(operator);
+        changed();
+    }
+
+    @Override
+    public void sort(Comparator<? super CircuitElm> c) {
+        super.sort(c);
+        changed();
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        super.removeRange(fromIndex, toIndex);
+        changed();
+    }
+}
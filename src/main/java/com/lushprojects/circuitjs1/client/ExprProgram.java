@@ -0,0 +1,569 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.Arrays;
+
+// Expression compiled to a flat stack program.
+//
+// The Expr tree is flattened in postfix order into an array of (opcode, argument) pairs,
+// with the Expr.E_* types as opcodes, and run over a double[] stack, so evaluating it
+// doesn't walk the tree or touch the children vectors. All operands are evaluated, also
+// the branch of ?: or select() that isn't taken; expressions have no side effects, so
+// that doesn't change the result.
+//
+// evalGradient() evaluates with dual numbers (forward mode automatic differentiation):
+// next to each value on the stack it carries the partial derivatives with respect to the
+// variables the expression reads, so the value and the exact derivatives come out of a
+// single pass. Comparisons, logic, floor(), step() and the like are treated as piecewise
+// constant, and min(), max(), clamp(), ?: and pwl() take the derivative of whichever
+// operand or segment they pick.
+//
+// The compiler also notes whether the expression is affine in the variables: built from
+// them, constants, +, -, multiplication by a constant and division by a constant, without
+// t, timestep, dadt() or last values. Such an expression can be stamped once instead of
+// being linearized every iteration.
+public final class ExprProgram {
+
+    private final int[] code;
+    private final double[] constants;
+
+    // variables (indexes into ExprState.values) that have a derivative column
+    private final int[] variables;
+    private final int columns;
+
+    private final double[] stack;
+    private final double[] gradients;
+
+    private final boolean linear;
+
+    public ExprProgram(Expr expr) {
+        Compiler compiler = new Compiler();
+        linear = compiler.compile(expr) != Compiler.NONLINEAR;
+        code = Arrays.copyOf(compiler.code, compiler.codeSize);
+        constants = Arrays.copyOf(compiler.constants, compiler.constantCount);
+        variables = Arrays.copyOf(compiler.variables, compiler.variableCount);
+        columns = compiler.variableCount;
+        stack = new double[Math.max(compiler.maxDepth, 1)];
+        gradients = new double[Math.max(compiler.maxDepth, 1) * columns];
+    }
+
+    private static final class Compiler {
+        // what compile() found a subexpression to be
+        static final int CONSTANT = 0;
+        static final int LINEAR = 1;
+        static final int NONLINEAR = 2;
+
+        int[] code = new int[32];
+        int codeSize;
+        double[] constants = new double[8];
+        int constantCount;
+        int[] variables = new int[10];
+        int variableCount;
+        int depth;
+        int maxDepth;
+
+        // returns CONSTANT, LINEAR or NONLINEAR
+        int compile(Expr e) {
+            if (e == null) {
+                // only after a parse error
+                emitConstant(0);
+                return CONSTANT;
+            }
+            int type = e.type;
+            int operands = (e.children == null) ? 0 : e.children.size();
+            int first = CONSTANT;
+            int second = CONSTANT;
+            int highest = CONSTANT;
+            for (int i = 0; i < operands; i++) {
+                int kind = compile(e.children.get(i));
+                if (i == 0) {
+                    first = kind;
+                } else if (i == 1) {
+                    second = kind;
+                }
+                highest = Math.max(highest, kind);
+            }
+            switch (type) {
+                case Expr.E_VAL:
+                    emitConstant(e.value);
+                    return CONSTANT;
+                case Expr.E_T:
+                case Expr.E_TIMESTEP:
+                case Expr.E_LASTOUTPUT:
+                    emit(type, 0, 1);
+                    return NONLINEAR;
+                default:
+                    break;
+            }
+            if (operands == 0) {
+                if (type >= Expr.E_LASTA) {
+                    emit(type, 0, 1);
+                    return NONLINEAR;
+                } else if (type >= Expr.E_DADT) {
+                    emit(type, getColumn(type - Expr.E_DADT), 1);
+                    return NONLINEAR;
+                } else if (type >= Expr.E_A) {
+                    emit(type, getColumn(type - Expr.E_A), 1);
+                    return LINEAR;
+                }
+                CirSim.console("unknown\n");
+                emitConstant(0);
+                return CONSTANT;
+            }
+            emit(type, operands, 1 - operands);
+            switch (type) {
+                case Expr.E_ADD:
+                case Expr.E_SUB:
+                case Expr.E_UMINUS:
+                    return highest;
+                case Expr.E_MUL:
+                    return Math.min(first + second, NONLINEAR);
+                case Expr.E_DIV:
+                    return second == CONSTANT ? first : NONLINEAR;
+                default:
+                    // functions of constants are constant
+                    return highest == CONSTANT ? CONSTANT : NONLINEAR;
+            }
+        }
+
+        private void emitConstant(double value) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = value;
+            emit(Expr.E_VAL, constantCount++, 1);
+        }
+
+        private void emit(int op, int arg, int push) {
+            if (codeSize + 2 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[codeSize++] = op;
+            code[codeSize++] = arg;
+            depth += push;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private int getColumn(int variable) {
+            for (int i = 0; i < variableCount; i++) {
+                if (variables[i] == variable) {
+                    return i;
+                }
+            }
+            variables[variableCount] = variable;
+            return variableCount++;
+        }
+    }
+
+    /**
+     * Returns true if the expression is an affine function of the variables, so its
+     * gradient is the same everywhere and it doesn't change with time.
+     */
+    public boolean isLinear() {
+        return linear;
+    }
+
+    /**
+     * Evaluates the expression.
+     */
+    public double eval(ExprState es) {
+        return run(es, 0);
+    }
+
+    /**
+     * Evaluates the expression and stores its partial derivative with respect to each
+     * es.values[k] in gradient[k]. Derivatives that don't exist, like that of sqrt(a) at
+     * a = 0, are reported as 0.
+     */
+    public double evalGradient(ExprState es, double[] gradient) {
+        double result = run(es, columns);
+        Arrays.fill(gradient, 0);
+        for (int c = 0; c < columns; c++) {
+            double d = gradients[c];
+            gradient[variables[c]] = (Double.isNaN(d) || Double.isInfinite(d)) ? 0 : d;
+        }
+        return result;
+    }
+
+    // m is the number of derivative columns to carry: 0 for plain evaluation
+    private double run(ExprState es, int m) {
+        final double[] s = stack;
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int op = code[pc];
+            int arg = code[pc + 1];
+            int a = sp - 2;
+            int b = sp - 1;
+            switch (op) {
+                case Expr.E_VAL:
+                    s[sp] = constants[arg];
+                    zero(sp++, m);
+                    break;
+                case Expr.E_T:
+                    s[sp] = es.t;
+                    zero(sp++, m);
+                    break;
+                case Expr.E_TIMESTEP:
+                    s[sp] = es.timeStep;
+                    zero(sp++, m);
+                    break;
+                case Expr.E_LASTOUTPUT:
+                    s[sp] = es.lastOutput;
+                    zero(sp++, m);
+                    break;
+                case Expr.E_ADD:
+                    s[a] += s[b];
+                    combine(a, 1, b, 1, m);
+                    sp--;
+                    break;
+                case Expr.E_SUB:
+                    s[a] -= s[b];
+                    combine(a, 1, b, -1, m);
+                    sp--;
+                    break;
+                case Expr.E_MUL:
+                    combine(a, s[b], b, s[a], m);
+                    s[a] *= s[b];
+                    sp--;
+                    break;
+                case Expr.E_DIV: {
+                    double q = s[a] / s[b];
+                    combine(a, 1 / s[b], b, -q / s[b], m);
+                    s[a] = q;
+                    sp--;
+                    break;
+                }
+                case Expr.E_POW: {
+                    double x = s[a], y = s[b];
+                    double r = Math.pow(x, y);
+                    combine(a, (y == 0) ? 0 : y * Math.pow(x, y - 1), b, (x > 0) ? r * Math.log(x) : 0, m);
+                    s[a] = r;
+                    sp--;
+                    break;
+                }
+                case Expr.E_PWR: {
+                    double x = s[a], y = s[b];
+                    double ax = Math.abs(x);
+                    double r = Math.pow(ax, y);
+                    double dx = (y == 0) ? 0 : y * Math.pow(ax, y - 1);
+                    combine(a, (x < 0) ? -dx : dx, b, (ax > 0) ? r * Math.log(ax) : 0, m);
+                    s[a] = r;
+                    sp--;
+                    break;
+                }
+                case Expr.E_PWRS: {
+                    double x = s[a], y = s[b];
+                    double ax = Math.abs(x);
+                    double r = Math.pow(ax, y);
+                    double dy = (ax > 0) ? r * Math.log(ax) : 0;
+                    combine(a, (y == 0) ? 0 : y * Math.pow(ax, y - 1), b, (x < 0) ? -dy : dy, m);
+                    s[a] = (x < 0) ? -r : r;
+                    sp--;
+                    break;
+                }
+                case Expr.E_MOD: {
+                    double r = s[a] % s[b];
+                    combine(a, 1, b, -(s[a] - r) / s[b], m);
+                    s[a] = r;
+                    sp--;
+                    break;
+                }
+                case Expr.E_OR:
+                    s[a] = (s[a] != 0 || s[b] != 0) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_AND:
+                    s[a] = (s[a] != 0 && s[b] != 0) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_EQUALS:
+                    s[a] = (s[a] == s[b]) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_NEQ:
+                    s[a] = (s[a] != s[b]) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_LEQ:
+                    s[a] = (s[a] <= s[b]) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_GEQ:
+                    s[a] = (s[a] >= s[b]) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_LESS:
+                    s[a] = (s[a] < s[b]) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_GREATER:
+                    s[a] = (s[a] > s[b]) ? 1 : 0;
+                    zero(a, m);
+                    sp--;
+                    break;
+                case Expr.E_TERNARY: {
+                    int c = sp - 3;
+                    move(c, (s[c] != 0) ? c + 1 : c + 2, m);
+                    sp = c + 1;
+                    break;
+                }
+                case Expr.E_SELECT: {
+                    int c = sp - 3;
+                    move(c, (s[c] > 0) ? c + 2 : c + 1, m);
+                    sp = c + 1;
+                    break;
+                }
+                case Expr.E_STEP: {
+                    int c = sp - arg;
+                    double x = s[c];
+                    if (arg == 1) {
+                        s[c] = (x < 0) ? 0 : 1;
+                    } else {
+                        s[c] = (x > s[c + 1]) ? 0 : (x < 0) ? 0 : 1;
+                    }
+                    zero(c, m);
+                    sp = c + 1;
+                    break;
+                }
+                case Expr.E_MIN:
+                case Expr.E_MAX: {
+                    int c = sp - arg;
+                    int pick = c;
+                    double x = s[c];
+                    for (int i = c + 1; i < sp; i++) {
+                        double y = (op == Expr.E_MIN) ? Math.min(x, s[i]) : Math.max(x, s[i]);
+                        if (y != x) {
+                            pick = i;
+                        }
+                        x = y;
+                    }
+                    move(c, pick, m);
+                    s[c] = x;
+                    sp = c + 1;
+                    break;
+                }
+                case Expr.E_CLAMP: {
+                    int c = sp - 3;
+                    int pick = (s[c] >= s[c + 1]) ? c : c + 1;
+                    if (s[pick] > s[c + 2]) {
+                        pick = c + 2;
+                    }
+                    double x = Math.min(Math.max(s[c], s[c + 1]), s[c + 2]);
+                    move(c, pick, m);
+                    s[c] = x;
+                    sp = c + 1;
+                    break;
+                }
+                case Expr.E_PWL: {
+                    int c = sp - arg;
+                    pwl(c, arg, m);
+                    sp = c + 1;
+                    break;
+                }
+                case Expr.E_UMINUS:
+                    s[b] = -s[b];
+                    negate(b, m);
+                    break;
+                case Expr.E_NOT:
+                    s[b] = (s[b] == 0) ? 1 : 0;
+                    zero(b, m);
+                    break;
+                case Expr.E_FLOOR:
+                    s[b] = Math.floor(s[b]);
+                    zero(b, m);
+                    break;
+                case Expr.E_CEIL:
+                    s[b] = Math.ceil(s[b]);
+                    zero(b, m);
+                    break;
+                case Expr.E_SIN:
+                    scale(b, Math.cos(s[b]), m);
+                    s[b] = Math.sin(s[b]);
+                    break;
+                case Expr.E_COS:
+                    scale(b, -Math.sin(s[b]), m);
+                    s[b] = Math.cos(s[b]);
+                    break;
+                case Expr.E_TAN: {
+                    double r = Math.tan(s[b]);
+                    scale(b, 1 + r * r, m);
+                    s[b] = r;
+                    break;
+                }
+                case Expr.E_ASIN:
+                    scale(b, 1 / Math.sqrt(1 - s[b] * s[b]), m);
+                    s[b] = Math.asin(s[b]);
+                    break;
+                case Expr.E_ACOS:
+                    scale(b, -1 / Math.sqrt(1 - s[b] * s[b]), m);
+                    s[b] = Math.acos(s[b]);
+                    break;
+                case Expr.E_ATAN:
+                    scale(b, 1 / (1 + s[b] * s[b]), m);
+                    s[b] = Math.atan(s[b]);
+                    break;
+                case Expr.E_SINH:
+                    scale(b, Math.cosh(s[b]), m);
+                    s[b] = Math.sinh(s[b]);
+                    break;
+                case Expr.E_COSH:
+                    scale(b, Math.sinh(s[b]), m);
+                    s[b] = Math.cosh(s[b]);
+                    break;
+                case Expr.E_TANH: {
+                    double r = Math.tanh(s[b]);
+                    scale(b, 1 - r * r, m);
+                    s[b] = r;
+                    break;
+                }
+                case Expr.E_ABS:
+                    if (s[b] < 0) {
+                        negate(b, m);
+                    }
+                    s[b] = Math.abs(s[b]);
+                    break;
+                case Expr.E_EXP: {
+                    double r = Math.exp(s[b]);
+                    scale(b, r, m);
+                    s[b] = r;
+                    break;
+                }
+                case Expr.E_LOG:
+                    scale(b, 1 / s[b], m);
+                    s[b] = Math.log(s[b]);
+                    break;
+                case Expr.E_SQRT: {
+                    double r = Math.sqrt(s[b]);
+                    scale(b, .5 / r, m);
+                    s[b] = r;
+                    break;
+                }
+                case Expr.E_TRIANGLE: {
+                    double x = Expr.posmod(s[b], Math.PI * 2) / Math.PI;
+                    scale(b, ((x < 1) ? 2 : -2) / Math.PI, m);
+                    s[b] = (x < 1) ? -1 + x * 2 : 3 - x * 2;
+                    break;
+                }
+                case Expr.E_SAWTOOTH:
+                    scale(b, 1 / Math.PI, m);
+                    s[b] = Expr.posmod(s[b], Math.PI * 2) / Math.PI - 1;
+                    break;
+                default:
+                    if (op >= Expr.E_LASTA) {
+                        s[sp] = es.lastValues[op - Expr.E_LASTA];
+                        zero(sp++, m);
+                    } else if (op >= Expr.E_DADT) {
+                        double dt = es.timeStep;
+                        if (dt == 0) {
+                            dt = 1e-12;
+                        }
+                        int v = op - Expr.E_DADT;
+                        s[sp] = (es.values[v] - es.lastValues[v]) / dt;
+                        unit(sp++, arg, 1 / dt, m);
+                    } else {
+                        s[sp] = es.values[op - Expr.E_A];
+                        unit(sp++, arg, 1, m);
+                    }
+                    break;
+            }
+        }
+        return s[0];
+    }
+
+    // pwl(x, x0, y0, x1, y1, ...) on the n operands starting at c
+    private void pwl(int c, int n, int m) {
+        final double[] s = stack;
+        double x = s[c];
+        if (n < 3) {
+            s[c] = 0;
+            zero(c, m);
+            return;
+        }
+        if (n < 5 || x < s[c + 1]) {
+            move(c, c + 2, m);
+            return;
+        }
+        // find the segment, like Expr.pwl()
+        int i = c + 1;
+        while (true) {
+            if (x < s[i + 2]) {
+                break;
+            }
+            if (i + 5 >= c + n) {
+                // past the last point
+                move(c, i + 3, m);
+                return;
+            }
+            i += 2;
+        }
+        double x0 = s[i], y0 = s[i + 1], x1 = s[i + 2], y1 = s[i + 3];
+        double w = x1 - x0;
+        double slope = (y1 - y0) / w;
+        double f = (x - x0) / w;
+        // y0 + (x - x0) * slope, differentiated by every operand
+        if (m > 0) {
+            final double[] g = gradients;
+            int gc = c * columns, g0 = i * columns, gy0 = g0 + columns, g1 = gy0 + columns, gy1 = g1 + columns;
+            for (int k = 0; k < m; k++) {
+                g[gc + k] = slope * g[gc + k] + (1 - f) * g[gy0 + k] + f * g[gy1 + k]
+                        + (f - 1) * slope * g[g0 + k] - f * slope * g[g1 + k];
+            }
+        }
+        s[c] = y0 + (x - x0) * (y1 - y0) / w;
+    }
+
+    private void zero(int i, int m) {
+        Arrays.fill(gradients, i * columns, i * columns + m, 0);
+    }
+
+    // derivative of a variable: factor in its column, 0 elsewhere
+    private void unit(int i, int column, double factor, int m) {
+        if (m > 0) {
+            zero(i, m);
+            gradients[i * columns + column] = factor;
+        }
+    }
+
+    // chain rule for a function of one operand: factor is its derivative
+    private void scale(int i, double factor, int m) {
+        final double[] g = gradients;
+        for (int k = i * columns, end = k + m; k < end; k++) {
+            if (g[k] != 0) {
+                g[k] *= factor;
+            }
+        }
+    }
+
+    private void negate(int i, int m) {
+        scale(i, -1, m);
+    }
+
+    // gradient[i] = fi * gradient[i] + fj * gradient[j]
+    private void combine(int i, double fi, int j, double fj, int m) {
+        final double[] g = gradients;
+        int gi = i * columns, gj = j * columns;
+        for (int k = 0; k < m; k++) {
+            g[gi + k] = product(fi, g[gi + k]) + product(fj, g[gj + k]);
+        }
+    }
+
+    // a derivative that is exactly 0 stays 0, even if the factor is infinite, so a
+    // singular point in one operand doesn't spoil the derivatives of the others
+    private static double product(double factor, double derivative) {
+        return (derivative == 0) ? 0 : factor * derivative;
+    }
+
+    // copy value and gradient of slot j to slot i
+    private void move(int i, int j, int m) {
+        if (i != j) {
+            stack[i] = stack[j];
+            System.arraycopy(gradients, j * columns, gradients, i * columns, m);
+        }
+    }
+}
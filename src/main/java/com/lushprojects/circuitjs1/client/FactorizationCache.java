@@ -0,0 +1,145 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.ArrayList;
+
+// Small LRU cache of linear matrix factorizations, keyed by timestep and circuit revision.
+//
+// With adjustTimeStep on, runCircuit() often alternates between two or three timestep values
+// and calls stampCircuit() for each change. Elements still have to be stamped, since stamp()
+// also updates their timestep-dependent state, but if the stamped linear matrix matches a
+// cached one, its factorization can be reused. Each entry keeps a copy of the matrix it was
+// computed from, and a hit is only returned when the new matrix is identical.
+class FactorizationCache {
+
+    static final int CAPACITY = 4;
+
+    static class Entry {
+        double timeStep;
+        int size;
+
+        // matrix the factorization was computed from
+        double[][] denseMatrix;
+        final SparseMatrix sparseMatrix = new SparseMatrix(0);
+
+        // dense factorization of a linear circuit
+        double[][] denseFactors;
+        int[] densePermute;
+
+        // sparse factorization of a linear circuit, or bordered split of a nonlinear one
+        final SparseLU sparseLU = new SparseLU();
+        final BorderedSolver borderedSolver = new BorderedSolver();
+
+        // save the dense matrix before it is factored in place
+        void setDenseMatrix(double[][] matrix, int n) {
+            size = n;
+            if (denseMatrix == null || denseMatrix.length < n) {
+                denseMatrix = new double[n][n];
+                denseFactors = new double[n][n];
+                densePermute = new int[n];
+            }
+            copyMatrix(matrix, denseMatrix, n);
+        }
+
+        void setDenseFactors(double[][] factors, int[] permute) {
+            copyMatrix(factors, denseFactors, size);
+            System.arraycopy(permute, 0, densePermute, 0, size);
+        }
+
+        void getDenseFactors(double[][] factors, int[] permute) {
+            copyMatrix(denseFactors, factors, size);
+            System.arraycopy(densePermute, 0, permute, 0, size);
+        }
+
+        void setSparseMatrix(SparseMatrix matrix) {
+            size = matrix.size;
+            sparseMatrix.copyFrom(matrix);
+        }
+    }
+
+    // most recently used first
+    private final ArrayList<Entry> entries = new ArrayList<>(CAPACITY);
+    private int revision = -1;
+
+    void clear() {
+        entries.clear();
+    }
+
+    // entries from older revisions can never match, so drop them
+    void setRevision(int revision) {
+        if (this.revision != revision) {
+            this.revision = revision;
+            entries.clear();
+        }
+    }
+
+    Entry findDense(double timeStep, double[][] matrix, int n) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (e.timeStep == timeStep && e.size == n && e.denseMatrix != null &&
+                    sameMatrix(e.denseMatrix, matrix, n)) {
+                return touch(i);
+            }
+        }
+        return null;
+    }
+
+    Entry findSparse(double timeStep, SparseMatrix matrix) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (e.timeStep == timeStep && e.size == matrix.size && e.denseMatrix == null &&
+                    e.sparseMatrix.sameValues(matrix)) {
+                return touch(i);
+            }
+        }
+        return null;
+    }
+
+    // add an entry for timeStep, recycling the least recently used one when full
+    Entry add(double timeStep, boolean dense) {
+        Entry e;
+        if (entries.size() < CAPACITY) {
+            e = new Entry();
+        } else {
+            e = entries.remove(entries.size() - 1);
+        }
+        if (!dense) {
+            e.denseMatrix = null;
+        }
+        e.timeStep = timeStep;
+        e.borderedSolver.invalidate();
+        entries.add(0, e);
+        return e;
+    }
+
+    void remove(Entry e) {
+        entries.remove(e);
+    }
+
+    private Entry touch(int i) {
+        Entry e = entries.get(i);
+        if (i != 0) {
+            entries.remove(i);
+            entries.add(0, e);
+        }
+        return e;
+    }
+
+    private static boolean sameMatrix(double[][] a, double[][] b, int n) {
+        for (int i = 0; i < n; i++) {
+            double[] rowA = a[i];
+            double[] rowB = b[i];
+            for (int j = 0; j < n; j++) {
+                if (rowA[j] != rowB[j]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void copyMatrix(double[][] src, double[][] dest, int n) {
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(src[i], 0, dest[i], 0, n);
+        }
+    }
+}
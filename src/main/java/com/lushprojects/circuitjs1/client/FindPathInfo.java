@@ -132,7 +132,10 @@ public class FindPathInfo {
         return false;
     }
 
-    public static boolean validateElement(CircuitSimulator simulator, CircuitElm ce) {
+    // Checks for elements that need a current path. These also follow inductors whose
+    // current matches, so unlike the loop checks in validateElement() they depend on the
+    // state of the circuit, not just on how it is connected.
+    public static void checkCurrentPaths(CircuitSimulator simulator, CircuitElm ce) {
         // look for inductors with no current path
         if (ce instanceof InductorElm) {
             FindPathInfo fpi = new FindPathInfo(simulator, FindPathInfo.INDUCT, ce, ce.getNode(1));
@@ -153,6 +156,10 @@ public class FindPathInfo {
             FindPathInfo fpi = new FindPathInfo(simulator, FindPathInfo.INDUCT, ce, cur.getOutputNode(0));
             cur.broken = cur.hasCurrentOutput() && !fpi.findPath(cur.getOutputNode(1));
         }
+    }
+
+    public static boolean validateElement(CircuitSimulator simulator, CircuitElm ce) {
+        checkCurrentPaths(simulator, ce);
 
         // look for voltage source or wire loops.  we do this for voltage sources
         if (ce.getPostCount() == 2) {
@@ -180,6 +187,7 @@ public class FindPathInfo {
             if (fpi.findPath(ce.getNode(0))) {
                 console(ce + " shorted");
                 ((CapacitorElm) ce).shorted();
+                simulator.shortedCapacitors.add((CapacitorElm) ce);
             } else {
                 fpi = new FindPathInfo(simulator, FindPathInfo.CAP_V, ce, ce.getNode(1));
                 if (fpi.findPath(ce.getNode(0))) {
@@ -0,0 +1,240 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Line based difference between two texts, used to store undo history compactly.
+//
+// A circuit dump has one line per element, and an edit usually changes only a few of
+// them. The delta keeps just the lines of the target that are not in the base, plus a list
+// of (copy, skip, insert) runs that rebuild the target from the base. The runs come from
+// Myers' O(ND) diff; if the texts differ in more than MAX_EDIT_DISTANCE lines, the whole
+// changed middle part is stored instead.
+final class LineDelta {
+
+    static final int MAX_EDIT_DISTANCE = 500;
+
+    private static final int KEEP = 0;
+    private static final int DELETE = 1;
+    private static final int INSERT = 2;
+
+    // triples: lines copied from the base, lines skipped in the base, lines inserted from
+    // insertedLines
+    private final int[] runs;
+    private final String[] insertedLines;
+    private final int memorySize;
+
+    private LineDelta(int[] runs, String[] insertedLines) {
+        this.runs = runs;
+        this.insertedLines = insertedLines;
+        int size = 4 * runs.length + 16;
+        for (String line : insertedLines) {
+            size += 2 * line.length() + 16;
+        }
+        memorySize = size;
+    }
+
+    static String[] split(String text) {
+        return text.split("\n", -1);
+    }
+
+    static String join(String[] lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(lines[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a delta that turns base into target.
+     */
+    static LineDelta create(String[] base, String[] target) {
+        int nb = base.length;
+        int nt = target.length;
+        int prefix = 0;
+        while (prefix < nb && prefix < nt && base[prefix].equals(target[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < nb - prefix && suffix < nt - prefix &&
+                base[nb - 1 - suffix].equals(target[nt - 1 - suffix])) {
+            suffix++;
+        }
+
+        int baseMiddle = nb - prefix - suffix;
+        int targetMiddle = nt - prefix - suffix;
+        // lines only added or only removed (the usual single edit) need no diff
+        int[] edits = null;
+        if (baseMiddle > 0 && targetMiddle > 0) {
+            // compare the middle parts as line ids
+            HashMap<String, Integer> ids = new HashMap<>();
+            int[] a = new int[baseMiddle];
+            int[] b = new int[targetMiddle];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = lineId(ids, base[prefix + i]);
+            }
+            for (int i = 0; i < b.length; i++) {
+                b[i] = lineId(ids, target[prefix + i]);
+            }
+            edits = diff(a, b);
+        }
+        Builder builder = new Builder();
+        builder.copy = prefix;
+        if (edits == null) {
+            builder.skip = baseMiddle;
+            for (int i = 0; i < targetMiddle; i++) {
+                builder.insert(target[prefix + i]);
+            }
+        } else {
+            int y = 0;
+            for (int edit : edits) {
+                if (edit == KEEP) {
+                    builder.keep();
+                    y++;
+                } else if (edit == DELETE) {
+                    builder.skip++;
+                } else {
+                    builder.insert(target[prefix + y]);
+                    y++;
+                }
+            }
+        }
+        for (int i = 0; i < suffix; i++) {
+            builder.keep();
+        }
+        return builder.build();
+    }
+
+    private static int lineId(HashMap<String, Integer> ids, String line) {
+        Integer id = ids.get(line);
+        if (id == null) {
+            id = ids.size();
+            ids.put(line, id);
+        }
+        return id;
+    }
+
+    // Myers' diff; returns the edit script from a to b, or null if it needs more than
+    // MAX_EDIT_DISTANCE inserts and deletes
+    private static int[] diff(int[] a, int[] b) {
+        int n = a.length;
+        int m = b.length;
+        int limit = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int offset = limit + 1;
+        int[] v = new int[2 * limit + 3];
+        ArrayList<int[]> trace = new ArrayList<>();
+        int distance = -1;
+        for (int d = 0; d <= limit && distance < 0; d++) {
+            trace.add(v.clone());
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[k - 1 + offset] < v[k + 1 + offset])) {
+                    x = v[k + 1 + offset];
+                } else {
+                    x = v[k - 1 + offset] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                v[k + offset] = x;
+                if (x >= n && y >= m) {
+                    distance = d;
+                    break;
+                }
+            }
+        }
+        if (distance < 0) {
+            return null;
+        }
+
+        // walk back from (n, m), filling the script from the end
+        int[] edits = new int[n + m - (n + m - distance) / 2];
+        int pos = edits.length;
+        int x = n;
+        int y = m;
+        for (int d = distance; d > 0; d--) {
+            int[] prev = trace.get(d);
+            int k = x - y;
+            int prevK = (k == -d || (k != d && prev[k - 1 + offset] < prev[k + 1 + offset])) ? k + 1 : k - 1;
+            int prevX = prev[prevK + offset];
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                edits[--pos] = KEEP;
+                x--;
+                y--;
+            }
+            edits[--pos] = prevK == k + 1 ? INSERT : DELETE;
+            x = prevX;
+            y = prevY;
+        }
+        while (pos > 0) {
+            edits[--pos] = KEEP;
+        }
+        return edits;
+    }
+
+    String[] apply(String[] base) {
+        ArrayList<String> result = new ArrayList<>(base.length + insertedLines.length);
+        int pos = 0;
+        int inserted = 0;
+        for (int i = 0; i < runs.length; i += 3) {
+            for (int j = 0; j < runs[i]; j++) {
+                result.add(base[pos++]);
+            }
+            pos += runs[i + 1];
+            for (int j = 0; j < runs[i + 2]; j++) {
+                result.add(insertedLines[inserted++]);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    // approximate size in bytes
+    int getMemorySize() {
+        return memorySize;
+    }
+
+    private static final class Builder {
+        final ArrayList<Integer> runs = new ArrayList<>();
+        final ArrayList<String> lines = new ArrayList<>();
+        int copy;
+        int skip;
+        int insert;
+
+        void keep() {
+            if (skip > 0 || insert > 0) {
+                flush();
+            }
+            copy++;
+        }
+
+        void insert(String line) {
+            lines.add(line);
+            insert++;
+        }
+
+        void flush() {
+            runs.add(copy);
+            runs.add(skip);
+            runs.add(insert);
+            copy = skip = insert = 0;
+        }
+
+        LineDelta build() {
+            if (copy > 0 || skip > 0 || insert > 0) {
+                flush();
+            }
+            int[] r = new int[runs.size()];
+            for (int i = 0; i < r.length; i++) {
+                r[i] = runs.get(i);
+            }
+            return new LineDelta(r, lines.toArray(new String[lines.size()]));
+        }
+    }
+}
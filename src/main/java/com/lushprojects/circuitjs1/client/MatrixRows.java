@@ -0,0 +1,19 @@
+package com.lushprojects.circuitjs1.client;
+
+// Row access to the circuit matrix, dense or sparse, for code that works on either
+// representation, like CircuitSimulator's matrix simplification.
+// The entries of row i are numbered 0 to getRowLength(i)-1. A dense matrix lists every
+// column, zeros included; a sparse one only the stamped entries.
+interface MatrixRows {
+    int getRowLength(int row);
+
+    // column of entry k of the row
+    int getColumn(int row, int k);
+
+    // value of entry k of the row
+    double getValue(int row, int k);
+
+    double get(int row, int col);
+
+    void add(int row, int col, double x);
+}
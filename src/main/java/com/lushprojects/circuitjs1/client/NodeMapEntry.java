@@ -3,6 +3,10 @@ package com.lushprojects.circuitjs1.client;
 class NodeMapEntry {
     int node;
 
+    // disjoint-set links used by calculateWireClosure() to merge wire groups
+    private NodeMapEntry parent = this;
+    private int rank;
+
     NodeMapEntry() {
         node = -1;
     }
@@ -10,4 +14,33 @@ class NodeMapEntry {
     NodeMapEntry(int n) {
         node = n;
     }
+
+    // representative entry of this entry's group, with path halving
+    NodeMapEntry find() {
+        NodeMapEntry e = this;
+        while (e.parent != e) {
+            e.parent = e.parent.parent;
+            e = e.parent;
+        }
+        return e;
+    }
+
+    // merge the groups of a and b, returning the new representative
+    static NodeMapEntry union(NodeMapEntry a, NodeMapEntry b) {
+        a = a.find();
+        b = b.find();
+        if (a == b) {
+            return a;
+        }
+        if (a.rank < b.rank) {
+            NodeMapEntry t = a;
+            a = b;
+            b = t;
+        }
+        b.parent = a;
+        if (a.rank == b.rank) {
+            a.rank++;
+        }
+        return a;
+    }
 }
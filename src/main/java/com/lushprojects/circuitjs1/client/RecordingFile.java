@@ -0,0 +1,127 @@
+package com.lushprojects.circuitjs1.client;
+
+// Columnar spill files of a SignalRecorder, in the desktop build only.
+//
+// Every column of the recording is appended to its own file of raw little-endian doubles
+// in a temporary directory, so the n-th chunk written starts at byte 8 * frames * n, with
+// frames the chunk size. Writes go through
+// Node's asynchronous fs calls, one chunk at a time; the recorder writes the next chunk
+// after chunkWritten() reports the previous one, which keeps the appends to each file in
+// order. Reads, only needed for exports, are synchronous.
+final class RecordingFile {
+
+    private final String directory;
+
+    private RecordingFile(String directory) {
+        this.directory = directory;
+    }
+
+    static native boolean isAvailable() /*-{
+        return !!($wnd.nw && $wnd.nw.require);
+    }-*/;
+
+    // creates the directory of a new recording, or returns null if that isn't possible
+    static RecordingFile create() {
+        if (!isAvailable()) {
+            return null;
+        }
+        String dir = createDirectory();
+        return dir == null ? null : new RecordingFile(dir);
+    }
+
+    private static native String createDirectory() /*-{
+        try {
+            var fs = $wnd.nw.require('fs');
+            var os = $wnd.nw.require('os');
+            var path = $wnd.nw.require('path');
+            return fs.mkdtempSync(path.join(os.tmpdir(), 'circuitjs-recording-'));
+        } catch (e) {
+            console.log('Could not create recording directory: ' + e.message);
+            return null;
+        }
+    }-*/;
+
+    String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Appends the first frames entries of every column of chunk, then calls
+     * recorder.chunkWritten(this, ok).
+     */
+    native void write(double[][] chunk, int frames, SignalRecorder recorder) /*-{
+        var self = this;
+        var fs = $wnd.nw.require('fs');
+        var path = $wnd.nw.require('path');
+        var dir = this.@com.lushprojects.circuitjs1.client.RecordingFile::directory;
+        var remaining = chunk.length;
+        var ok = true;
+        var done = $entry(function(err) {
+            if (err) {
+                console.log('Error writing recording: ' + err.message);
+                ok = false;
+            }
+            if (--remaining == 0) {
+                recorder.@com.lushprojects.circuitjs1.client.SignalRecorder::chunkWritten(Lcom/lushprojects/circuitjs1/client/RecordingFile;Z)(self, ok);
+            }
+        });
+        for (var c = 0; c < chunk.length; c++) {
+            var column = chunk[c];
+            var values = new Float64Array(frames);
+            for (var i = 0; i < frames; i++) {
+                values[i] = column[i];
+            }
+            try {
+                fs.appendFile(path.join(dir, c + '.f64'), new Uint8Array(values.buffer), done);
+            } catch (e) {
+                done(e);
+            }
+        }
+    }-*/;
+
+    /**
+     * Reads the n-th chunk of frames entries written to a column into values. Returns
+     * false if it couldn't be read.
+     */
+    native boolean read(int column, int n, int frames, double[] values) /*-{
+        var fd = -1;
+        try {
+            var fs = $wnd.nw.require('fs');
+            var path = $wnd.nw.require('path');
+            var dir = this.@com.lushprojects.circuitjs1.client.RecordingFile::directory;
+            var bytes = new Uint8Array(frames * 8);
+            fd = fs.openSync(path.join(dir, column + '.f64'), 'r');
+            // in doubles, so long recordings don't overflow
+            if (fs.readSync(fd, bytes, 0, bytes.length, n * frames * 8) != bytes.length) {
+                return false;
+            }
+            var view = new Float64Array(bytes.buffer);
+            for (var i = 0; i < frames; i++) {
+                values[i] = view[i];
+            }
+            return true;
+        } catch (e) {
+            console.log('Error reading recording: ' + e.message);
+            return false;
+        } finally {
+            if (fd >= 0) {
+                $wnd.nw.require('fs').closeSync(fd);
+            }
+        }
+    }-*/;
+
+    // removes the files. Writes still in flight fail quietly.
+    native void delete() /*-{
+        try {
+            var fs = $wnd.nw.require('fs');
+            var dir = this.@com.lushprojects.circuitjs1.client.RecordingFile::directory;
+            if (fs.rmSync) {
+                fs.rmSync(dir, {recursive: true, force: true});
+            } else {
+                fs.rmdirSync(dir, {recursive: true});
+            }
+        } catch (e) {
+            console.log('Could not remove recording: ' + e.message);
+        }
+    }-*/;
+}
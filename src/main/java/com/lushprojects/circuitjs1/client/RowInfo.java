@@ -37,4 +37,12 @@ class RowInfo {
     RowInfo() {
         type = ROW_NORMAL;
     }
+
+    // restore the state of a new RowInfo, so rows can be reused when restamping
+    void reset() {
+        type = ROW_NORMAL;
+        mapCol = mapRow = 0;
+        value = 0;
+        rsChanges = lsChanges = dropRow = false;
+    }
 }
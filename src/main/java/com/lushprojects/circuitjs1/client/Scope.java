@@ -32,6 +32,7 @@ import com.lushprojects.circuitjs1.client.element.TransistorElm;
 import com.lushprojects.circuitjs1.client.element.WireElm;
 import com.lushprojects.circuitjs1.client.util.Locale;
 
+import java.util.Arrays;
 import java.util.Vector;
 
 public class Scope extends BaseCirSimDelegate {
@@ -46,6 +47,7 @@ public class Scope extends BaseCirSimDelegate {
     private static final int FLAG_DIVISIONS = 1 << 21; // dump manDivisions
     private static final int FLAG_TRIGGER = 1 << 22; // dump trigger settings
     private static final int FLAG_HISTORY = 1 << 23; // dump history/persistence settings
+    private static final int FLAG_SPECTRUM = 1 << 24; // dump spectrum window and averaging
     // other flags go here too, see getFlags()
 
     public static final int TRIG_MODE_AUTO = 0;
@@ -55,6 +57,15 @@ public class Scope extends BaseCirSimDelegate {
     public static final int TRIG_SLOPE_RISING = 0;
     public static final int TRIG_SLOPE_FALLING = 1;
 
+    public static final int SPECTRUM_WINDOW_SINE = 0;
+    public static final int SPECTRUM_WINDOW_RECTANGULAR = 1;
+    public static final int SPECTRUM_WINDOW_HANN = 2;
+    public static final int SPECTRUM_WINDOW_BLACKMAN_HARRIS = 3;
+    public static final int SPECTRUM_WINDOW_FLAT_TOP = 4;
+
+    public static final int DEFAULT_SPECTRUM_AVERAGES = 8;
+    public static final int MAX_SPECTRUM_AVERAGES = 64;
+
     public static final int HISTORY_CAPTURE_MANUAL = 0;
     public static final int HISTORY_CAPTURE_ON_TRIGGER = 1;
 
@@ -79,7 +90,6 @@ public class Scope extends BaseCirSimDelegate {
     public static final double MIN_MAN_SCALE = 1e-9;
 
     private int scopePointCount = 128;
-    private FFT fft;
     public int position;
     // speed is sim timestep units per pixel
     public int speed;
@@ -93,6 +103,8 @@ public class Scope extends BaseCirSimDelegate {
     public boolean maxScale;
 
     public boolean logSpectrum;
+    private int spectrumWindow = SPECTRUM_WINDOW_SINE;
+    private int spectrumAverages = DEFAULT_SPECTRUM_AVERAGES;
     public boolean showFFT, showNegative, showRMS, showAverage, showDutyCycle, showElmInfo;
     public Vector<ScopePlot> plots, visiblePlots;
     private int draw_ox, draw_oy;
@@ -188,6 +200,16 @@ public class Scope extends BaseCirSimDelegate {
 
     private TriggerFrame triggerFrame;
 
+    // Timeline view: the plots drawn from their long-term ScopeHistory instead of the ring
+    // buffers (time-domain only). timelineZoom is columns per pixel. Unless the view follows
+    // the newest data, its right edge is kept at a ScopeHistory.getAdded() count of the
+    // first plot, so it stays put while the simulation runs.
+    static final int MAX_TIMELINE_ZOOM = 1024;
+    private int timelineZoom = 1;
+    private boolean timelineLive = true;
+    private int timelineEnd;
+    private TriggerFrame timelineFrame;
+
     private boolean shouldUseTriggerFrameForDisplay() {
         if (!triggerEnabled || !isTriggerAvailable()) {
             return false;
@@ -207,6 +229,27 @@ public class Scope extends BaseCirSimDelegate {
         return -1;
     }
 
+    // frame to draw instead of the ring buffers, or null
+    private TriggerFrame getDisplayFrame() {
+        if (isTimelineActive()) {
+            return timelineFrame;
+        }
+        return shouldUseTriggerFrameForDisplay() ? triggerFrame : null;
+    }
+
+    // max value drawn at pixel column x of a plot
+    private double getDisplayedMax(ScopePlot plot, int x) {
+        TriggerFrame frame = getDisplayFrame();
+        if (frame != null) {
+            int pi = getPlotIndex(plot);
+            if (pi >= 0 && frame.maxValues[pi] != null && x >= 0 && x < frame.width) {
+                return frame.maxValues[pi][x];
+            }
+        }
+        int ip = (x + getPlotStartIndex(plot)) & (scopePointCount - 1);
+        return plot.maxValues[ip];
+    }
+
     private void captureTriggerFrame(int startIndex, double rightEdgeTime, double triggerTime) {
         int width = rect.width;
         if (width < 2 || plots == null || plots.isEmpty()) {
@@ -287,11 +330,31 @@ public class Scope extends BaseCirSimDelegate {
 
     void showFFT(boolean b) {
         showFFT = b;
-        if (!showFFT) {
-            fft = null;
+        for (ScopePlot p : plots) {
+            if (!showFFT) {
+                p.spectrum = null;
+            } else {
+                p.stopHistory();
+            }
         }
     }
 
+    public int getSpectrumWindow() {
+        return spectrumWindow;
+    }
+
+    public void setSpectrumWindow(int window) {
+        spectrumWindow = Math.max(SPECTRUM_WINDOW_SINE, Math.min(SPECTRUM_WINDOW_FLAT_TOP, window));
+    }
+
+    public int getSpectrumAverages() {
+        return spectrumAverages;
+    }
+
+    public void setSpectrumAverages(int averages) {
+        spectrumAverages = Math.max(1, Math.min(MAX_SPECTRUM_AVERAGES, averages));
+    }
+
     public void setManualScale(boolean value, boolean roundup) {
         if (value != manualScale) {
             clear2dView();
@@ -321,8 +384,12 @@ public class Scope extends BaseCirSimDelegate {
         showNegative = false;
         for (ScopePlot plot : plots) {
             plot.reset(scopePointCount, speed, full);
+            if (!isTimelineAvailable()) {
+                plot.stopHistory();
+            }
         }
         clearHistory();
+        resetTimeline();
         triggerFrame = null;
         rearmSingleTrigger();
         lastDisplayedStartIndex = 0;
@@ -475,6 +542,101 @@ public class Scope extends BaseCirSimDelegate {
         }
     }
 
+    public boolean isTimelineAvailable() {
+        return !(showFFT || plot2d || plotXY);
+    }
+
+    public boolean isTimelineActive() {
+        return (timelineZoom > 1 || !timelineLive) && isTimelineAvailable() && !plots.isEmpty();
+    }
+
+    public void resetTimeline() {
+        timelineZoom = 1;
+        timelineLive = true;
+        timelineFrame = null;
+    }
+
+    // the history of the first plot, which the timeline position is counted in; starts
+    // recording the histories of all plots the first time the timeline is used
+    private ScopeHistory getTimelineHistory() {
+        for (ScopePlot p : plots) {
+            p.startHistory();
+        }
+        return plots.get(0).history;
+    }
+
+    // columns between the newest one and the right edge of the timeline
+    private int getTimelineBack() {
+        if (timelineLive) {
+            return 0;
+        }
+        int back = getTimelineHistory().getAdded() - timelineEnd;
+        return Math.max(0, Math.min(back, getMaxTimelineBack()));
+    }
+
+    private int getMaxTimelineBack() {
+        return Math.max(0, getTimelineHistory().getLength() - rect.width * timelineZoom);
+    }
+
+    // zoom the timeline in or out by a factor of two, keeping the right edge
+    void zoomTimeline(boolean out) {
+        if (plots.isEmpty()) {
+            return;
+        }
+        int back = getTimelineBack();
+        timelineZoom = out ? Math.min(timelineZoom * 2, MAX_TIMELINE_ZOOM) : Math.max(timelineZoom / 2, 1);
+        setTimelineBack(back);
+    }
+
+    // scroll the timeline back in time by a number of pixels (forward if negative)
+    void panTimeline(int pixels) {
+        if (plots.isEmpty()) {
+            return;
+        }
+        setTimelineBack(getTimelineBack() + pixels * timelineZoom);
+    }
+
+    private void setTimelineBack(int back) {
+        back = Math.min(back, getMaxTimelineBack());
+        if (back <= 0) {
+            timelineLive = true;
+        } else {
+            timelineLive = false;
+            timelineEnd = getTimelineHistory().getAdded() - back;
+        }
+    }
+
+    // fill timelineFrame from the plot histories, O(width) per plot
+    private void updateTimelineFrame() {
+        int width = rect.width;
+        int plotCount = plots.size();
+        TriggerFrame frame = timelineFrame;
+        if (frame == null || frame.width != width || frame.plotCount != plotCount) {
+            frame = timelineFrame = new TriggerFrame(width, plotCount,
+                    new double[plotCount][width], new double[plotCount][width], 0, 0, 0);
+        }
+        // plots added since the timeline was opened start recording now
+        getTimelineHistory();
+        int back = getTimelineBack();
+        for (int pi = 0; pi < plotCount; pi++) {
+            ScopePlot p = plots.get(pi);
+            if (!p.history.read(back, timelineZoom, width, frame.minValues[pi], frame.maxValues[pi])) {
+                Arrays.fill(frame.minValues[pi], 0);
+                Arrays.fill(frame.maxValues[pi], 0);
+            }
+        }
+        // the newest column ended when the current one started
+        timeBaseStartIndexOverride = null;
+        timeBaseRightEdgeTime = plots.get(0).lastUpdateTime - back * simulator().maxTimeStep * speed;
+        timeBaseTriggerTime = timeBaseRightEdgeTime;
+    }
+
+    // simulated time per pixel column
+    private double getPixelTime() {
+        double t = simulator().maxTimeStep * speed;
+        return isTimelineActive() ? t * timelineZoom : t;
+    }
+
     private ScopePlot getTriggerSourcePlot() {
         if (visiblePlots.isEmpty()) {
             return null;
@@ -505,7 +667,7 @@ public class Scope extends BaseCirSimDelegate {
     }
 
     private double getTimeBaseRightEdgeTime() {
-        if (timeBaseStartIndexOverride != null) {
+        if (timeBaseStartIndexOverride != null || isTimelineActive()) {
             return timeBaseRightEdgeTime;
         }
         return simulator().t;
@@ -564,6 +726,11 @@ public class Scope extends BaseCirSimDelegate {
     }
 
     private void updateTimeBaseForDraw() {
+        if (isTimelineActive()) {
+            updateTimelineFrame();
+            return;
+        }
+
         // If trigger mode is NORMAL (waiting) or SINGLE (armed), and no trigger is found,
         // we should keep displaying the previous frame rather than rolling/free-running.
         final Integer prevStartIndexOverride = timeBaseStartIndexOverride;
@@ -1066,31 +1233,32 @@ public class Scope extends BaseCirSimDelegate {
         }
     }
 
-    void drawFFT(Graphics g) {
-        if (fft == null || fft.getSize() != scopePointCount) {
-            fft = new FFT(scopePointCount);
-        }
-        double[] real = new double[scopePointCount];
-        double[] imag = new double[scopePointCount];
-        ScopePlot plot = (visiblePlots.size() == 0) ? plots.firstElement() : visiblePlots.firstElement();
-        double[] maxV = plot.maxValues;
-        double[] minV = plot.minValues;
-        int ptr = plot.ptr;
-        for (int i = 0; i < scopePointCount; i++) {
-            int ii = (ptr - i + scopePointCount) & (scopePointCount - 1);
-            // need to average max and min or else it could cause average of function to be > 0, which
-            // produces spike at 0 Hz that hides rest of spectrum
-            real[i] = .5 * (maxV[ii] + minV[ii]);
-            imag[i] = 0;
+    // analyzer of the plot shown in the spectrum. A new one starts with the columns on screen.
+    private SpectrumAnalyzer getSpectrum(ScopePlot plot) {
+        for (ScopePlot p : plots) {
+            if (p != plot) {
+                p.spectrum = null;
+            }
         }
-        fft.fft(real, imag, true);
-        double maxM = 1e-8;
-        for (int i = 0; i < scopePointCount / 2; i++) {
-            double m = fft.magnitude(real[i], imag[i]);
-            if (m > maxM) {
-                maxM = m;
+        SpectrumAnalyzer spectrum = plot.spectrum;
+        if (spectrum == null || spectrum.getSize() != scopePointCount ||
+                spectrum.getWindowType() != spectrumWindow || spectrum.getAverages() != spectrumAverages) {
+            spectrum = new SpectrumAnalyzer(scopePointCount, spectrumWindow, spectrumAverages);
+            for (int i = scopePointCount - 1; i > 0; i--) {
+                int ii = (plot.ptr - i) & (scopePointCount - 1);
+                spectrum.add(ScopePlot.getSpectrumSample(plot.minValues[ii], plot.maxValues[ii]));
             }
+            spectrum.update();
+            plot.spectrum = spectrum;
         }
+        return spectrum;
+    }
+
+    void drawFFT(Graphics g) {
+        ScopePlot plot = (visiblePlots.size() == 0) ? plots.firstElement() : visiblePlots.firstElement();
+        SpectrumAnalyzer spectrum = getSpectrum(plot);
+        double[] magnitude = spectrum.getMagnitudes();
+        double maxM = Math.max(spectrum.getMaxMagnitude(), 1e-8);
         int prevX = 0;
         g.setColor("#FF0000");
         if (!logSpectrum) {
@@ -1100,8 +1268,7 @@ public class Scope extends BaseCirSimDelegate {
                 int x = 2 * i * rect.width / scopePointCount;
                 // rect.width may be greater than or less than scopePointCount/2,
                 // so x may be greater than or equal to prevX.
-                double magnitude = fft.magnitude(real[i], imag[i]);
-                int height = (int) ((magnitude * y) / maxM);
+                int height = (int) ((magnitude[i] * y) / maxM);
                 if (x != prevX) {
                     g.drawLine(prevX, y - prevHeight, x, y - height);
                 }
@@ -1117,7 +1284,7 @@ public class Scope extends BaseCirSimDelegate {
                 int x = 2 * i * rect.width / scopePointCount;
                 // rect.width may be greater than or less than scopePointCount/2,
                 // so x may be greater than or equal to prevX.
-                double val = Math.log(fft.magnitude(real[i], imag[i]));
+                double val = Math.log(magnitude[i]);
                 int y = y0 - (int) (val * ymult - val0);
                 if (x != prevX) {
                     g.drawLine(prevX, prevY, x, y);
@@ -1384,7 +1551,8 @@ public class Scope extends BaseCirSimDelegate {
     void calcMaxAndMin(int units) {
         maxValue = -1e8;
         minValue = 1e8;
-        boolean useFrame = shouldUseTriggerFrameForDisplay();
+        TriggerFrame frame = getDisplayFrame();
+        boolean useFrame = frame != null;
         for (ScopePlot plot : visiblePlots) {
             if (plot.units != units) {
                 continue;
@@ -1392,11 +1560,11 @@ public class Scope extends BaseCirSimDelegate {
 
             if (useFrame) {
                 int pi = getPlotIndex(plot);
-                if (pi < 0 || triggerFrame.maxValues[pi] == null || triggerFrame.minValues[pi] == null) {
+                if (pi < 0 || frame.maxValues[pi] == null || frame.minValues[pi] == null) {
                     continue;
                 }
-                double[] maxV = triggerFrame.maxValues[pi];
-                double[] minV = triggerFrame.minValues[pi];
+                double[] maxV = frame.maxValues[pi];
+                double[] minV = frame.minValues[pi];
                 for (int i = 0; i != rect.width; i++) {
                     if (maxV[i] > maxValue) {
                         maxValue = maxV[i];
@@ -1428,17 +1596,18 @@ public class Scope extends BaseCirSimDelegate {
         if (manualScale) {
             return;
         }
-        boolean useFrame = shouldUseTriggerFrameForDisplay();
+        TriggerFrame frame = getDisplayFrame();
+        boolean useFrame = frame != null;
         int ipa = 0;
         double[] maxV;
         double[] minV;
         if (useFrame) {
             int pi = getPlotIndex(plot);
-            if (pi < 0 || triggerFrame.maxValues[pi] == null || triggerFrame.minValues[pi] == null) {
+            if (pi < 0 || frame.maxValues[pi] == null || frame.minValues[pi] == null) {
                 return;
             }
-            maxV = triggerFrame.maxValues[pi];
-            minV = triggerFrame.minValues[pi];
+            maxV = frame.maxValues[pi];
+            minV = frame.minValues[pi];
         } else {
             ipa = getPlotStartIndex(plot);
             maxV = plot.maxValues;
@@ -1484,7 +1653,7 @@ public class Scope extends BaseCirSimDelegate {
         int multptr = 0;
         double gsx = 1e-15;
 
-        double ts = simulator().maxTimeStep * speed;
+        double ts = getPixelTime();
         while (gsx < ts * 20) {
             gsx *= multa[(multptr++) % 3];
         }
@@ -1515,17 +1684,18 @@ public class Scope extends BaseCirSimDelegate {
         } else if (selected) {
             color = plot.color;
         }
-        boolean useFrame = shouldUseTriggerFrameForDisplay();
+        TriggerFrame frame = getDisplayFrame();
+        boolean useFrame = frame != null;
         int ipa = 0;
         double[] maxV;
         double[] minV;
         if (useFrame) {
             int pi = getPlotIndex(plot);
-            if (pi < 0 || triggerFrame.maxValues[pi] == null || triggerFrame.minValues[pi] == null) {
+            if (pi < 0 || frame.maxValues[pi] == null || frame.minValues[pi] == null) {
                 return;
             }
-            maxV = triggerFrame.maxValues[pi];
-            minV = triggerFrame.minValues[pi];
+            maxV = frame.maxValues[pi];
+            minV = frame.minValues[pi];
         } else {
             ipa = getPlotStartIndex(plot);
             maxV = plot.maxValues;
@@ -1589,7 +1759,7 @@ public class Scope extends BaseCirSimDelegate {
         }
 
         // Vertical (T) gridlines
-        double ts = simulator().maxTimeStep * speed;
+        double ts = getPixelTime();
         gridStepX = calcGridStepX();
 
         boolean highlightCenter = !isManualScale();
@@ -1614,7 +1784,7 @@ public class Scope extends BaseCirSimDelegate {
 
             // vertical gridlines
             double rightEdgeTime = getTimeBaseRightEdgeTime();
-            double tstart = rightEdgeTime - simulator().maxTimeStep * speed * rect.width;
+            double tstart = rightEdgeTime - ts * rect.width;
             double tx = rightEdgeTime - (rightEdgeTime % gridStepX);
 
             for (int ll = 0; ; ll++) {
@@ -1653,7 +1823,8 @@ public class Scope extends BaseCirSimDelegate {
         drawGridLines = false;
 
         // History overlay (draw behind live trace)
-        if (historyEnabled && isHistoryAvailable() && plot == getHistorySourcePlot() && !historyFrames.isEmpty()) {
+        if (historyEnabled && isHistoryAvailable() && !isTimelineActive() && plot == getHistorySourcePlot()
+                && !historyFrames.isEmpty()) {
             int frameCount = historyFrames.size();
             for (int fi = 0; fi < frameCount; fi++) {
                 HistoryFrame f = historyFrames.get(fi);
@@ -1739,7 +1910,7 @@ public class Scope extends BaseCirSimDelegate {
         if (plot2d || visiblePlots.isEmpty()) {
             cursorTime = -1;
         } else {
-            cursorTime = getTimeBaseRightEdgeTime() - simulator().maxTimeStep * speed * (rect.x + rect.width - mouseX);
+            cursorTime = getTimeBaseRightEdgeTime() - getPixelTime() * (rect.x + rect.width - mouseX);
         }
         checkForSelection(mouseX, mouseY);
         cursorScope = this;
@@ -1758,15 +1929,13 @@ public class Scope extends BaseCirSimDelegate {
             selectedPlot = -1;
             return;
         }
-        int ipa = getPlotStartIndex(plots.get(0));
-        int ip = (mouseX - rect.x + ipa) & (scopePointCount - 1);
         int maxy = (rect.height - 1) / 2;
         int y = maxy;
         int bestdist = 10000;
         int best = -1;
         for (int i = 0; i != visiblePlots.size(); i++) {
             ScopePlot plot = visiblePlots.get(i);
-            int maxvy = (int) (plot.gridMult * (plot.maxValues[ip] + plot.plotOffset));
+            int maxvy = (int) (plot.gridMult * (getDisplayedMax(plot, mouseX - rect.x) + plot.plotOffset));
             int dist = Math.abs(mouseY - (rect.y + y - maxvy));
             if (dist < bestdist) {
                 bestdist = dist;
@@ -1790,16 +1959,15 @@ public class Scope extends BaseCirSimDelegate {
         int cursorX = -1;
         int ct = 0;
         if (cursorTime >= 0) {
-            cursorX = -(int) ((getTimeBaseRightEdgeTime() - cursorTime) / (simulator().maxTimeStep * speed) - rect.x - rect.width);
+            cursorX = -(int) ((getTimeBaseRightEdgeTime() - cursorTime) / getPixelTime() - rect.x - rect.width);
             if (cursorX >= rect.x) {
-                int ipa = getPlotStartIndex(plots.get(0));
-                int ip = (cursorX - rect.x + ipa) & (scopePointCount - 1);
                 int maxy = (rect.height - 1) / 2;
                 int y = maxy;
                 if (!visiblePlots.isEmpty()) {
                     ScopePlot plot = visiblePlots.get(Math.max(selectedPlot, 0));
-                    info[ct++] = plot.getUnitText(plot.maxValues[ip]);
-                    int maxvy = (int) (plot.gridMult * (plot.maxValues[ip] + plot.plotOffset));
+                    double v = getDisplayedMax(plot, cursorX - rect.x);
+                    info[ct++] = plot.getUnitText(v);
+                    int maxvy = (int) (plot.gridMult * (v + plot.plotOffset));
                     g.setColor(plot.color);
                     g.fillOval(cursorX - 2, rect.y + y - maxvy - 2, 5, 5);
                 }
@@ -2033,6 +2201,10 @@ public class Scope extends BaseCirSimDelegate {
         if (t != null && t != "") {
             drawInfoText(g, t);
         }
+        if (isTimelineActive()) {
+            drawInfoText(g, Locale.LS("Timeline") + " x" + timelineZoom + " " +
+                    CircuitElm.getTimeText(getTimeBaseRightEdgeTime() - simulator().t));
+        }
         if (showFreq) {
             drawFrequency(g);
         }
@@ -2194,6 +2366,9 @@ public class Scope extends BaseCirSimDelegate {
         if (shouldDumpHistorySettings()) {
             flags |= FLAG_HISTORY;
         }
+        if (shouldDumpSpectrumSettings()) {
+            flags |= FLAG_SPECTRUM;
+        }
         flags |= FLAG_PLOTS; // 4096
         int allPlotFlags = 0;
         for (ScopePlot p : plots) {
@@ -2227,6 +2402,10 @@ public class Scope extends BaseCirSimDelegate {
                 historySource != 0;
     }
 
+    private boolean shouldDumpSpectrumSettings() {
+        return spectrumWindow != SPECTRUM_WINDOW_SINE || spectrumAverages != DEFAULT_SPECTRUM_AVERAGES;
+    }
+
 
     public String dump() {
         ScopePlot vPlot = plots.get(0);
@@ -2281,6 +2460,10 @@ public class Scope extends BaseCirSimDelegate {
             x += " " + historyCaptureMode;
             x += " " + historySource;
         }
+        if ((flags & FLAG_SPECTRUM) != 0) {
+            x += " " + spectrumWindow;
+            x += " " + spectrumAverages;
+        }
 
         if (text != null) {
             x += " " + CustomLogicModel.escape(text);
@@ -2382,6 +2565,10 @@ public class Scope extends BaseCirSimDelegate {
                         historySource = CircuitElm.parseInt(st.nextToken());
                         trimHistoryToDepth();
                     }
+                    if ((flags & FLAG_SPECTRUM) != 0 && st.hasMoreTokens()) {
+                        setSpectrumWindow(CircuitElm.parseInt(st.nextToken()));
+                        setSpectrumAverages(CircuitElm.parseInt(st.nextToken()));
+                    }
                 } catch (Exception ignored) {
                 }
 
@@ -2435,6 +2622,10 @@ public class Scope extends BaseCirSimDelegate {
                         historySource = CircuitElm.parseInt(st.nextToken());
                         trimHistoryToDepth();
                     }
+                    if ((flags & FLAG_SPECTRUM) != 0 && st.hasMoreTokens()) {
+                        setSpectrumWindow(CircuitElm.parseInt(st.nextToken()));
+                        setSpectrumAverages(CircuitElm.parseInt(st.nextToken()));
+                    }
                 } catch (Exception ignored) {
                 }
 
@@ -2636,12 +2827,27 @@ public class Scope extends BaseCirSimDelegate {
 
     void onMouseWheel(MouseWheelEvent e) {
         wheelDeltaY += e.getDeltaY() * circuitEditor().wheelSensitivity;
+        // ctrl/cmd zooms the timeline out and in, alt scrolls it back and forward
+        boolean zoomTimeline = (e.isControlKeyDown() || e.isMetaKeyDown()) && isTimelineAvailable();
+        boolean panTimeline = e.isAltKeyDown() && isTimelineAvailable();
         if (wheelDeltaY > 5) {
-            slowDown();
+            if (zoomTimeline) {
+                zoomTimeline(true);
+            } else if (panTimeline) {
+                panTimeline(rect.width / 8);
+            } else {
+                slowDown();
+            }
             wheelDeltaY = 0;
         }
         if (wheelDeltaY < -5) {
-            speedUp();
+            if (zoomTimeline) {
+                zoomTimeline(false);
+            } else if (panTimeline) {
+                panTimeline(-rect.width / 8);
+            } else {
+                speedUp();
+            }
             wheelDeltaY = 0;
         }
     }
@@ -0,0 +1,180 @@
+package com.lushprojects.circuitjs1.client;
+
+// Long-term min/max history of a scope plot, kept at several resolutions.
+//
+// ScopePlot's ring buffers only hold one screen of data. Every finished column (the
+// min/max over scopePlotSpeed time steps) is also added here, at level 0. Levels 1 to 3
+// hold the min/max of 4, 16 and 64 consecutive columns. Each level is a ring of the same
+// number of entries, so with a fixed memory budget level 0 keeps the recent past at full
+// resolution and level 3 reaches 64 times further back. Entries are stored in chunks that
+// are allocated as the history grows.
+//
+// read() picks for every pixel the coarsest level that isn't coarser than a pixel and
+// still holds the data, so drawing any part of the history at any zoom costs a few
+// entries per pixel.
+//
+// Positions are counted backwards in columns from the newest finished one.
+class ScopeHistory {
+
+    static final int LEVELS = 4;
+    // each level combines 1 << LEVEL_SHIFT entries of the level below
+    private static final int LEVEL_SHIFT = 2;
+
+    // memory for all levels of one plot
+    private static final int MEMORY_BUDGET = 2 << 20;
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // entries per level, a power of two
+    private static final int CAPACITY = MEMORY_BUDGET / (LEVELS * 2 * 8);
+
+    // [level][chunk][entry]
+    private final double[][][] minChunks = new double[LEVELS][CAPACITY / CHUNK_SIZE][];
+    private final double[][][] maxChunks = new double[LEVELS][CAPACITY / CHUNK_SIZE][];
+    // ring position of the newest entry and number of entries held, per level
+    private final int[] newest = new int[LEVELS];
+    private final int[] size = new int[LEVELS];
+    // columns collected for the next entry of each level, and their min/max
+    private final int[] partial = new int[LEVELS];
+    private final double[] partialMin = new double[LEVELS];
+    private final double[] partialMax = new double[LEVELS];
+    // number of columns added, wrapping around
+    private int added;
+
+    ScopeHistory() {
+        clear();
+    }
+
+    void clear() {
+        for (int level = 0; level != LEVELS; level++) {
+            newest[level] = -1;
+            size[level] = 0;
+            partial[level] = 0;
+            partialMin[level] = Double.MAX_VALUE;
+            partialMax[level] = -Double.MAX_VALUE;
+        }
+        added = 0;
+    }
+
+    // called for every finished column
+    void add(double min, double max) {
+        store(0, min, max);
+        for (int level = 1; level != LEVELS; level++) {
+            if (min < partialMin[level]) {
+                partialMin[level] = min;
+            }
+            if (max > partialMax[level]) {
+                partialMax[level] = max;
+            }
+            if (++partial[level] == 1 << (LEVEL_SHIFT * level)) {
+                store(level, partialMin[level], partialMax[level]);
+                partial[level] = 0;
+                partialMin[level] = Double.MAX_VALUE;
+                partialMax[level] = -Double.MAX_VALUE;
+            }
+        }
+        added++;
+    }
+
+    private void store(int level, double min, double max) {
+        int pos = (newest[level] + 1) & (CAPACITY - 1);
+        int chunk = pos >> CHUNK_SHIFT;
+        if (minChunks[level][chunk] == null) {
+            minChunks[level][chunk] = new double[CHUNK_SIZE];
+            maxChunks[level][chunk] = new double[CHUNK_SIZE];
+        }
+        minChunks[level][chunk][pos & CHUNK_MASK] = min;
+        maxChunks[level][chunk][pos & CHUNK_MASK] = max;
+        newest[level] = pos;
+        if (size[level] < CAPACITY) {
+            size[level]++;
+        }
+    }
+
+    /**
+     * Number of columns added so far. It wraps around, so only differences between two
+     * calls are meaningful.
+     */
+    int getAdded() {
+        return added;
+    }
+
+    // number of columns back from the newest that can still be read
+    int getLength() {
+        int top = LEVELS - 1;
+        return partial[top] + (size[top] << (LEVEL_SHIFT * top));
+    }
+
+    /**
+     * Fills min and max with width pixels of history, bucketsPerPixel columns each, the
+     * last pixel ending back columns before the newest one. Pixels older than the history
+     * are set to 0. Returns false if there's no history at all.
+     */
+    boolean read(int back, int bucketsPerPixel, int width, double[] min, double[] max) {
+        if (size[0] == 0) {
+            return false;
+        }
+        int base = 0;
+        while (base < LEVELS - 1 && 1 << (LEVEL_SHIFT * (base + 1)) <= bucketsPerPixel) {
+            base++;
+        }
+        for (int i = 0; i != width; i++) {
+            int from = back + (width - 1 - i) * bucketsPerPixel;
+            int to = from + bucketsPerPixel - 1;
+            int level = base;
+            while (level < LEVELS - 1 && !holds(level, to)) {
+                level++;
+            }
+            readPixel(level, from, to, i, min, max);
+        }
+        return true;
+    }
+
+    // is column k (counted back from the newest) in level?
+    private boolean holds(int level, int k) {
+        if (k < partial[level]) {
+            // not in this level yet, but recent enough for level 0
+            return true;
+        }
+        return ((k - partial[level]) >> (LEVEL_SHIFT * level)) < size[level];
+    }
+
+    private void readPixel(int level, int from, int to, int i, double[] min, double[] max) {
+        double mn = Double.MAX_VALUE;
+        double mx = -Double.MAX_VALUE;
+        int shift = LEVEL_SHIFT * level;
+        int k = from;
+        while (k <= to) {
+            int l, e;
+            if (k < partial[level]) {
+                // columns that don't make a full entry of this level yet
+                l = 0;
+                e = k;
+                k++;
+            } else {
+                l = level;
+                e = (k - partial[level]) >> shift;
+                k = partial[level] + ((e + 1) << shift);
+            }
+            if (e >= size[l]) {
+                break;
+            }
+            int pos = (newest[l] - e) & (CAPACITY - 1);
+            double[] minChunk = minChunks[l][pos >> CHUNK_SHIFT];
+            double[] maxChunk = maxChunks[l][pos >> CHUNK_SHIFT];
+            if (minChunk[pos & CHUNK_MASK] < mn) {
+                mn = minChunk[pos & CHUNK_MASK];
+            }
+            if (maxChunk[pos & CHUNK_MASK] > mx) {
+                mx = maxChunk[pos & CHUNK_MASK];
+            }
+        }
+        if (mn > mx) {
+            mn = mx = 0;
+        }
+        min[i] = mn;
+        max[i] = mx;
+    }
+}
@@ -12,6 +12,15 @@ public class ScopePlot {
     double[] sampleValues;
     int scopePointCount;
     int ptr; // ptr is pointer to the current sample
+    // finished columns, for browsing further back than the ring buffers reach; null until
+    // the scope's timeline is first used (see startHistory())
+    ScopeHistory history;
+    // columns finished since the ring buffers were last cleared, up to scopePointCount
+    private int ringColumns;
+    // simulated time per column of the history
+    double historyColumnTime;
+    // spectrum of the finished columns, while the scope shows this plot's spectrum
+    SpectrumAnalyzer spectrum;
     int value; // Value - the property being shown - e.g. VAL_CURRENT
     // scopePlotSpeed is in sim timestep units per pixel
     public int scopePlotSpeed, units;
@@ -93,6 +102,15 @@ public class ScopePlot {
         minValues = new double[scopePointCount];
         maxValues = new double[scopePointCount];
         sampleValues = new double[scopePointCount];
+        // columns of a different length can't be mixed in the history
+        double columnTime = circuitDocument.simulator.maxTimeStep * scopePlotSpeed;
+        if (oldSpc == 0 || full || columnTime != historyColumnTime) {
+            if (history != null) {
+                history.clear();
+            }
+            historyColumnTime = columnTime;
+            spectrum = null;
+        }
         if (oldMin != null && !full) {
             // preserve old data if possible
             int i;
@@ -105,8 +123,11 @@ public class ScopePlot {
                     sampleValues[i1] = oldSample[i2];
                 }
             }
-        } else
+            ringColumns = Math.min(ringColumns, i);
+        } else {
             lastUpdateTime = circuitDocument.simulator.t;
+            ringColumns = 0;
+        }
         ptr = 0;
     }
 
@@ -128,6 +149,15 @@ public class ScopePlot {
         if (v > maxValues[ptr])
             maxValues[ptr] = v;
         if (circuitDocument.simulator.t - lastUpdateTime >= circuitDocument.simulator.maxTimeStep * scopePlotSpeed) {
+            if (history != null) {
+                history.add(minValues[ptr], maxValues[ptr]);
+            }
+            if (ringColumns < scopePointCount) {
+                ringColumns++;
+            }
+            if (spectrum != null) {
+                spectrum.add(getSpectrumSample(minValues[ptr], maxValues[ptr]));
+            }
             ptr = (ptr + 1) & (scopePointCount - 1);
             minValues[ptr] = maxValues[ptr] = v;
             sampleValues[ptr] = v;
@@ -135,6 +165,32 @@ public class ScopePlot {
         }
     }
 
+    // Start recording the history, seeded with the finished columns still in the ring
+    // buffers. Each history takes up to ScopeHistory.MEMORY_BUDGET, so it's only kept for
+    // time-domain scopes whose timeline has been used.
+    void startHistory() {
+        if (history != null) {
+            return;
+        }
+        history = new ScopeHistory();
+        // oldest first; the column at ptr isn't finished yet
+        int count = Math.min(ringColumns, scopePointCount - 1);
+        for (int i = count; i > 0; i--) {
+            int p = (ptr - i) & (scopePointCount - 1);
+            history.add(minValues[p], maxValues[p]);
+        }
+    }
+
+    void stopHistory() {
+        history = null;
+    }
+
+    static double getSpectrumSample(double min, double max) {
+        // need to average max and min or else it could cause average of function to be > 0, which
+        // produces spike at 0 Hz that hides rest of spectrum
+        return .5 * (min + max);
+    }
+
     String getUnitText(double v) {
         switch (units) {
             case Scope.UNITS_V:
@@ -0,0 +1,413 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Records a set of signals every time step, for export as CSV or WAV.
+//
+// A frame is the simulation time and one value per channel. Frames are collected in
+// chunks of CHUNK_FRAMES, stored by column (time, then each channel), so recording a frame
+// is a few array stores and never allocates once the chunk pool is warm.
+//
+// In memory, only the chunks covering the last memoryLimit frames are kept, like a ring.
+// When recording to disk (desktop build, see RecordingFile), full chunks are appended to
+// columnar files in the background and released, so the heap holds about one chunk no
+// matter how long the recording runs. If the disk falls behind by MAX_PENDING_CHUNKS,
+// further chunks are dropped until it catches up, rather than piling up in the heap. If a
+// write fails, recording continues in memory.
+//
+// Exports read the chunks back one at a time and append them to a Blob, so the text of
+// a long recording never has to fit in one string. Frames that were dropped or pushed out
+// of memory are marked: a comment line in CSV, silence in WAV.
+public final class SignalRecorder {
+
+    static final int CHUNK_FRAMES = 4096;
+    // full chunks waiting to be written before new ones are dropped
+    static final int MAX_PENDING_CHUNKS = 64;
+    // most samples the 32 bit sizes of a WAV header can describe
+    static final long MAX_WAV_SAMPLES = (0xffffffffL - 36) / 2;
+
+    private final int columnCount;
+    private int memoryLimit;
+
+    // null unless recording to disk
+    private RecordingFile file;
+    private boolean spilling;
+    private boolean writing;
+    // chunks 0 to writtenChunks-1 are in the file, except the dropped ones
+    private int writtenChunks;
+    // full chunks in memory waiting to be written
+    private int pendingChunks;
+    // chunks dropped while the disk fell behind, ascending
+    private int[] droppedChunks = new int[16];
+    private int droppedCount;
+
+    // full chunks recorded so far; the next one is current
+    private int fullChunks;
+    // full chunks memoryStart to fullChunks-1 that are in memory, null if dropped
+    private final ArrayList<double[][]> memory = new ArrayList<>();
+    private int memoryStart;
+    private double[][] current;
+    private int frames;
+    private final ArrayList<double[][]> pool = new ArrayList<>();
+
+    // range of each column, for scaling WAV exports
+    private final double[] min;
+    private final double[] max;
+
+    public SignalRecorder(int channelCount, int memoryLimit) {
+        columnCount = channelCount + 1;
+        this.memoryLimit = memoryLimit;
+        min = new double[columnCount];
+        max = new double[columnCount];
+        clear();
+    }
+
+    public int getChannelCount() {
+        return columnCount - 1;
+    }
+
+    public void setMemoryLimit(int frames) {
+        memoryLimit = Math.max(1, frames);
+        trimMemory();
+    }
+
+    /**
+     * Starts a new recording, deleting the old one. If toDisk is set and the platform
+     * allows it, full chunks are written to temporary files instead of kept in memory.
+     */
+    public void start(boolean toDisk) {
+        clear();
+        if (toDisk) {
+            file = RecordingFile.create();
+            spilling = file != null;
+        }
+    }
+
+    public void clear() {
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+        spilling = writing = false;
+        writtenChunks = pendingChunks = droppedCount = fullChunks = memoryStart = frames = 0;
+        for (int i = 0; i != memory.size(); i++) {
+            recycle(memory.get(i));
+        }
+        memory.clear();
+        for (int c = 0; c != columnCount; c++) {
+            min[c] = Double.MAX_VALUE;
+            max[c] = -Double.MAX_VALUE;
+        }
+    }
+
+    // is the recording going to disk?
+    public boolean isSpilling() {
+        return spilling;
+    }
+
+    public static boolean canSpill() {
+        return RecordingFile.isAvailable();
+    }
+
+    public void record(double time, double[] values) {
+        if (current == null) {
+            current = pool.isEmpty() ? new double[columnCount][CHUNK_FRAMES] : pool.remove(pool.size() - 1);
+        }
+        store(0, time);
+        for (int c = 1; c != columnCount; c++) {
+            store(c, values[c - 1]);
+        }
+        if (++frames < CHUNK_FRAMES) {
+            return;
+        }
+        if (spilling && pendingChunks >= MAX_PENDING_CHUNKS) {
+            // the disk can't keep up; leave a gap instead of filling the heap
+            recycle(current);
+            memory.add(null);
+            if (droppedCount == droppedChunks.length) {
+                droppedChunks = Arrays.copyOf(droppedChunks, droppedCount * 2);
+            }
+            droppedChunks[droppedCount++] = fullChunks;
+        } else {
+            memory.add(current);
+            if (spilling) {
+                pendingChunks++;
+            }
+        }
+        current = null;
+        frames = 0;
+        fullChunks++;
+        if (spilling) {
+            writeNext();
+        } else {
+            trimMemory();
+        }
+    }
+
+    private void store(int column, double v) {
+        current[column][frames] = v;
+        if (v < min[column]) {
+            min[column] = v;
+        }
+        if (v > max[column]) {
+            max[column] = v;
+        }
+    }
+
+    private void recycle(double[][] chunk) {
+        if (chunk != null && pool.size() < 2) {
+            pool.add(chunk);
+        }
+    }
+
+    private void trimMemory() {
+        if (spilling) {
+            return;
+        }
+        // keep the full chunks needed for the last memoryLimit frames
+        while (!memory.isEmpty() && (memory.size() - 1) * CHUNK_FRAMES + frames >= memoryLimit) {
+            recycle(memory.remove(0));
+            memoryStart++;
+        }
+    }
+
+    private void writeNext() {
+        if (writing) {
+            return;
+        }
+        // dropped chunks have nothing to write
+        while (writtenChunks < fullChunks && memory.get(writtenChunks - memoryStart) == null) {
+            writtenChunks++;
+            memory.remove(0);
+            memoryStart++;
+        }
+        if (writtenChunks == fullChunks) {
+            return;
+        }
+        writing = true;
+        file.write(memory.get(writtenChunks - memoryStart), CHUNK_FRAMES, this);
+    }
+
+    // called by RecordingFile when a chunk has been written
+    void chunkWritten(RecordingFile f, boolean ok) {
+        if (f != file) {
+            // from a recording that has been cleared
+            return;
+        }
+        writing = false;
+        if (!ok) {
+            // keep what's in the file, and the rest in memory. Frames the memory limit
+            // pushes out from now on are marked as missing in exports.
+            spilling = false;
+            pendingChunks = 0;
+            trimMemory();
+            return;
+        }
+        writtenChunks++;
+        pendingChunks--;
+        if (memoryStart < writtenChunks) {
+            recycle(memory.remove(0));
+            memoryStart++;
+        }
+        if (spilling) {
+            writeNext();
+        }
+    }
+
+    // number of frames recorded since the start, including any no longer kept
+    public long getFrameCount() {
+        return (long) fullChunks * CHUNK_FRAMES + frames;
+    }
+
+    // first frame that can still be exported
+    public long getFirstFrame() {
+        if (writtenChunks > 0) {
+            return 0;
+        }
+        if (spilling) {
+            return (long) memoryStart * CHUNK_FRAMES;
+        }
+        return Math.max((long) memoryStart * CHUNK_FRAMES, getFrameCount() - memoryLimit);
+    }
+
+    // number of frames after the first one that an export can't contain, because they
+    // were dropped or pushed out of memory
+    public long getMissingFrameCount() {
+        long count = 0;
+        long first = getFirstFrame();
+        for (int k = (int) (first / CHUNK_FRAMES); k <= fullChunks; k++) {
+            if (!isAvailable(k)) {
+                count += getChunkFrames(k) - getChunkStart(k, first);
+            }
+        }
+        return count;
+    }
+
+    private boolean isAvailable(int k) {
+        if (k >= memoryStart) {
+            return k == fullChunks || memory.get(k - memoryStart) != null;
+        }
+        return k < writtenChunks && getDroppedIndex(k) < 0;
+    }
+
+    // index of chunk k in droppedChunks, or -(chunks dropped before it) - 1
+    private int getDroppedIndex(int k) {
+        return Arrays.binarySearch(droppedChunks, 0, droppedCount, k);
+    }
+
+    private int getChunkFrames(int k) {
+        return k < fullChunks ? CHUNK_FRAMES : frames;
+    }
+
+    private int getChunkStart(int k, long first) {
+        return k == first / CHUNK_FRAMES ? (int) (first % CHUNK_FRAMES) : 0;
+    }
+
+    // columns of chunk k, read into scratch if it is only in the file; null if unavailable
+    private double[][] getChunk(int k, double[][] scratch) {
+        if (k >= memoryStart) {
+            return k < fullChunks ? memory.get(k - memoryStart) : current;
+        }
+        int dropped = getDroppedIndex(k);
+        if (k >= writtenChunks || dropped >= 0) {
+            return null;
+        }
+        // the file has no room for the dropped chunks
+        int position = k + dropped + 1;
+        for (int c = 0; c != columnCount; c++) {
+            if (!file.read(c, position, CHUNK_FRAMES, scratch[c])) {
+                return null;
+            }
+        }
+        return scratch;
+    }
+
+    /**
+     * Returns an object URL of the recording as CSV, with a header row of the column
+     * names (time first) after the comment lines.
+     */
+    public String getCsvUrl(String comment, String[] names) {
+        StringBuilder sb = new StringBuilder(comment);
+        for (int c = 0; c != columnCount; c++) {
+            sb.append(c == 0 ? "" : ",").append(names[c]);
+        }
+        sb.append('\n');
+        JavaScriptObject blob = appendText(null, sb.toString(), "text/csv");
+        double[][] scratch = new double[columnCount][CHUNK_FRAMES];
+        long first = getFirstFrame();
+        long missing = 0;
+        for (int k = (int) (first / CHUNK_FRAMES); k <= fullChunks; k++) {
+            double[][] chunk = isAvailable(k) ? getChunk(k, scratch) : null;
+            int start = getChunkStart(k, first);
+            int n = getChunkFrames(k);
+            if (chunk == null) {
+                missing += n - start;
+                continue;
+            }
+            sb = new StringBuilder();
+            if (missing > 0) {
+                sb.append("# ").append(missing).append(" frames missing\n");
+                missing = 0;
+            }
+            for (int i = start; i != n; i++) {
+                sb.append(chunk[0][i]);
+                for (int c = 1; c != columnCount; c++) {
+                    sb.append(',').append(chunk[c][i]);
+                }
+                sb.append('\n');
+            }
+            blob = appendText(blob, sb.toString(), "text/csv");
+        }
+        if (missing > 0) {
+            blob = appendText(blob, "# " + missing + " frames missing\n", "text/csv");
+        }
+        return getBlobUrl(blob);
+    }
+
+    /**
+     * Returns an object URL of one channel as a 16 bit mono WAV file, scaled to full
+     * range. Frames are taken as samples at sampleRate, so the time step should be
+     * constant. Missing frames are silent, so the rest keeps its timing; samples beyond
+     * what a WAV file can hold are left out.
+     */
+    public String getWavUrl(int channel, int sampleRate) {
+        int column = channel + 1;
+        double offset = 0;
+        double scale = 0;
+        if (max[column] >= min[column]) {
+            offset = -(max[column] + min[column]) / 2;
+            double range = max[column] + offset;
+            scale = range > 0 ? 32767 / range : 0;
+        }
+        long first = getFirstFrame();
+        long remaining = Math.min(getFrameCount() - first, MAX_WAV_SAMPLES);
+        JavaScriptObject blob = getWavHeader((int) remaining, sampleRate);
+        double[][] scratch = new double[columnCount][CHUNK_FRAMES];
+        for (int k = (int) (first / CHUNK_FRAMES); k <= fullChunks && remaining > 0; k++) {
+            int start = getChunkStart(k, first);
+            int end = (int) Math.min(getChunkFrames(k), start + remaining);
+            remaining -= end - start;
+            double[][] chunk = isAvailable(k) ? getChunk(k, scratch) : null;
+            if (chunk != null) {
+                blob = appendSamples(blob, chunk[column], start, end, offset, scale);
+            } else {
+                blob = appendSilence(blob, end - start);
+            }
+        }
+        return getBlobUrl(blob);
+    }
+
+    private static native JavaScriptObject appendText(JavaScriptObject blob, String text, String type) /*-{
+        return new Blob(blob ? [blob, text] : [text], {type: type});
+    }-*/;
+
+    private static native JavaScriptObject getWavHeader(int samples, int sampleRate) /*-{
+        var header = new DataView(new ArrayBuffer(44));
+        var text = function(pos, s) {
+            for (var i = 0; i < s.length; i++) {
+                header.setUint8(pos + i, s.charCodeAt(i));
+            }
+        };
+        text(0, 'RIFF');
+        header.setUint32(4, 36 + samples * 2, true);
+        text(8, 'WAVE');
+        text(12, 'fmt ');
+        header.setUint32(16, 16, true);
+        header.setUint16(20, 1, true);
+        header.setUint16(22, 1, true);
+        header.setUint32(24, sampleRate, true);
+        header.setUint32(28, sampleRate * 2, true);
+        header.setUint16(32, 2, true);
+        header.setUint16(34, 16, true);
+        text(36, 'data');
+        header.setUint32(40, samples * 2, true);
+        return new Blob([header], {type: 'audio/wav'});
+    }-*/;
+
+    private static native JavaScriptObject appendSamples(JavaScriptObject blob, double[] data, int start, int end,
+                                                         double offset, double scale) /*-{
+        var samples = new Int16Array(end - start);
+        for (var i = start; i < end; i++) {
+            var s = Math.round((data[i] + offset) * scale);
+            samples[i - start] = s > 32767 ? 32767 : s < -32768 ? -32768 : s;
+        }
+        return new Blob([blob, samples], {type: 'audio/wav'});
+    }-*/;
+
+    private static native JavaScriptObject appendSilence(JavaScriptObject blob, int count) /*-{
+        return new Blob([blob, new Int16Array(count)], {type: 'audio/wav'});
+    }-*/;
+
+    private static native String getBlobUrl(JavaScriptObject blob) /*-{
+        // remove old blob if any.  We should do this when the download is done, but this is easier
+        var oldblob = $doc.recorderBlob;
+        if (oldblob)
+            URL.revokeObjectURL(oldblob);
+        var url = URL.createObjectURL(blob);
+        $doc.recorderBlob = url;
+        return url;
+    }-*/;
+}
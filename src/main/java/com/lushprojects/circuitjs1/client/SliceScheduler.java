@@ -0,0 +1,48 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.Scheduler;
+
+// Runs a command as a new browser task, as soon as pending input events and frames allow.
+//
+// Used to give the simulation the time between frames in short slices. A Timer can't be
+// used for that: browsers clamp nested setTimeout(0) calls to 4 ms, which would leave the
+// CPU idle for a third of the time. A message posted to a MessageChannel is delivered as
+// an ordinary task without that delay.
+final class SliceScheduler {
+
+    private final JavaScriptObject port;
+    private boolean pending;
+
+    SliceScheduler(Scheduler.ScheduledCommand command) {
+        port = createPort(command);
+    }
+
+    /**
+     * Schedules the command, unless it is already scheduled.
+     */
+    void schedule() {
+        if (!pending) {
+            pending = true;
+            postMessage(port);
+        }
+    }
+
+    private void run(Scheduler.ScheduledCommand command) {
+        pending = false;
+        command.execute();
+    }
+
+    private native JavaScriptObject createPort(Scheduler.ScheduledCommand command) /*-{
+        var that = this;
+        var channel = new $wnd.MessageChannel();
+        channel.port1.onmessage = $entry(function() {
+            that.@com.lushprojects.circuitjs1.client.SliceScheduler::run(Lcom/google/gwt/core/client/Scheduler$ScheduledCommand;)(command);
+        });
+        return channel.port2;
+    }-*/;
+
+    private static native void postMessage(JavaScriptObject port) /*-{
+        port.postMessage(0);
+    }-*/;
+}
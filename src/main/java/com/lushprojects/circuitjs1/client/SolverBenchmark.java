@@ -0,0 +1,135 @@
+package com.lushprojects.circuitjs1.client;
+
+// Times the matrix solvers on a synthetic circuit matrix, so solver regressions can be
+// measured without loading a circuit. The matrix is the nodal matrix of a square resistor
+// mesh with a small conductance from every node to ground, which has the sparsity and
+// fill-in behaviour of a typical large circuit.
+//
+// Refactoring is timed twice: with the same matrix every time, which only redoes the
+// numeric factorization, and alternating between two meshes that each have one extra link
+// across opposite corners (like a switch changing over), so every call finds entries
+// outside the last factorization's pattern and has to reorder.
+//
+// Results are in nanoseconds per operation. Dense timings are skipped above
+// MAX_DENSE_SIZE, where a single factorization already takes seconds.
+class SolverBenchmark {
+
+    static final int MAX_DENSE_SIZE = 1000;
+
+    double denseFactorNs = Double.NaN;
+    double denseSolveNs = Double.NaN;
+    double sparseFactorNs;
+    double sparseRefactorNs;
+    double sparseRefactorChangedNs;
+    double sparseSolveNs;
+    int sparseFactorNonZeros;
+
+    private final int size;
+    private final int iterations;
+
+    SolverBenchmark(int size, int iterations) {
+        this.size = Math.max(size, 1);
+        this.iterations = Math.max(iterations, 1);
+    }
+
+    void run() {
+        SparseMatrix matrix = buildMeshMatrix(size);
+        double[] rightSide = new double[size];
+
+        if (size <= MAX_DENSE_SIZE) {
+            double[][] dense = new double[size][size];
+            int[] permute = new int[size];
+            long factorTime = 0;
+            long solveTime = 0;
+            for (int i = 0; i < iterations; i++) {
+                matrix.copyToDense(dense);
+                long start = System.nanoTime();
+                CircuitMath.lu_factor(dense, size, permute);
+                factorTime += System.nanoTime() - start;
+
+                fillRightSide(rightSide);
+                start = System.nanoTime();
+                CircuitMath.lu_solve(dense, size, permute, rightSide);
+                solveTime += System.nanoTime() - start;
+            }
+            denseFactorNs = (double) factorTime / iterations;
+            denseSolveNs = (double) solveTime / iterations;
+        }
+
+        SparseLU lu = new SparseLU();
+        long factorTime = 0;
+        long refactorTime = 0;
+        long solveTime = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            lu.factor(matrix);
+            factorTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            lu.refactor(matrix);
+            refactorTime += System.nanoTime() - start;
+
+            fillRightSide(rightSide);
+            start = System.nanoTime();
+            lu.solve(rightSide);
+            solveTime += System.nanoTime() - start;
+        }
+        sparseFactorNs = (double) factorTime / iterations;
+        sparseRefactorNs = (double) refactorTime / iterations;
+        sparseSolveNs = (double) solveTime / iterations;
+        sparseFactorNonZeros = lu.getFactorNonZeroCount();
+
+        // neither link is in the fill-in of the other mesh's factorization
+        SparseMatrix first = buildMeshMatrix(size);
+        addCornerLink(first, size, false);
+        SparseMatrix second = buildMeshMatrix(size);
+        addCornerLink(second, size, true);
+        lu.factor(first);
+        long changedTime = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            lu.refactor(second);
+            lu.refactor(first);
+            changedTime += System.nanoTime() - start;
+        }
+        sparseRefactorChangedNs = (double) changedTime / (2 * iterations);
+    }
+
+    private void fillRightSide(double[] rightSide) {
+        for (int i = 0; i < size; i++) {
+            rightSide[i] = (i % 7) - 3;
+        }
+    }
+
+    static SparseMatrix buildMeshMatrix(int n) {
+        SparseMatrix m = new SparseMatrix(n);
+        int side = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 0; i < n; i++) {
+            m.add(i, i, 1e-3);
+            if ((i + 1) % side != 0 && i + 1 < n) {
+                stampConductance(m, i, i + 1, 1);
+            }
+            if (i + side < n) {
+                stampConductance(m, i, i + side, 0.5);
+            }
+        }
+        return m;
+    }
+
+    // link the first and last node of the mesh, or the other two corners if otherDiagonal
+    static void addCornerLink(SparseMatrix m, int n, boolean otherDiagonal) {
+        int side = (int) Math.ceil(Math.sqrt(n));
+        if (otherDiagonal) {
+            stampConductance(m, Math.min(side, n) - 1, (n - 1) / side * side, 0.25);
+        } else {
+            stampConductance(m, 0, n - 1, 0.25);
+        }
+    }
+
+    private static void stampConductance(SparseMatrix m, int a, int b, double g) {
+        m.add(a, a, g);
+        m.add(b, b, g);
+        m.add(a, b, -g);
+        m.add(b, a, -g);
+    }
+}
@@ -0,0 +1,105 @@
+package com.lushprojects.circuitjs1.client;
+
+// Checks the sparse solver against the dense one on the same system: SparseLU solves it
+// after a fresh factor() and again after refactor(), CircuitMath.lu_factor/lu_solve
+// solves it densely, and each solution's residual is compared against the scale of the
+// system. The residuals are normwise backward errors,
+//   max |A x - b| / (max |A| * max |x| + max |b|),
+// so anything near machine precision means the solution is as good as the data allows.
+// maxDifference is the largest difference between a sparse and the dense solution,
+// relative to the largest dense value.
+//
+// Dense solving is skipped above SolverBenchmark.MAX_DENSE_SIZE; the residuals still show
+// whether the sparse solutions are right.
+class SolverCheck {
+
+    boolean denseSingular;
+    boolean sparseSingular;
+    double denseResidual = Double.NaN;
+    double sparseResidual = Double.NaN;
+    double refactorResidual = Double.NaN;
+    double maxDifference = Double.NaN;
+
+    private final SparseMatrix matrix;
+    private final double[] rightSide;
+    private final int size;
+
+    SolverCheck(SparseMatrix matrix, double[] rightSide) {
+        this.matrix = matrix;
+        this.rightSide = rightSide;
+        this.size = matrix.getSize();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    void run() {
+        double[] denseSolution = null;
+        if (size <= SolverBenchmark.MAX_DENSE_SIZE) {
+            double[][] dense = new double[size][size];
+            int[] permute = new int[size];
+            matrix.copyToDense(dense);
+            denseSingular = !CircuitMath.lu_factor(dense, size, permute);
+            if (!denseSingular) {
+                denseSolution = rightSide.clone();
+                CircuitMath.lu_solve(dense, size, permute, denseSolution);
+                denseResidual = residual(denseSolution);
+            }
+        }
+
+        SparseLU lu = new SparseLU();
+        sparseSingular = !lu.factor(matrix);
+        if (sparseSingular) {
+            return;
+        }
+        double[] sparseSolution = rightSide.clone();
+        lu.solve(sparseSolution);
+        sparseResidual = residual(sparseSolution);
+
+        // the pattern is unchanged, so this takes the numeric-only path
+        lu.refactor(matrix);
+        double[] refactorSolution = rightSide.clone();
+        lu.solve(refactorSolution);
+        refactorResidual = residual(refactorSolution);
+
+        if (denseSolution != null) {
+            double scale = Math.max(maxAbs(denseSolution), Double.MIN_NORMAL);
+            maxDifference = Math.max(maxDifference(sparseSolution, denseSolution),
+                    maxDifference(refactorSolution, denseSolution)) / scale;
+        }
+    }
+
+    private double residual(double[] x) {
+        double maxResidual = 0;
+        double maxEntry = 0;
+        for (int i = 0; i < size; i++) {
+            double sum = -rightSide[i];
+            int rowLength = matrix.getRowLength(i);
+            for (int k = 0; k < rowLength; k++) {
+                double value = matrix.getValue(i, k);
+                sum += value * x[matrix.getColumn(i, k)];
+                maxEntry = Math.max(maxEntry, Math.abs(value));
+            }
+            maxResidual = Math.max(maxResidual, Math.abs(sum));
+        }
+        double scale = maxEntry * maxAbs(x) + maxAbs(rightSide);
+        return scale == 0 ? maxResidual : maxResidual / scale;
+    }
+
+    private static double maxAbs(double[] v) {
+        double max = 0;
+        for (double x : v) {
+            max = Math.max(max, Math.abs(x));
+        }
+        return max;
+    }
+
+    private static double maxDifference(double[] a, double[] b) {
+        double max = 0;
+        for (int i = 0; i < a.length; i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
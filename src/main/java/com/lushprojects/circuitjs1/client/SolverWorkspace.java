@@ -0,0 +1,101 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.Arrays;
+
+// Matrix buffers used by CircuitSimulator.stampCircuit().
+// stampCircuit() runs again whenever the timestep is halved or doubled, so instead of
+// allocating new matrices every time, we keep arrays sized to the largest circuit seen
+// so far (the high-water mark) and clear the part that is used. Callers must only rely on
+// the first n rows/columns, since the arrays may be larger.
+class SolverWorkspace {
+
+    private double[][] stampMatrix;
+    private double[][] simplifiedMatrix;
+    private double[][] origMatrix;
+    private double[] stampRightSide;
+    private double[] simplifiedRightSide;
+    private double[] origRightSide;
+    private RowInfo[] rowInfo;
+    private int[] permute;
+    private boolean[] borderMask;
+
+    final SparseMatrix stampSparseMatrix = new SparseMatrix(0);
+    final SparseMatrix simplifiedSparseMatrix = new SparseMatrix(0);
+    final SparseMatrix origSparseMatrix = new SparseMatrix(0);
+
+    double[][] getStampMatrix(int n) {
+        return stampMatrix = clearedMatrix(stampMatrix, n);
+    }
+
+    double[][] getSimplifiedMatrix(int n) {
+        return simplifiedMatrix = clearedMatrix(simplifiedMatrix, n);
+    }
+
+    double[][] getOrigMatrix(int n) {
+        return origMatrix = clearedMatrix(origMatrix, n);
+    }
+
+    double[] getStampRightSide(int n) {
+        return stampRightSide = clearedArray(stampRightSide, n);
+    }
+
+    double[] getSimplifiedRightSide(int n) {
+        return simplifiedRightSide = clearedArray(simplifiedRightSide, n);
+    }
+
+    double[] getOrigRightSide(int n) {
+        return origRightSide = clearedArray(origRightSide, n);
+    }
+
+    int[] getPermute(int n) {
+        if (permute == null || permute.length < n) {
+            permute = new int[n];
+        }
+        return permute;
+    }
+
+    boolean[] getBorderMask(int n) {
+        if (borderMask == null || borderMask.length < n) {
+            borderMask = new boolean[n];
+        } else {
+            Arrays.fill(borderMask, 0, n, false);
+        }
+        return borderMask;
+    }
+
+    RowInfo[] getRowInfo(int n) {
+        if (rowInfo == null || rowInfo.length < n) {
+            RowInfo[] newRowInfo = new RowInfo[n];
+            int reused = (rowInfo == null) ? 0 : rowInfo.length;
+            if (reused > 0) {
+                System.arraycopy(rowInfo, 0, newRowInfo, 0, reused);
+            }
+            for (int i = reused; i < n; i++) {
+                newRowInfo[i] = new RowInfo();
+            }
+            rowInfo = newRowInfo;
+        }
+        for (int i = 0; i < n; i++) {
+            rowInfo[i].reset();
+        }
+        return rowInfo;
+    }
+
+    private static double[][] clearedMatrix(double[][] m, int n) {
+        if (m == null || m.length < n) {
+            return new double[n][n];
+        }
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(m[i], 0, n, 0);
+        }
+        return m;
+    }
+
+    private static double[] clearedArray(double[] a, int n) {
+        if (a == null || a.length < n) {
+            return new double[n];
+        }
+        Arrays.fill(a, 0, n, 0);
+        return a;
+    }
+}
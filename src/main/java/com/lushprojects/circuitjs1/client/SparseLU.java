@@ -0,0 +1,545 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.Arrays;
+
+// Sparse LU factorization for large circuit matrices.
+//
+// The matrix is converted to compressed column storage, the columns are ordered
+// by a minimum degree ordering of the pattern of A+A' to reduce fill-in, and then
+// factored with a left-looking (Gilbert-Peierls) LU with partial pivoting.
+// Diagonal pivots are preferred when they are within DIAGONAL_PIVOT_TOLERANCE of the
+// largest candidate, so the fill-reducing ordering is mostly preserved.
+//
+// The factors are P*A*Q = L*U, where L is unit lower triangular (row indices are
+// kept in original row numbering) and U is upper triangular (row indices in pivot order,
+// diagonal stored last in each column).
+//
+// Nonlinear sub-iterations change matrix values but not the nonzero pattern, so
+// refactor() reuses the ordering, pivot sequence and L/U structure of the last
+// factorization and only recomputes the numeric values. It falls back to a full
+// factorization if the pattern changed or a reused pivot became too small.
+public class SparseLU {
+
+    static final double DIAGONAL_PIVOT_TOLERANCE = 0.001;
+
+    // same singularity threshold as CircuitMath.lu_factor()
+    static final double MIN_PIVOT = 1e-14;
+
+    private int n;
+
+    // input matrix in compressed column form
+    private int[] colStart = new int[1];
+    private int[] rowIndex = new int[0];
+    private double[] values = new double[0];
+
+    // fill-reducing column order: step k factors column colPerm[k]
+    private int[] colPerm = new int[0];
+
+    // row pivoting: pivotRow[k] is the row chosen at step k, pivotInv is its inverse
+    private int[] pivotRow = new int[0];
+    private int[] pivotInv = new int[0];
+
+    private int[] lStart = new int[1];
+    private int[] lRow = new int[0];
+    private double[] lValue = new double[0];
+    private int[] uStart = new int[1];
+    private int[] uRow = new int[0];
+    private double[] uValue = new double[0];
+
+    // workspace; work must be all zero between factorizations
+    private double[] work = new double[0];
+    private double[] solveWork = new double[0];
+    private int[] reachList = new int[0];
+    private int[] dfsStack = new int[0];
+    private int[] dfsPos = new int[0];
+    private int[] mark = new int[0];
+    private int markStamp;
+
+    // true if the ordering and L/U structure can be reused by refactor()
+    private boolean factored;
+
+    public int getSize() {
+        return n;
+    }
+
+    public int getFactorNonZeroCount() {
+        return lStart[n] + uStart[n];
+    }
+
+    /**
+     * Orders and factors the matrix. Returns false if the matrix is singular; failure
+     * details are reported through CircuitMath.getLastLuFail*().
+     */
+    public boolean factor(SparseMatrix a) {
+        load(a);
+        computeOrdering();
+        return factored = factorNumeric();
+    }
+
+    /**
+     * Factors a matrix with the same pattern as the last one, reusing its symbolic
+     * analysis when possible. Same return value as factor().
+     */
+    public boolean refactor(SparseMatrix a) {
+        if (!factored || a.size != n) {
+            return factor(a);
+        }
+        load(a);
+        int result = refactorNumeric();
+        if (result == REFACTOR_OK) {
+            return true;
+        }
+        if (result == REFACTOR_PATTERN_CHANGED) {
+            computeOrdering();
+        }
+        // redo pivoting, keeping the ordering if the pattern is unchanged
+        return factored = factorNumeric();
+    }
+
+    /**
+     * Solves A x = b using the current factorization. b is replaced with the solution.
+     */
+    public void solve(double[] b) {
+        int n = this.n;
+        double[] w = solveWork;
+        System.arraycopy(b, 0, w, 0, n);
+
+        // forward substitution with L (unit diagonal stored first in each column)
+        for (int j = 0; j < n; j++) {
+            double xj = w[pivotRow[j]];
+            if (xj == 0) {
+                continue;
+            }
+            for (int p = lStart[j] + 1; p < lStart[j + 1]; p++) {
+                w[lRow[p]] -= lValue[p] * xj;
+            }
+        }
+
+        // back substitution with U (diagonal stored last in each column)
+        for (int j = n - 1; j >= 0; j--) {
+            int r = pivotRow[j];
+            int diag = uStart[j + 1] - 1;
+            double xj = w[r] / uValue[diag];
+            w[r] = xj;
+            if (xj == 0) {
+                continue;
+            }
+            for (int p = uStart[j]; p < diag; p++) {
+                w[pivotRow[uRow[p]]] -= uValue[p] * xj;
+            }
+        }
+
+        for (int k = 0; k < n; k++) {
+            b[colPerm[k]] = w[pivotRow[k]];
+        }
+    }
+
+    // convert row-oriented stamping storage into compressed columns (rows sorted within each column)
+    private void load(SparseMatrix a) {
+        int n = this.n = a.size;
+        ensureWorkspace(n);
+        int nnz = a.getNonZeroCount();
+        if (rowIndex.length < nnz) {
+            rowIndex = new int[nnz];
+            values = new double[nnz];
+        }
+        Arrays.fill(colStart, 0, n + 1, 0);
+        for (int i = 0; i < n; i++) {
+            int[] cols = a.rowCols[i];
+            for (int k = 0; k < a.rowLength[i]; k++) {
+                colStart[cols[k] + 1]++;
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            colStart[j + 1] += colStart[j];
+        }
+        int[] next = dfsPos;
+        System.arraycopy(colStart, 0, next, 0, n);
+        for (int i = 0; i < n; i++) {
+            int[] cols = a.rowCols[i];
+            double[] vals = a.rowValues[i];
+            for (int k = 0; k < a.rowLength[i]; k++) {
+                int p = next[cols[k]]++;
+                rowIndex[p] = i;
+                values[p] = vals[k];
+            }
+        }
+    }
+
+    private void ensureWorkspace(int n) {
+        if (colPerm.length >= n) {
+            return;
+        }
+        colStart = new int[n + 1];
+        colPerm = new int[n];
+        pivotRow = new int[n];
+        pivotInv = new int[n];
+        lStart = new int[n + 1];
+        uStart = new int[n + 1];
+        work = new double[n];
+        solveWork = new double[n];
+        reachList = new int[n];
+        dfsStack = new int[n];
+        dfsPos = new int[n + 1];
+        mark = new int[n];
+        markStamp = 0;
+    }
+
+    private int nextMarkStamp() {
+        if (++markStamp == Integer.MAX_VALUE) {
+            Arrays.fill(mark, 0);
+            markStamp = 1;
+        }
+        return markStamp;
+    }
+
+    // Minimum degree ordering on the graph of A+A'. The elimination graph is updated explicitly,
+    // which is fine for circuit matrices where nodes have few neighbors. Once the remaining graph
+    // is a clique the rest of the order doesn't matter.
+    private void computeOrdering() {
+        int n = this.n;
+        int[][] adj = new int[n][];
+        int[] adjLen = new int[n];
+        int[] degreeCount = new int[n];
+
+        // count symmetric pattern (duplicates are removed below)
+        for (int j = 0; j < n; j++) {
+            for (int p = colStart[j]; p < colStart[j + 1]; p++) {
+                int i = rowIndex[p];
+                if (i != j) {
+                    degreeCount[i]++;
+                    degreeCount[j]++;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            adj[i] = new int[Math.max(degreeCount[i], 1)];
+        }
+        for (int j = 0; j < n; j++) {
+            for (int p = colStart[j]; p < colStart[j + 1]; p++) {
+                int i = rowIndex[p];
+                if (i != j) {
+                    adj[i][adjLen[i]++] = j;
+                    adj[j][adjLen[j]++] = i;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int stamp = nextMarkStamp();
+            int len = 0;
+            for (int k = 0; k < adjLen[i]; k++) {
+                int v = adj[i][k];
+                if (mark[v] != stamp) {
+                    mark[v] = stamp;
+                    adj[i][len++] = v;
+                }
+            }
+            adjLen[i] = len;
+        }
+
+        // degree buckets (doubly linked lists)
+        int[] head = new int[n];
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        Arrays.fill(head, -1);
+        for (int i = 0; i < n; i++) {
+            bucketInsert(head, next, prev, adjLen[i], i);
+        }
+        boolean[] eliminated = new boolean[n];
+        int[] neighbors = new int[n];
+        int minDegree = 0;
+
+        for (int k = 0; k < n; k++) {
+            while (head[minDegree] == -1) {
+                minDegree++;
+            }
+            int remaining = n - k;
+            if (minDegree == remaining - 1) {
+                // everything left is fully connected
+                for (int d = minDegree; d < n; d++) {
+                    for (int v = head[d]; v != -1; v = next[v]) {
+                        colPerm[k++] = v;
+                    }
+                }
+                break;
+            }
+            int v = head[minDegree];
+            bucketRemove(head, next, prev, adjLen[v], v);
+            eliminated[v] = true;
+            colPerm[k] = v;
+
+            int neighborCount = 0;
+            for (int q = 0; q < adjLen[v]; q++) {
+                int u = adj[v][q];
+                if (!eliminated[u]) {
+                    neighbors[neighborCount++] = u;
+                }
+            }
+
+            // connect the neighbors of v to each other
+            for (int q = 0; q < neighborCount; q++) {
+                int u = neighbors[q];
+                int stamp = nextMarkStamp();
+                mark[u] = stamp;
+                int[] list = adj[u];
+                int len = 0;
+                for (int r = 0; r < adjLen[u]; r++) {
+                    int w = list[r];
+                    if (!eliminated[w] && mark[w] != stamp) {
+                        mark[w] = stamp;
+                        list[len++] = w;
+                    }
+                }
+                for (int r = 0; r < neighborCount; r++) {
+                    int w = neighbors[r];
+                    if (mark[w] != stamp) {
+                        mark[w] = stamp;
+                        if (len == list.length) {
+                            list = adj[u] = Arrays.copyOf(list, len * 2);
+                        }
+                        list[len++] = w;
+                    }
+                }
+                bucketRemove(head, next, prev, adjLen[u], u);
+                adjLen[u] = len;
+                bucketInsert(head, next, prev, len, u);
+                if (len < minDegree) {
+                    minDegree = len;
+                }
+            }
+        }
+    }
+
+    private static void bucketInsert(int[] head, int[] next, int[] prev, int degree, int v) {
+        next[v] = head[degree];
+        prev[v] = -1;
+        if (head[degree] != -1) {
+            prev[head[degree]] = v;
+        }
+        head[degree] = v;
+    }
+
+    private static void bucketRemove(int[] head, int[] next, int[] prev, int degree, int v) {
+        if (prev[v] != -1) {
+            next[prev[v]] = next[v];
+        } else {
+            head[degree] = next[v];
+        }
+        if (next[v] != -1) {
+            prev[next[v]] = prev[v];
+        }
+    }
+
+    private boolean factorNumeric() {
+        int n = this.n;
+        int nnz = colStart[n];
+        if (lRow.length < nnz * 2 + n) {
+            lRow = new int[nnz * 2 + n];
+            lValue = new double[lRow.length];
+        }
+        if (uRow.length < nnz * 2 + n) {
+            uRow = new int[nnz * 2 + n];
+            uValue = new double[uRow.length];
+        }
+        double[] x = work;
+        Arrays.fill(pivotInv, 0, n, -1);
+        Arrays.fill(x, 0, n, 0);
+        int lnz = 0;
+        int unz = 0;
+
+        for (int k = 0; k < n; k++) {
+            lStart[k] = lnz;
+            uStart[k] = unz;
+            if (lnz + n > lRow.length) {
+                lRow = Arrays.copyOf(lRow, 2 * lRow.length + n);
+                lValue = Arrays.copyOf(lValue, lRow.length);
+            }
+            if (unz + n > uRow.length) {
+                uRow = Arrays.copyOf(uRow, 2 * uRow.length + n);
+                uValue = Arrays.copyOf(uValue, uRow.length);
+            }
+
+            int col = colPerm[k];
+            int top = sparseSolve(col);
+
+            // find pivot, and move already pivoted rows into U
+            int ipiv = -1;
+            double largest = -1;
+            for (int p = top; p < n; p++) {
+                int i = reachList[p];
+                if (pivotInv[i] < 0) {
+                    double t = Math.abs(x[i]);
+                    if (t > largest) {
+                        largest = t;
+                        ipiv = i;
+                    }
+                } else {
+                    uRow[unz] = pivotInv[i];
+                    uValue[unz++] = x[i];
+                }
+            }
+            if (ipiv == -1 || largest < MIN_PIVOT) {
+                CircuitMath.setLuFailure(col, ipiv, Math.max(largest, 0));
+                for (int p = top; p < n; p++) {
+                    x[reachList[p]] = 0;
+                }
+                return false;
+            }
+            if (pivotInv[col] < 0 && Math.abs(x[col]) >= largest * DIAGONAL_PIVOT_TOLERANCE) {
+                ipiv = col;
+            }
+
+            double pivot = x[ipiv];
+            uRow[unz] = k;
+            uValue[unz++] = pivot;
+            pivotInv[ipiv] = k;
+            pivotRow[k] = ipiv;
+            lRow[lnz] = ipiv;
+            lValue[lnz++] = 1;
+            double pivotInverse = 1.0 / pivot;
+            for (int p = top; p < n; p++) {
+                int i = reachList[p];
+                if (pivotInv[i] < 0) {
+                    lRow[lnz] = i;
+                    lValue[lnz++] = x[i] * pivotInverse;
+                }
+                x[i] = 0;
+            }
+        }
+        lStart[n] = lnz;
+        uStart[n] = unz;
+        return true;
+    }
+
+    private static final int REFACTOR_OK = 0;
+    private static final int REFACTOR_PATTERN_CHANGED = 1;
+    private static final int REFACTOR_BAD_PIVOT = 2;
+
+    // Numeric factorization along the pivot sequence and structure of the last factor().
+    // U entries of each column are stored in topological order, so they can be applied in order.
+    private int refactorNumeric() {
+        int n = this.n;
+        double[] x = work;
+        for (int k = 0; k < n; k++) {
+            int col = colPerm[k];
+            int diag = uStart[k + 1] - 1;
+            int pivotRowK = pivotRow[k];
+
+            // every entry of A(:,col) must be in the stored pattern of column k
+            int stamp = nextMarkStamp();
+            for (int p = uStart[k]; p < diag; p++) {
+                mark[pivotRow[uRow[p]]] = stamp;
+            }
+            for (int p = lStart[k]; p < lStart[k + 1]; p++) {
+                mark[lRow[p]] = stamp;
+            }
+            for (int p = colStart[col]; p < colStart[col + 1]; p++) {
+                if (mark[rowIndex[p]] != stamp) {
+                    return REFACTOR_PATTERN_CHANGED;
+                }
+            }
+
+            for (int p = colStart[col]; p < colStart[col + 1]; p++) {
+                x[rowIndex[p]] = values[p];
+            }
+            for (int p = uStart[k]; p < diag; p++) {
+                int jj = uRow[p];
+                int r = pivotRow[jj];
+                double xj = x[r];
+                x[r] = 0;
+                uValue[p] = xj;
+                for (int q = lStart[jj] + 1; q < lStart[jj + 1]; q++) {
+                    x[lRow[q]] -= lValue[q] * xj;
+                }
+            }
+
+            double pivot = x[pivotRowK];
+            double largest = 0;
+            for (int p = lStart[k] + 1; p < lStart[k + 1]; p++) {
+                largest = Math.max(largest, Math.abs(x[lRow[p]]));
+            }
+            double pivotAbs = Math.abs(pivot);
+            if (pivotAbs < MIN_PIVOT || pivotAbs < largest * DIAGONAL_PIVOT_TOLERANCE) {
+                for (int p = lStart[k]; p < lStart[k + 1]; p++) {
+                    x[lRow[p]] = 0;
+                }
+                return REFACTOR_BAD_PIVOT;
+            }
+
+            uValue[diag] = pivot;
+            x[pivotRowK] = 0;
+            double pivotInverse = 1.0 / pivot;
+            for (int p = lStart[k] + 1; p < lStart[k + 1]; p++) {
+                int i = lRow[p];
+                lValue[p] = x[i] * pivotInverse;
+                x[i] = 0;
+            }
+        }
+        return REFACTOR_OK;
+    }
+
+    // x = L \ A(:,col) for the columns of L computed so far.
+    // Returns top; the nonzero pattern of x is reachList[top..n-1] in topological order.
+    private int sparseSolve(int col) {
+        int top = reach(col);
+        double[] x = work;
+        for (int p = colStart[col]; p < colStart[col + 1]; p++) {
+            x[rowIndex[p]] = values[p];
+        }
+        for (int px = top; px < n; px++) {
+            int j = reachList[px];
+            int jj = pivotInv[j];
+            if (jj < 0) {
+                continue;
+            }
+            double xj = x[j];
+            for (int p = lStart[jj] + 1; p < lStart[jj + 1]; p++) {
+                x[lRow[p]] -= lValue[p] * xj;
+            }
+        }
+        return top;
+    }
+
+    // find rows reachable from the pattern of A(:,col) in the graph of L
+    private int reach(int col) {
+        int top = n;
+        int stamp = nextMarkStamp();
+        for (int p = colStart[col]; p < colStart[col + 1]; p++) {
+            int i = rowIndex[p];
+            if (mark[i] != stamp) {
+                top = depthFirstSearch(i, top, stamp);
+            }
+        }
+        return top;
+    }
+
+    private int depthFirstSearch(int start, int top, int stamp) {
+        int head = 0;
+        dfsStack[0] = start;
+        while (head >= 0) {
+            int j = dfsStack[head];
+            int jj = pivotInv[j];
+            if (mark[j] != stamp) {
+                mark[j] = stamp;
+                dfsPos[head] = (jj < 0) ? 0 : lStart[jj] + 1;
+            }
+            boolean done = true;
+            int end = (jj < 0) ? 0 : lStart[jj + 1];
+            for (int p = dfsPos[head]; p < end; p++) {
+                int i = lRow[p];
+                if (mark[i] == stamp) {
+                    continue;
+                }
+                dfsPos[head] = p + 1;
+                dfsStack[++head] = i;
+                done = false;
+                break;
+            }
+            if (done) {
+                head--;
+                reachList[--top] = j;
+            }
+        }
+        return top;
+    }
+}
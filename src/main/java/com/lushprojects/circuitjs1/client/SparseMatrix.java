@@ -0,0 +1,179 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.Arrays;
+
+// Row-oriented sparse matrix used to stamp large circuits.
+// Each row keeps an unsorted list of (column, value) pairs. MNA rows rarely have
+// more than a handful of entries, so a linear search per stamp is cheaper than hashing.
+// Row storage is never shrunk, so clearing and re-stamping the matrix does not allocate.
+// The matrix also records which rows add() wrote to since the last clear()/copyFrom(),
+// which tells us the rows that nonlinear elements modify in doStep().
+public class SparseMatrix implements MatrixRows {
+
+    private static final int INITIAL_ROW_CAPACITY = 4;
+
+    int size;
+    int[][] rowCols;
+    double[][] rowValues;
+    int[] rowLength;
+
+    private boolean[] rowDirty;
+    int[] dirtyRows;
+    int dirtyCount;
+
+    public SparseMatrix(int size) {
+        rowCols = new int[0][];
+        rowValues = new double[0][];
+        rowLength = new int[0];
+        rowDirty = new boolean[0];
+        dirtyRows = new int[0];
+        resize(size);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // change the number of rows and clear all entries, keeping row storage when possible
+    public void resize(int newSize) {
+        if (newSize > rowCols.length) {
+            int oldCapacity = rowCols.length;
+            rowCols = Arrays.copyOf(rowCols, newSize);
+            rowValues = Arrays.copyOf(rowValues, newSize);
+            rowLength = Arrays.copyOf(rowLength, newSize);
+            rowDirty = Arrays.copyOf(rowDirty, newSize);
+            dirtyRows = Arrays.copyOf(dirtyRows, newSize);
+            for (int i = oldCapacity; i < newSize; i++) {
+                rowCols[i] = new int[INITIAL_ROW_CAPACITY];
+                rowValues[i] = new double[INITIAL_ROW_CAPACITY];
+            }
+        }
+        size = newSize;
+        clear();
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            rowLength[i] = 0;
+        }
+        clearDirtyRows();
+    }
+
+    private void clearDirtyRows() {
+        for (int k = 0; k < dirtyCount; k++) {
+            rowDirty[dirtyRows[k]] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    public void add(int row, int col, double x) {
+        if (!rowDirty[row]) {
+            rowDirty[row] = true;
+            dirtyRows[dirtyCount++] = row;
+        }
+        int[] cols = rowCols[row];
+        int len = rowLength[row];
+        for (int k = 0; k < len; k++) {
+            if (cols[k] == col) {
+                rowValues[row][k] += x;
+                return;
+            }
+        }
+        if (len == cols.length) {
+            cols = rowCols[row] = Arrays.copyOf(cols, len * 2);
+            rowValues[row] = Arrays.copyOf(rowValues[row], len * 2);
+        }
+        cols[len] = col;
+        rowValues[row][len] = x;
+        rowLength[row] = len + 1;
+    }
+
+    public double get(int row, int col) {
+        int[] cols = rowCols[row];
+        int len = rowLength[row];
+        for (int k = 0; k < len; k++) {
+            if (cols[k] == col) {
+                return rowValues[row][k];
+            }
+        }
+        return 0;
+    }
+
+    public int getRowLength(int row) {
+        return rowLength[row];
+    }
+
+    public int getColumn(int row, int k) {
+        return rowCols[row][k];
+    }
+
+    public double getValue(int row, int k) {
+        return rowValues[row][k];
+    }
+
+    public int getNonZeroCount() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += rowLength[i];
+        }
+        return count;
+    }
+
+    // copy size and all entries of src into this matrix
+    public void copyFrom(SparseMatrix src) {
+        if (src.size > rowCols.length || size != src.size) {
+            resize(src.size);
+        }
+        for (int i = 0; i < size; i++) {
+            int len = src.rowLength[i];
+            if (rowCols[i].length < len) {
+                rowCols[i] = new int[src.rowCols[i].length];
+                rowValues[i] = new double[src.rowCols[i].length];
+            }
+            System.arraycopy(src.rowCols[i], 0, rowCols[i], 0, len);
+            System.arraycopy(src.rowValues[i], 0, rowValues[i], 0, len);
+            rowLength[i] = len;
+        }
+        clearDirtyRows();
+    }
+
+    // true if other has the same size and the same entries, stored in the same order
+    public boolean sameValues(SparseMatrix other) {
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            int len = rowLength[i];
+            if (other.rowLength[i] != len) {
+                return false;
+            }
+            int[] cols = rowCols[i];
+            int[] otherCols = other.rowCols[i];
+            double[] vals = rowValues[i];
+            double[] otherVals = other.rowValues[i];
+            for (int k = 0; k < len; k++) {
+                if (cols[k] != otherCols[k] || vals[k] != otherVals[k]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public double[][] toDense() {
+        double[][] dense = new double[size][size];
+        copyToDense(dense);
+        return dense;
+    }
+
+    // write entries into the top left size x size block of dense, clearing the rest of that block
+    public void copyToDense(double[][] dense) {
+        for (int i = 0; i < size; i++) {
+            double[] row = dense[i];
+            Arrays.fill(row, 0, size, 0);
+            for (int k = 0; k < rowLength[i]; k++) {
+                row[rowCols[i][k]] = rowValues[i][k];
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.lushprojects.circuitjs1.client;
+
+// Welch-averaged amplitude spectrum of a scope plot, updated as its columns are finished.
+//
+// The last size samples (column averages) are kept in a ring. Every size/2 new samples,
+// a block of size samples overlapping the previous one by half is windowed and
+// transformed, and its power spectrum is averaged into the result. The average is a running
+// mean of the first averages blocks and then an exponential one with the same weight, so
+// it needs no memory for past blocks. Drawing only reads the magnitudes, which change
+// once per block.
+//
+// The input is real, so the transform packs even and odd samples into the real and
+// imaginary parts of a complex sequence of half the size and separates the two spectra
+// afterwards. All buffers are allocated once.
+class SpectrumAnalyzer {
+
+    private final int size;
+    private final int windowType;
+    private final int averages;
+    private final FFT fft;
+    private final double[] window;
+    // sum of the window, to scale magnitudes to the amplitude of a sine wave
+    private double windowSum;
+    // e^(-2 pi i k / size) for k < size/2
+    private final double[] cosTable;
+    private final double[] sinTable;
+
+    private final double[] input;
+    private int inputPos;
+    private int inputCount;
+    // samples added since the last block
+    private int pending;
+
+    // workspace of the half size transform
+    private final double[] real;
+    private final double[] imag;
+
+    private final double[] power;
+    private final double[] magnitude;
+    private double maxMagnitude;
+    private int blocks;
+
+    SpectrumAnalyzer(int size, int windowType, int averages) {
+        this.size = size;
+        this.windowType = windowType;
+        this.averages = Math.max(1, averages);
+        int half = size / 2;
+        fft = new FFT(half);
+        window = new double[size];
+        for (int i = 0; i != size; i++) {
+            window[i] = getWindow(windowType, 2 * Math.PI * i / size);
+            windowSum += window[i];
+        }
+        cosTable = new double[half];
+        sinTable = new double[half];
+        for (int k = 0; k != half; k++) {
+            cosTable[k] = Math.cos(2 * Math.PI * k / size);
+            sinTable[k] = -Math.sin(2 * Math.PI * k / size);
+        }
+        input = new double[size];
+        real = new double[half];
+        imag = new double[half];
+        power = new double[half];
+        magnitude = new double[half];
+    }
+
+    // window function at phase a, 0 <= a < 2 pi
+    private static double getWindow(int type, double a) {
+        switch (type) {
+            case Scope.SPECTRUM_WINDOW_RECTANGULAR:
+                return 1;
+            case Scope.SPECTRUM_WINDOW_HANN:
+                return .5 - .5 * Math.cos(a);
+            case Scope.SPECTRUM_WINDOW_BLACKMAN_HARRIS:
+                return .35875 - .48829 * Math.cos(a) + .14128 * Math.cos(2 * a) - .01168 * Math.cos(3 * a);
+            case Scope.SPECTRUM_WINDOW_FLAT_TOP:
+                return .21557895 - .41663158 * Math.cos(a) + .277263158 * Math.cos(2 * a)
+                        - .083578947 * Math.cos(3 * a) + .006947368 * Math.cos(4 * a);
+            default:
+                return Math.sin(a / 2);
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getWindowType() {
+        return windowType;
+    }
+
+    int getAverages() {
+        return averages;
+    }
+
+    void add(double v) {
+        input[inputPos] = v;
+        inputPos = (inputPos + 1) & (size - 1);
+        if (inputCount < size) {
+            inputCount++;
+        }
+        if (++pending >= size / 2 && inputCount == size) {
+            update();
+        }
+    }
+
+    /**
+     * Transforms the last size samples now and averages them in. Missing samples are 0.
+     */
+    void update() {
+        pending = 0;
+        int half = size / 2;
+        int mask = size - 1;
+        for (int n = 0; n != half; n++) {
+            int i = (inputPos + 2 * n) & mask;
+            real[n] = input[i] * window[2 * n];
+            imag[n] = input[(i + 1) & mask] * window[2 * n + 1];
+        }
+        fft.fft(real, imag, false);
+
+        if (blocks < averages) {
+            blocks++;
+        }
+        double weight = 1. / blocks;
+        double max = 0;
+        for (int k = 0; k != half; k++) {
+            // Z[k] and conj(Z[half-k]) give the transforms of the even and odd samples
+            int j = (half - k) & (half - 1);
+            double er = .5 * (real[k] + real[j]);
+            double ei = .5 * (imag[k] - imag[j]);
+            double or = .5 * (imag[k] + imag[j]);
+            double oi = -.5 * (real[k] - real[j]);
+            double xr = er + cosTable[k] * or - sinTable[k] * oi;
+            double xi = ei + cosTable[k] * oi + sinTable[k] * or;
+            power[k] += (xr * xr + xi * xi - power[k]) * weight;
+            double m = Math.sqrt(power[k]) / windowSum;
+            magnitude[k] = m;
+            if (m > max) {
+                max = m;
+            }
+        }
+        maxMagnitude = max;
+    }
+
+    // amplitude of bins 0 to size/2-1, spaced 1/size of the sample rate apart
+    double[] getMagnitudes() {
+        return magnitude;
+    }
+
+    double getMaxMagnitude() {
+        return maxMagnitude;
+    }
+}
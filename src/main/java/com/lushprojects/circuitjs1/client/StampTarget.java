@@ -0,0 +1,21 @@
+package com.lushprojects.circuitjs1.client;
+
+/**
+ * Receives matrix stamps in place of the circuit matrix while it is set with
+ * {@link CircuitSimulator#setStampTarget(StampTarget)}. Row and column numbers are the
+ * node numbers passed to the stamp methods, with 0 meaning ground.
+ */
+public interface StampTarget {
+    void stampMatrix(int i, int j, double x);
+
+    void stampRightSide(int i, double x);
+
+    // row i's right side changes in doStep()
+    void markRightSideChanges(int i);
+
+    // row i's left side changes in doStep()
+    void markNonLinear(int i);
+
+    // row of the current of voltage source vs, as passed to the stamp methods
+    int getVoltageSourceNode(int vs);
+}
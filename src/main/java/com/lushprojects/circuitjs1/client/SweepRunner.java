@@ -0,0 +1,194 @@
+package com.lushprojects.circuitjs1.client;
+
+import com.lushprojects.circuitjs1.client.dialog.EditInfo;
+import com.lushprojects.circuitjs1.client.element.CircuitElm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+// Monte-Carlo tolerance sweep built on BatchRunner.
+//
+// Each run reloads the circuit, scales every swept parameter by a random factor in
+// [1 - tolerance, 1 + tolerance] and runs it to the end time. Parameters are addressed the
+// same way as sliders (see Adjustable): an element id plus an index into getEditInfo().
+// The parameter factors only depend on the seed, so a sweep can be repeated exactly.
+// getCsv() reports, for every sample time and probe, the min, 5th, 50th and 95th
+// percentile and max across all runs.
+class SweepRunner {
+
+    // total number of values kept for all runs
+    static final int MAX_VALUES = 10000000;
+
+    static final double[] PERCENTILES = { 5, 50, 95 };
+
+    static class Parameter {
+        final String elementId;
+        final int editItem;
+        final double tolerance;
+
+        Parameter(String elementId, int editItem, double tolerance) {
+            this.elementId = elementId;
+            this.editItem = editItem;
+            this.tolerance = tolerance;
+        }
+
+        String getName() {
+            return elementId + ":" + editItem;
+        }
+    }
+
+    private final BatchRunner batchRunner;
+    private final ArrayList<Parameter> parameters = new ArrayList<>();
+    private int runCount = 100;
+    private long seed;
+
+    private String errorMessage;
+
+    // results[run] = rows passed by BatchRunner.run()
+    private double[][] results;
+    private int resultLength;
+    private int completedRuns;
+
+    SweepRunner(BatchRunner batchRunner) {
+        this.batchRunner = batchRunner;
+    }
+
+    void addParameter(String elementId, int editItem, double tolerance) {
+        parameters.add(new Parameter(elementId, editItem, tolerance));
+    }
+
+    void setRunCount(int runCount) {
+        this.runCount = runCount;
+    }
+
+    void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    int getCompletedRuns() {
+        return completedRuns;
+    }
+
+    /**
+     * Runs all sweep runs on circuitText. Returns false if the results would exceed
+     * MAX_VALUES, a parameter can't be found or a run fails; results of the runs completed
+     * before a failure are kept.
+     */
+    boolean run(String circuitText) {
+        errorMessage = null;
+        completedRuns = 0;
+        results = null;
+        // the run length only depends on the circuit and the options, so check the total
+        // size before running anything
+        batchRunner.load(circuitText);
+        long valueCount = batchRunner.getSampleCount() * batchRunner.getSampleWidth();
+        if (valueCount * runCount > MAX_VALUES) {
+            errorMessage = "Too many values: " + valueCount * runCount;
+            return false;
+        }
+        results = new double[runCount][];
+        Random random = new Random(seed);
+        double[] factors = new double[parameters.size()];
+        for (int r = 0; r < runCount; r++) {
+            for (int i = 0; i < factors.length; i++) {
+                factors[i] = 1 + parameters.get(i).tolerance * (2 * random.nextDouble() - 1);
+            }
+            if (r > 0) {
+                batchRunner.load(circuitText);
+            }
+            if (!applyParameters(factors)) {
+                return false;
+            }
+            double[] samples = new double[(int) valueCount];
+            resultLength = 0;
+            if (!batchRunner.run((rows, rowCount) -> addRows(samples, rows, rowCount))) {
+                errorMessage = "Run " + r + ": " + batchRunner.getErrorMessage();
+                return false;
+            }
+            results[r] = samples;
+            completedRuns++;
+        }
+        return true;
+    }
+
+    private boolean addRows(double[] samples, double[] rows, int rowCount) {
+        int n = rowCount * batchRunner.getSampleWidth();
+        System.arraycopy(rows, 0, samples, resultLength, n);
+        resultLength += n;
+        return true;
+    }
+
+    private boolean applyParameters(double[] factors) {
+        CircuitSimulator simulator = batchRunner.getDocument().simulator;
+        for (int i = 0; i < factors.length; i++) {
+            Parameter p = parameters.get(i);
+            CircuitElm elm = null;
+            for (CircuitElm ce : simulator.elmList) {
+                if (p.elementId.equals(ce.getElementId())) {
+                    elm = ce;
+                    break;
+                }
+            }
+            EditInfo ei = elm == null ? null : elm.getEditInfo(p.editItem);
+            if (ei == null) {
+                errorMessage = "Unknown parameter: " + p.getName();
+                return false;
+            }
+            ei.value *= factors[i];
+            elm.setEditValue(p.editItem, ei);
+        }
+        return true;
+    }
+
+    // per-sample statistics of the completed runs, with a header line
+    String getCsv() {
+        StringBuilder sb = new StringBuilder("t");
+        String[] columns = batchRunner.getHeader().split(",");
+        for (int c = 1; c < columns.length; c++) {
+            String probe = columns[c];
+            sb.append(',').append(probe).append(".min");
+            for (double pct : PERCENTILES) {
+                sb.append(',').append(probe).append(".p").append((int) pct);
+            }
+            sb.append(',').append(probe).append(".max");
+        }
+        sb.append('\n');
+        if (completedRuns == 0) {
+            return sb.toString();
+        }
+
+        int width = batchRunner.getSampleWidth();
+        int valueCount = results[0].length;
+        double[] column = new double[completedRuns];
+        for (int i = 0; i < valueCount; i += width) {
+            // sample times only differ by rounding between runs
+            sb.append(results[0][i]);
+            for (int c = 1; c < width; c++) {
+                for (int r = 0; r < completedRuns; r++) {
+                    column[r] = results[r][i + c];
+                }
+                Arrays.sort(column);
+                sb.append(',').append(column[0]);
+                for (double pct : PERCENTILES) {
+                    sb.append(',').append(percentile(column, pct));
+                }
+                sb.append(',').append(column[completedRuns - 1]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // linear interpolation between the closest ranks of a sorted array
+    static double percentile(double[] sorted, double pct) {
+        double pos = pct / 100 * (sorted.length - 1);
+        int lo = (int) Math.floor(pos);
+        int hi = Math.min(lo + 1, sorted.length - 1);
+        return sorted[lo] + (sorted[hi] - sorted[lo]) * (pos - lo);
+    }
+}
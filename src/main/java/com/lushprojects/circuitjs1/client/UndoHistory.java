@@ -0,0 +1,100 @@
+package com.lushprojects.circuitjs1.client;
+
+import java.util.ArrayList;
+
+// Undo or redo stack of circuit dumps.
+//
+// Only the newest state is kept as text. Every older state is stored as a LineDelta that
+// rebuilds it from the state above it, so an edit that changes one element costs about one
+// line instead of a copy of the whole circuit. Since states are only ever taken from the
+// top, popping applies a single delta. The oldest states are dropped once the stack uses
+// more than its memory limit; nothing depends on them, so no checkpoints are needed.
+class UndoHistory {
+
+    private final ArrayList<UndoManager.UndoItem> items = new ArrayList<>();
+
+    // lines of the dump of the top item
+    private String[] topLines;
+
+    // approximate size in bytes of the top dump and all deltas
+    private long memorySize;
+    private long memoryLimit;
+
+    UndoHistory(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    // dump of the newest state
+    String peek() {
+        return items.isEmpty() ? null : items.get(items.size() - 1).dump;
+    }
+
+    void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        trim();
+    }
+
+    // returns false, without splitting or diffing anything, if the state is the same as the
+    // newest one
+    boolean push(UndoManager.UndoItem item) {
+        if (item.dump.equals(peek())) {
+            return false;
+        }
+        String[] lines = LineDelta.split(item.dump);
+        if (!items.isEmpty()) {
+            UndoManager.UndoItem previous = items.get(items.size() - 1);
+            memorySize -= textSize(previous.dump);
+            previous.delta = LineDelta.create(lines, topLines);
+            previous.dump = null;
+            memorySize += previous.delta.getMemorySize();
+        }
+        items.add(item);
+        topLines = lines;
+        memorySize += textSize(item.dump);
+        trim();
+        return true;
+    }
+
+    UndoManager.UndoItem pop() {
+        if (items.isEmpty()) {
+            return null;
+        }
+        UndoManager.UndoItem item = items.remove(items.size() - 1);
+        memorySize -= textSize(item.dump);
+        if (items.isEmpty()) {
+            topLines = null;
+        } else {
+            UndoManager.UndoItem next = items.get(items.size() - 1);
+            topLines = next.delta.apply(topLines);
+            next.dump = LineDelta.join(topLines);
+            memorySize += textSize(next.dump) - next.delta.getMemorySize();
+            next.delta = null;
+        }
+        return item;
+    }
+
+    void clear() {
+        items.clear();
+        topLines = null;
+        memorySize = 0;
+    }
+
+    // drop the oldest states, but always keep the newest one
+    private void trim() {
+        int drop = 0;
+        while (items.size() - drop > 1 && memorySize > memoryLimit) {
+            memorySize -= items.get(drop++).delta.getMemorySize();
+        }
+        if (drop > 0) {
+            items.subList(0, drop).clear();
+        }
+    }
+
+    private static long textSize(String s) {
+        return 2L * s.length();
+    }
+}
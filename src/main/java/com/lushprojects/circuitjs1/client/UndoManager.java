@@ -1,11 +1,16 @@
 package com.lushprojects.circuitjs1.client;
 
-import java.util.Vector;
-
 public class UndoManager extends BaseCirSimDelegate {
 
+    // option: memory limit of each of the two stacks, in MB
+    static final String MEMORY_LIMIT_OPTION = "undoMemoryLimitMB";
+    static final int DEFAULT_MEMORY_LIMIT_MB = 32;
+
     class UndoItem {
+        // full dump for the top item of a stack, null for the others
         public String dump;
+        // rebuilds this item's dump from the item above it (see UndoHistory)
+        LineDelta delta;
         public double scale;
         public double transform4;
         public double transform5;
@@ -19,20 +24,32 @@ public class UndoManager extends BaseCirSimDelegate {
         }
     }
 
-    Vector<UndoItem> undoStack;
-    Vector<UndoItem> redoStack;
+    UndoHistory undoStack;
+    UndoHistory redoStack;
 
     String recovery;
 
     public UndoManager(BaseCirSim cirSim, CircuitDocument circuitDocument) {
         super(cirSim, circuitDocument);
-        undoStack = new Vector<>();
-        redoStack = new Vector<>();
+        long memoryLimit = (long) getMemoryLimitMB() << 20;
+        undoStack = new UndoHistory(memoryLimit);
+        redoStack = new UndoHistory(memoryLimit);
+    }
+
+    static int getMemoryLimitMB() {
+        return Math.max(1, OptionsManager.getIntOptionFromStorage(MEMORY_LIMIT_OPTION, DEFAULT_MEMORY_LIMIT_MB));
+    }
+
+    // the option is stored by DocumentManager.setUndoMemoryLimitMB()
+    void setMemoryLimitMB(int megabytes) {
+        long memoryLimit = (long) megabytes << 20;
+        undoStack.setMemoryLimit(memoryLimit);
+        redoStack.setMemoryLimit(memoryLimit);
     }
 
     void clearStacks() {
-        undoStack.removeAllElements();
-        redoStack.removeAllElements();
+        undoStack.clear();
+        redoStack.clear();
     }
 
     /**
@@ -54,26 +71,23 @@ public class UndoManager extends BaseCirSimDelegate {
     }
 
     void pushUndo() {
-        redoStack.removeAllElements();
-        String s = actionManager().dumpCircuit();
-        if (!undoStack.isEmpty() && s.compareTo(undoStack.lastElement().dump) == 0)
-            return;
-        undoStack.add(new UndoItem(s));
+        redoStack.clear();
+        undoStack.push(new UndoItem(actionManager().dumpCircuit()));
     }
 
     void doUndo() {
         if (undoStack.isEmpty())
             return;
-        redoStack.add(new UndoItem(actionManager().dumpCircuit()));
-        UndoItem ui = undoStack.remove(undoStack.size() - 1);
+        redoStack.push(new UndoItem(actionManager().dumpCircuit()));
+        UndoItem ui = undoStack.pop();
         loadUndoItem(ui);
     }
 
     void doRedo() {
         if (redoStack.isEmpty())
             return;
-        undoStack.add(new UndoItem(actionManager().dumpCircuit()));
-        UndoItem ui = redoStack.remove(redoStack.size() - 1);
+        undoStack.push(new UndoItem(actionManager().dumpCircuit()));
+        UndoItem ui = redoStack.pop();
         loadUndoItem(ui);
     }
 
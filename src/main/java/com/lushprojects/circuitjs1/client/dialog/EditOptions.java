@@ -113,10 +113,24 @@ public class EditOptions implements Editable {
         }
         if (n == 13 && sim.getActiveDocument().simulator.adjustTimeStep)
             return new EditInfo("Minimum time step size (s)", sim.getActiveDocument().simulator.minTimeStep, 0, 0);
+        if (n == getEventDrivenLogicItem()) {
+            EditInfo ei = new EditInfo("", 0, -1, -1);
+            ei.checkbox = new Checkbox("Event-Driven Digital Logic", sim.getActiveDocument().simulator.eventDrivenLogic);
+            return ei;
+        }
+        if (n == getEventDrivenLogicItem() + 1)
+            return new EditInfo("CPU Share of Background Tabs (%)", sim.documentManager.getBackgroundPercent());
+        if (n == getEventDrivenLogicItem() + 2)
+            return new EditInfo("Undo Memory Limit (MB)", sim.documentManager.getUndoMemoryLimitMB());
 
         return null;
     }
 
+    // comes after the minimum time step field, which is only there when auto-adjusting
+    int getEventDrivenLogicItem() {
+        return sim.getActiveDocument().simulator.adjustTimeStep ? 14 : 13;
+    }
+
     public void setEditValue(int n, EditInfo ei) {
         ColorSettings cs = ColorSettings.get();
         // Note: Time step size is now controlled via scrollbar in ControlsDialog
@@ -212,8 +226,17 @@ public class EditOptions implements Editable {
             sim.getActiveDocument().simulator.adjustTimeStep = ei.checkbox.getState();
             ei.newDialog = true;
         }
-        if (n == 13 && ei.value > 0)
+        if (n == 13 && sim.getActiveDocument().simulator.adjustTimeStep && ei.value > 0)
             sim.getActiveDocument().simulator.minTimeStep = ei.value;
+        if (n == getEventDrivenLogicItem()) {
+            sim.getActiveDocument().simulator.eventDrivenLogic = ei.checkbox.getState();
+            OptionsManager.setOptionInStorage("eventDrivenLogic", ei.checkbox.getState());
+            sim.needAnalyze();
+        }
+        if (n == getEventDrivenLogicItem() + 1 && ei.value >= 0 && ei.value <= 100)
+            sim.documentManager.setBackgroundPercent((int) ei.value);
+        if (n == getEventDrivenLogicItem() + 2 && ei.value >= 1)
+            sim.documentManager.setUndoMemoryLimitMB((int) ei.value);
     }
 
     Color setColor(String name, EditInfo ei, Color def) {
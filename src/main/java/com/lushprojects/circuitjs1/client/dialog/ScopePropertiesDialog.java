@@ -63,6 +63,7 @@ public class ScopePropertiesDialog extends Dialog implements ValueChangeHandler<
     Button triggerRearmButton;
 
     ListBox historyModeBox, historySourceBox;
+    ListBox spectrumWindowBox, spectrumAveragesBox;
     TextBox historyDepthBox;
     Button historyCaptureButton, historyClearButton;
     Scope scope;
@@ -428,6 +429,30 @@ public class ScopePropertiesDialog extends Dialog implements ValueChangeHandler<
         spectrumBox.addValueChangeHandler(this);
         addItemToGrid(grid, logSpectrumBox = new ScopeCheckBox(Locale.LS("Log Spectrum"), "logspectrum"));
         logSpectrumBox.addValueChangeHandler(this);
+        addWidgetToGrid(grid, new Label(Locale.LS("Window")));
+        addWidgetToGrid(grid, spectrumWindowBox = new ListBox());
+        spectrumWindowBox.addItem(Locale.LS("Sine"), String.valueOf(Scope.SPECTRUM_WINDOW_SINE));
+        spectrumWindowBox.addItem(Locale.LS("Rectangular"), String.valueOf(Scope.SPECTRUM_WINDOW_RECTANGULAR));
+        spectrumWindowBox.addItem(Locale.LS("Hann"), String.valueOf(Scope.SPECTRUM_WINDOW_HANN));
+        spectrumWindowBox.addItem(Locale.LS("Blackman-Harris"), String.valueOf(Scope.SPECTRUM_WINDOW_BLACKMAN_HARRIS));
+        spectrumWindowBox.addItem(Locale.LS("Flat Top"), String.valueOf(Scope.SPECTRUM_WINDOW_FLAT_TOP));
+        spectrumWindowBox.addChangeHandler(new ChangeHandler() {
+            public void onChange(ChangeEvent event) {
+                scope.setSpectrumWindow(Integer.parseInt(spectrumWindowBox.getValue(spectrumWindowBox.getSelectedIndex())));
+                updateUi();
+            }
+        });
+        addWidgetToGrid(grid, new Label(Locale.LS("Averages")));
+        addWidgetToGrid(grid, spectrumAveragesBox = new ListBox());
+        for (int n = 1; n <= Scope.MAX_SPECTRUM_AVERAGES; n *= 2) {
+            spectrumAveragesBox.addItem(String.valueOf(n));
+        }
+        spectrumAveragesBox.addChangeHandler(new ChangeHandler() {
+            public void onChange(ChangeEvent event) {
+                scope.setSpectrumAverages(Integer.parseInt(spectrumAveragesBox.getValue(spectrumAveragesBox.getSelectedIndex())));
+                updateUi();
+            }
+        });
 
         gridLabels.addLabel(Locale.LS("X-Y Plots"), displayAll);
         addItemToGrid(grid, viBox = new ScopeCheckBox(Locale.LS("Show V vs I"), "showvvsi"));
@@ -714,6 +739,15 @@ public class ScopePropertiesDialog extends Dialog implements ValueChangeHandler<
         freqBox.setValue(scope.showFreq);
         spectrumBox.setValue(scope.showFFT);
         logSpectrumBox.setValue(scope.logSpectrum);
+        spectrumWindowBox.setEnabled(scope.showFFT);
+        spectrumWindowBox.setSelectedIndex(scope.getSpectrumWindow());
+        spectrumAveragesBox.setEnabled(scope.showFFT);
+        // averages are powers of two
+        int averagesIndex = 0;
+        while ((2 << averagesIndex) <= scope.getSpectrumAverages()) {
+            averagesIndex++;
+        }
+        spectrumAveragesBox.setSelectedIndex(averagesIndex);
         rmsBox.setValue(scope.showRMS);
         averageBox.setValue(scope.showAverage);
         dutyBox.setValue(scope.showDutyCycle);
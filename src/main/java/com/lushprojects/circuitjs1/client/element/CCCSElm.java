@@ -65,6 +65,7 @@ public class CCCSElm extends VCCSElm {
         pins[i * 2].output = true;
         pins[i * 2 + 1] = new Pin(1, SIDE_E, "O-");
         exprState = new ExprState(inputPairCount);
+        exprGradient = new double[exprState.values.length];
         lastCurrents = new double[inputPairCount];
         allocNodes();
     }
@@ -126,7 +127,7 @@ public class CCCSElm extends VCCSElm {
                 setCurrentExprValue(i, pins[i * 2 + 1].current);
             exprState.t = simulator.t;
             exprState.timeStep = simulator.timeStep;
-            double v0 = expr.eval(exprState);
+            double v0 = expr.evalGradient(exprState, exprGradient);
             double rs = v0;
 
             pins[inputCount].current = v0;
@@ -134,14 +135,7 @@ public class CCCSElm extends VCCSElm {
 
             for (i = 0; i != inputPairCount; i++) {
                 double cur = pins[i * 2 + 1].current;
-                double dv = cur - lastCurrents[i];
-                if (Math.abs(dv) < 1e-6)
-                    dv = 1e-6;
-                setCurrentExprValue(i, cur);
-                double v = expr.eval(exprState);
-                setCurrentExprValue(i, cur - dv);
-                double v2 = expr.eval(exprState);
-                double dx = (v - v2) / dv;
+                double dx = getCurrentExprDerivative(i, inputPairCount);
                 if (Math.abs(dx) < 1e-6)
                     dx = sign(dx, 1e-6);
                 simulator().stampCCCS(getNode(inputCount + 1), getNode(inputCount), pins[i * 2 + 1].voltSource, dx);
@@ -150,7 +144,6 @@ public class CCCSElm extends VCCSElm {
                 rs -= dx * cur;
 //                    if (sim.subIterations > 1)
 //                        sim.console("ccedx " + i + " " + cur + " " + dx + " " + rs + " " + sim.subIterations + " " + sim.t);
-                setCurrentExprValue(i, cur);
             }
 
             simulator.stampCurrentSource(getNode(inputCount + 1), getNode(inputCount), rs);
@@ -66,6 +66,7 @@ public class CCVSElm extends VCCSElm {
         pins[i * 2].output = true;
         pins[i * 2 + 1] = new Pin(1, SIDE_E, "V-");
         exprState = new ExprState(inputPairCount);
+        exprGradient = new double[exprState.values.length];
         lastCurrents = new double[inputPairCount];
         allocNodes();
     }
@@ -91,7 +92,7 @@ public class CCVSElm extends VCCSElm {
         // voltage source for outputs
         int vn2 = pins[inputCount].voltSource;
         outputVS = vn2;
-		simulator.stampNonLinear(vn2 + simulator().nodeList.size());
+		simulator.stampNonLinear(simulator.getVoltageSourceNode(vn2));
 		simulator.stampVoltageSource(getNode(inputCount + 1), getNode(inputCount), vn2);
     }
 
@@ -114,27 +115,20 @@ public class CCVSElm extends VCCSElm {
 				simulator.converged = false;
         }
 
-        int vno = outputVS + simulator().nodeList.size();
+        int vno = simulator().getVoltageSourceNode(outputVS);
         if (expr != null) {
             // calculate output
             for (i = 0; i != inputPairCount; i++)
                 setCurrentExprValue(i, pins[i * 2 + 1].current);
             exprState.t = simulator().t;
             exprState.timeStep = simulator().timeStep;
-            double v0 = expr.eval(exprState);
+            double v0 = expr.evalGradient(exprState, exprGradient);
             double rs = v0;
 
             for (i = 0; i != inputPairCount; i++) {
                 double cur = pins[i * 2 + 1].current;
-                double dv = cur - lastCurrents[i];
-                int vni = pins[i * 2 + 1].voltSource + simulator().nodeList.size();
-                if (Math.abs(dv) < 1e-6)
-                    dv = 1e-6;
-                setCurrentExprValue(i, cur);
-                double v = expr.eval(exprState);
-                setCurrentExprValue(i, cur - dv);
-                double v2 = expr.eval(exprState);
-                double dx = (v - v2) / dv;
+                int vni = simulator().getVoltageSourceNode(pins[i * 2 + 1].voltSource);
+                double dx = getCurrentExprDerivative(i, inputPairCount);
                 if (Math.abs(dx) < 1e-6)
                     dx = sign(dx, 1e-6);
 				simulator.stampMatrix(vno, vni, -dx);
@@ -142,7 +136,6 @@ public class CCVSElm extends VCCSElm {
                 rs -= dx * cur;
                 //if (sim.subIterations > 1)
                 //sim.console("ccedx " + i + " " + cur + " " + dx + " " + rs + " " + sim.subIterations + " " + sim.t);
-                setCurrentExprValue(i, cur);
             }
 			simulator.stampRightSide(vno, rs);
         }
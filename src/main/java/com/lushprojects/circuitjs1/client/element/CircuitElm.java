@@ -1237,6 +1237,15 @@ public abstract class CircuitElm extends BaseCircuitElm implements Editable {
         return false;
     }
 
+    // is this a logic element that can be simulated event-driven (see DigitalIslands)?
+    // Its outputs must be the posts with a ground connection, one voltage source each in
+    // post order, set only with updateVoltageSource() in doStep(); its other posts must be
+    // inputs that draw no current; and doStep() must give the same outputs again as long
+    // as the inputs don't change.
+    public boolean isEventDriven() {
+        return false;
+    }
+
     public boolean isIdealCapacitor() {
         return false;
     }
@@ -0,0 +1,96 @@
+package com.lushprojects.circuitjs1.client.element;
+
+import java.util.ArrayList;
+
+// Connectivity closure of the nodes of a composite element, for getConnection() and
+// hasGroundConnection().
+//
+// Nodes joined through a sub-element's getConnection() are merged with union-find. Each
+// group then records whether one of its sub-elements has a post on ground, and whether
+// one of them reports hasGroundConnection(). Both queries become a group lookup, instead
+// of a search through the sub-elements for every pair of nodes.
+final class CompositeConnectivity {
+
+    // group of each local node; the smallest node number in the group
+    private final int[] group;
+    // indexed by group: some sub-element in the group has a post on ground
+    private final boolean[] reachesGround;
+    // indexed by group: some sub-element in the group has a path to ground
+    private final boolean[] groundConnection;
+
+    // elementNodes[i][j] = local node of connection node j of sub-element i, or -1 if it
+    // is on ground
+    CompositeConnectivity(ArrayList<CircuitElm> elements, int[][] elementNodes, int nodeCount) {
+        int[] parent = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            parent[i] = i;
+        }
+
+        for (int i = 0; i < elements.size(); i++) {
+            CircuitElm ce = elements.get(i);
+            int[] nodes = elementNodes[i];
+            for (int j = 0; j < nodes.length; j++) {
+                for (int k = j + 1; k < nodes.length; k++) {
+                    if (nodes[j] >= 0 && nodes[k] >= 0 &&
+                            (ce.getConnection(j, k) || ce.getConnection(k, j))) {
+                        union(parent, nodes[j], nodes[k]);
+                    }
+                }
+            }
+        }
+
+        group = new int[nodeCount];
+        reachesGround = new boolean[nodeCount];
+        groundConnection = new boolean[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            group[n] = find(parent, n);
+        }
+        for (int i = 0; i < elements.size(); i++) {
+            CircuitElm ce = elements.get(i);
+            int[] nodes = elementNodes[i];
+            for (int j = 0; j < nodes.length; j++) {
+                if (nodes[j] < 0) {
+                    continue;
+                }
+                int g = group[nodes[j]];
+                if (ce.hasGroundConnection(j)) {
+                    groundConnection[g] = true;
+                }
+                for (int k = 0; k < nodes.length; k++) {
+                    if (nodes[k] < 0 && k != j && ce.getConnection(j, k)) {
+                        reachesGround[g] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // are n1 and n2 connected internally, directly or through ground?
+    boolean getConnection(int n1, int n2) {
+        return group[n1] == group[n2] || reachesGround[group[n1]];
+    }
+
+    // is n1 connected to ground somehow?
+    boolean hasGroundConnection(int n1) {
+        return groundConnection[group[n1]];
+    }
+
+    private static int find(int[] parent, int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        a = find(parent, a);
+        b = find(parent, b);
+        // keep the smaller node number as the root
+        if (a < b) {
+            parent[b] = a;
+        } else if (b < a) {
+            parent[a] = b;
+        }
+    }
+}
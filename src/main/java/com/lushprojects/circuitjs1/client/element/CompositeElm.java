@@ -2,17 +2,13 @@ package com.lushprojects.circuitjs1.client.element;
 
 import com.lushprojects.circuitjs1.client.CircuitDocument;
 import com.lushprojects.circuitjs1.client.CircuitElmCreator;
-import com.lushprojects.circuitjs1.client.CircuitNode;
-import com.lushprojects.circuitjs1.client.CircuitNodeLink;
+import com.lushprojects.circuitjs1.client.CircuitSimulator;
 import com.lushprojects.circuitjs1.client.CustomLogicModel;
-import com.lushprojects.circuitjs1.client.IntPair;
 import com.lushprojects.circuitjs1.client.Point;
 import com.lushprojects.circuitjs1.client.StringTokenizer;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.Vector;
+import java.util.Arrays;
 
 // Circuit element made up of a composition of other circuit elements
 // Using this will be (relatively) inefficient in terms of simulation performance because
@@ -30,26 +26,36 @@ import java.util.Vector;
 
 public abstract class CompositeElm extends CircuitElm {
 
-    protected static class VoltageSourceRecord {
-        int vsNumForElement;
-        int vsNode;
-        CircuitElm elm;
-    }
-
     // need to use escape() instead of converting spaces to _'s so composite elements can be nested
     final int FLAG_ESCAPE = 1;
 
     // list of elements contained in this subcircuit
     ArrayList<CircuitElm> compElmList;
 
-    // list of nodes, mapping each one to a list of elements that reference that node
-    protected ArrayList<CircuitNode> compNodeList;
+    // shared model: sub-element types and the posts linked to each model node
+    CompositeTemplate template;
+    // the rest of the wiring is kept in arrays rather than node and link objects.
+    // Node template.nodeCount + m is internal node internalNodePosts[m] of sub-element
+    // internalNodeElements[m].
+    private int[] internalNodeElements;
+    private int[] internalNodePosts;
 
     protected int numPosts = 0;
     protected int numNodes = 0;
     protected int[] nodes;
     protected Point[] posts;
-    protected ArrayList<VoltageSourceRecord> voltageSources;
+
+    // voltage source k is source vsNumbers[k] of sub-element vsElements[k], and has number
+    // vsNodes[k] in the matrix (k in the local matrix if condensed)
+    private int[] vsElements;
+    private int[] vsNumbers;
+    private int[] vsNodes;
+
+    // set if the internal nodes are eliminated when stamping (see CondensedSubcircuit).
+    // The sub-elements then use local node numbers: composite node p is node p + 1.
+    CondensedSubcircuit condensed;
+    private double[] condensedPostVoltages;
+    private double[] condensedInterior;
 
     CompositeElm(CircuitDocument circuitDocument, int xx, int yy) {
         super(circuitDocument, xx, yy);
@@ -87,23 +93,15 @@ public abstract class CompositeElm extends CircuitElm {
     }
 
     public void loadComposite(StringTokenizer stIn, String model, int[] externalNodes) {
-        HashMap<Integer, CircuitNode> compNodeHash = new HashMap<>();
-        StringTokenizer modelLinet = new StringTokenizer(model, "\r");
-        CircuitNode cn;
-        CircuitNodeLink cnLink;
-        VoltageSourceRecord vsRecord;
-
-        compElmList = new ArrayList<>();
-        compNodeList = new ArrayList<>();
-        voltageSources = new ArrayList<>();
-
-        // Build compElmList and compNodeHash from input string
-
-        while (modelLinet.hasMoreTokens()) {
-            String line = modelLinet.nextToken();
-            StringTokenizer stModel = new StringTokenizer(line, " +\t\n\r\f");
-            String ceType = stModel.nextToken();
-            CircuitElm newce = CircuitElmCreator.constructElement(circuitDocument, ceType, 0, 0);
+        // the model string is parsed once and shared by all instances using it
+        template = CompositeTemplate.get(model, externalNodes);
+        int elementCount = template.elementTypes.length;
+        compElmList = new ArrayList<>(elementCount);
+
+        // Build compElmList; posts on node 0 are grounded, the others are linked to their
+        // node by the template
+        for (int i = 0; i < elementCount; i++) {
+            CircuitElm newce = CircuitElmCreator.constructElement(circuitDocument, template.elementTypes[i], 0, 0);
             if (stIn != null) {
                 int tint = newce.getDumpType();
                 String dumpedCe = stIn.nextToken();
@@ -117,83 +115,104 @@ public abstract class CompositeElm extends CircuitElm {
                 ((GroundElm) newce).setOldStyle();
             compElmList.add(newce);
 
-            int thisPost = 0;
-            while (stModel.hasMoreTokens()) {
-                int nodeOfThisPost = parseInt(stModel.nextToken());
-
-                // node = 0 means ground
-                if (nodeOfThisPost == 0) {
+            int[] postNodes = template.elementNodes[i];
+            for (int thisPost = 0; thisPost < postNodes.length; thisPost++) {
+                // node = -1 means ground
+                if (postNodes[thisPost] < 0) {
                     newce.setNode(thisPost, 0);
                     newce.setNodeVoltage(thisPost, 0);
-                    thisPost++;
-                    continue;
-                }
-                cnLink = new CircuitNodeLink();
-                cnLink.num = thisPost;
-                cnLink.elm = newce;
-                if (!compNodeHash.containsKey(nodeOfThisPost)) {
-                    cn = new CircuitNode();
-                    cn.links.add(cnLink);
-                    compNodeHash.put(nodeOfThisPost, cn);
-                } else {
-                    cn = compNodeHash.get(nodeOfThisPost);
-                    cn.links.add(cnLink);
                 }
-                thisPost++;
             }
         }
-
-        // Flatten compNodeHash in to compNodeList
         numPosts = externalNodes.length;
-        for (int i = 0; i < externalNodes.length; i++) { // External Nodes First
-            if (compNodeHash.containsKey(externalNodes[i])) {
-                compNodeList.add(compNodeHash.get(externalNodes[i]));
-                compNodeHash.remove(externalNodes[i]);
-            } else
-                throw new IllegalArgumentException();
-        }
-        for (Entry<Integer, CircuitNode> entry : compNodeHash.entrySet()) {
-            int key = entry.getKey();
-            compNodeList.add(compNodeHash.get(key));
-        }
 
-        // allocate more nodes for sub-elements' internal nodes
-        for (int i = 0; i != compElmList.size(); i++) {
+        // allocate more nodes for sub-elements' internal nodes, one link each
+        int internalCount = 0;
+        for (int i = 0; i != elementCount; i++)
+            internalCount += compElmList.get(i).getInternalNodeCount();
+        internalNodeElements = new int[internalCount];
+        internalNodePosts = new int[internalCount];
+        int m = 0;
+        for (int i = 0; i != elementCount; i++) {
             CircuitElm ce = compElmList.get(i);
             int inodes = ce.getInternalNodeCount();
             for (int j = 0; j != inodes; j++) {
-                cnLink = new CircuitNodeLink();
-                cnLink.num = j + ce.getPostCount();
-                cnLink.elm = ce;
-                cn = new CircuitNode();
-                cn.links.add(cnLink);
-                compNodeList.add(cn);
+                internalNodeElements[m] = i;
+                internalNodePosts[m++] = j + ce.getPostCount();
             }
         }
 
-        numNodes = compNodeList.size();
+        numNodes = template.nodeCount + internalCount;
         nodes = new int[numNodes];
-
-//	CirSim.console("Dumping compNodeList");
-//	for (int i = 0; i < numNodes; i++) {
-//	    CirSim.console("New node" + i + " Size of links:" + compNodeList.get(i).links.size());
-//	}
-
         posts = new Point[numPosts];
 
         // Enumerate voltage sources
-        for (int i = 0; i < compElmList.size(); i++) {
+        int vsCount = 0;
+        for (int i = 0; i < elementCount; i++)
+            vsCount += compElmList.get(i).getVoltageSourceCount();
+        vsElements = new int[vsCount];
+        vsNumbers = new int[vsCount];
+        vsNodes = new int[vsCount];
+        int k = 0;
+        for (int i = 0; i < elementCount; i++) {
             int cnt = compElmList.get(i).getVoltageSourceCount();
             for (int j = 0; j < cnt; j++) {
-                vsRecord = new VoltageSourceRecord();
-                vsRecord.elm = compElmList.get(i);
-                vsRecord.vsNumForElement = j;
-                voltageSources.add(vsRecord);
+                vsElements[k] = i;
+                vsNumbers[k++] = j;
             }
         }
 
         // dump new circuits with escape()
         flags |= FLAG_ESCAPE;
+        condensed = null;
+        connectivity = null;
+    }
+
+    // Links of node n are numbered from getLinkStart(n) to getLinkEnd(n) - 1. The links of
+    // model nodes are stored in the template; each internal node of a sub-element follows
+    // with a single link.
+    private int getLinkStart(int n) {
+        if (n < template.nodeCount)
+            return template.nodeLinkStart[n];
+        return template.linkCount + n - template.nodeCount;
+    }
+
+    private int getLinkEnd(int n) {
+        if (n < template.nodeCount)
+            return template.nodeLinkStart[n + 1];
+        return template.linkCount + n - template.nodeCount + 1;
+    }
+
+    private CircuitElm getLinkElm(int k) {
+        if (k < template.linkCount)
+            return compElmList.get(template.nodeLinkElements[k]);
+        return compElmList.get(internalNodeElements[k - template.linkCount]);
+    }
+
+    private int getLinkPost(int k) {
+        if (k < template.linkCount)
+            return template.nodeLinkPosts[k];
+        return internalNodePosts[k - template.linkCount];
+    }
+
+    // condense the subcircuit if it is made only of linear elements, so its internal
+    // nodes and voltage sources don't take up rows in the circuit matrix.
+    // Must be called after loadComposite() and before allocNodes().
+    void updateCondensation() {
+        condensed = null;
+        int size = numNodes + vsNodes.length;
+        if (size == numPosts || size > CondensedSubcircuit.MAX_SIZE)
+            return;
+        for (int i = 0; i < compElmList.size(); i++)
+            if (!CondensedSubcircuit.canCondense(compElmList.get(i)))
+                return;
+        condensed = new CondensedSubcircuit(numPosts, numNodes, size);
+        condensedPostVoltages = new double[numPosts];
+        condensedInterior = new double[size - numPosts];
+        for (int p = 0; p < numNodes; p++) {
+            for (int k = getLinkStart(p); k < getLinkEnd(p); k++)
+                getLinkElm(k).setNode(getLinkPost(k), p + 1);
+        }
     }
 
     public boolean nonLinear() {
@@ -235,100 +254,42 @@ public abstract class CompositeElm extends CircuitElm {
         return dumpStr;
     }
 
-    // are n1 and n2 connected internally somehow?
-    public boolean getConnectionSlow(int n1, int n2) {
-        ArrayList<Integer> connectedNodes = new ArrayList<>();
-
-        // keep list of nodes connected to n1
-        connectedNodes.add(n1);
-        int i;
-        for (i = 0; i < connectedNodes.size(); i++) {
-            // next node in list
-            int n = connectedNodes.get(i);
-            if (n == n2)
-                return true;
+    // connectivity of the nodes, computed on first use
+    CompositeConnectivity connectivity;
+
+    private CompositeConnectivity getConnectivity() {
+        if (connectivity == null)
+            connectivity = new CompositeConnectivity(compElmList, getElementNodes(), numNodes);
+        return connectivity;
+    }
 
-            // find all elements connected to n
-            ArrayList<CircuitNodeLink> cnLinks = compNodeList.get(n).links;
-            for (int j = 0; j < cnLinks.size(); j++) {
-                CircuitNodeLink link = cnLinks.get(j);
-                CircuitElm lelm = link.elm;
-                // loop through all other nodes this element has
-                for (int k = 0; k != lelm.getConnectionNodeCount(); k++)
-                    // are they connected?
-                    if (k != link.num && lelm.getConnection(link.num, k)) {
-                        int kn = lelm.getConnectionNode(k);
-                        if (kn == 0)
-                            return true;
-                        int m;
-                        // find local node number (kn is global) and add it to list
-                        for (m = 0; m != nodes.length; m++)
-                            if (nodes[m] == kn && !connectedNodes.contains(m))
-                                connectedNodes.add(m);
-                    }
+    // local node of each connection node of each sub-element, or -1 if it is on ground
+    private int[][] getElementNodes() {
+        int[][] elementNodes = new int[compElmList.size()][];
+        for (int i = 0; i < elementNodes.length; i++) {
+            elementNodes[i] = new int[compElmList.get(i).getConnectionNodeCount()];
+            Arrays.fill(elementNodes[i], -1);
+        }
+        for (int n = 0; n < numNodes; n++) {
+            for (int k = getLinkStart(n); k < getLinkEnd(n); k++) {
+                int[] elmNodes = elementNodes[k < template.linkCount ? template.nodeLinkElements[k]
+                        : internalNodeElements[k - template.linkCount]];
+                int post = getLinkPost(k);
+                if (post < elmNodes.length)
+                    elmNodes[post] = n;
             }
         }
-        return false;
+        return elementNodes;
     }
 
-    HashMap<IntPair, Boolean> connectionMap;
-    HashMap<Integer, Boolean> groundConnectionMap;
-
+    // are n1 and n2 connected internally somehow?
     public boolean getConnection(int n1, int n2) {
-        if (connectionMap == null)
-            connectionMap = new HashMap<IntPair, Boolean>();
-        IntPair key = new IntPair(n1, n2);
-        Boolean result = connectionMap.get(key);
-        if (result != null)
-            return result;
-        result = getConnectionSlow(n1, n2);
-        connectionMap.put(key, result);
-        return result;
+        return getConnectivity().getConnection(n1, n2);
     }
 
     // is n1 connected to ground somehow?
     public boolean hasGroundConnection(int n1) {
-        if (groundConnectionMap == null)
-            groundConnectionMap = new HashMap<Integer, Boolean>();
-        Integer key = n1;
-        Boolean result = groundConnectionMap.get(key);
-        if (result != null)
-            return result;
-        result = hasGroundConnectionSlow(n1);
-        groundConnectionMap.put(key, result);
-        return result;
-    }
-
-    public boolean hasGroundConnectionSlow(int n1) {
-        Vector<Integer> connectedNodes = new Vector<Integer>();
-
-        // keep list of nodes connected to n1
-        connectedNodes.add(n1);
-        int i;
-        for (i = 0; i < connectedNodes.size(); i++) {
-            // next node in list
-            int n = connectedNodes.get(i);
-            // find all elements connected to n
-            ArrayList<CircuitNodeLink> cnLinks = compNodeList.get(n).links;
-            for (int j = 0; j < cnLinks.size(); j++) {
-                CircuitNodeLink link = cnLinks.get(j);
-                CircuitElm lelm = link.elm;
-                if (lelm.hasGroundConnection(link.num))
-                    return true;
-                // loop through all other nodes this element has
-                for (int k = 0; k != lelm.getConnectionNodeCount(); k++)
-                    // are they connected?
-                    if (k != link.num && lelm.getConnection(link.num, k)) {
-                        int kn = lelm.getConnectionNode(k);
-                        int m;
-                        // find local node number (kn is global) and add it to list
-                        for (m = 0; m != nodes.length; m++)
-                            if (nodes[m] == kn && !connectedNodes.contains(m))
-                                connectedNodes.add(m);
-                    }
-            }
-        }
-        return false;
+        return getConnectivity().hasGroundConnection(n1);
     }
 
     public void reset() {
@@ -341,6 +302,8 @@ public abstract class CompositeElm extends CircuitElm {
     }
 
     public int getInternalNodeCount() {
+        if (condensed != null)
+            return 0;
         return numNodes - numPosts;
     }
 
@@ -366,6 +329,10 @@ public abstract class CompositeElm extends CircuitElm {
     }
 
     public void stamp() {
+        if (condensed != null) {
+            stampCondensed();
+            return;
+        }
         for (int i = 0; i < compElmList.size(); i++) {
             CircuitElm ce = compElmList.get(i);
             ce.setParentList(compElmList);
@@ -373,41 +340,93 @@ public abstract class CompositeElm extends CircuitElm {
         }
     }
 
+    private void stampCondensed() {
+        CircuitSimulator simulator = simulator();
+        // the stamp target maps local voltage source k to its row
+        for (int k = 0; k < vsNodes.length; k++) {
+            vsNodes[k] = k;
+            compElmList.get(vsElements[k]).setVoltageSource(vsNumbers[k], k);
+        }
+        condensed.beginStamp();
+        simulator.setStampTarget(condensed);
+        try {
+            for (int i = 0; i < compElmList.size(); i++) {
+                CircuitElm ce = compElmList.get(i);
+                ce.setParentList(compElmList);
+                ce.stamp();
+            }
+        } finally {
+            simulator.setStampTarget(null);
+        }
+        if (!condensed.stampEquivalent(simulator, nodes))
+            simulator.stop("Singular matrix!", this);
+    }
+
     public void startIteration() {
         for (int i = 0; i < compElmList.size(); i++)
             compElmList.get(i).startIteration();
     }
 
     public void doStep() {
-        for (int i = 0; i < compElmList.size(); i++)
-            compElmList.get(i).doStep();
+        if (condensed == null) {
+            for (int i = 0; i < compElmList.size(); i++)
+                compElmList.get(i).doStep();
+            return;
+        }
+        CircuitSimulator simulator = simulator();
+        condensed.beginStep();
+        simulator.setStampTarget(condensed);
+        try {
+            for (int i = 0; i < compElmList.size(); i++)
+                compElmList.get(i).doStep();
+        } finally {
+            simulator.setStampTarget(null);
+        }
+        condensed.stampStep(simulator, nodes);
     }
 
     public void stepFinished() {
+        if (condensed != null)
+            applyCondensedSolution();
         for (int i = 0; i < compElmList.size(); i++)
             compElmList.get(i).stepFinished();
     }
 
+    // give the internal nodes and voltage sources their values from the post voltages
+    private void applyCondensedSolution() {
+        for (int p = 0; p < numPosts; p++)
+            condensedPostVoltages[p] = getNodeVoltage(p);
+        condensed.solveInterior(condensedPostVoltages, condensedInterior);
+        int internalNodes = numNodes - numPosts;
+        for (int a = 0; a < internalNodes; a++) {
+            // only the sub-elements have state for internal nodes
+            int n = numPosts + a;
+            for (int k = getLinkStart(n); k < getLinkEnd(n); k++)
+                getLinkElm(k).setNodeVoltage(getLinkPost(k), condensedInterior[a]);
+        }
+        for (int k = 0; k < vsNodes.length; k++)
+            compElmList.get(vsElements[k]).setCurrent(vsNodes[k], condensedInterior[internalNodes + k]);
+    }
+
     // called to set node p (local to this element) to equal n (global)
     public void setNode(int p, int n) {
         nodes[p] = n;
-        ArrayList<CircuitNodeLink> cnLinks;
         super.setNode(p, n);
-        cnLinks = compNodeList.get(p).links;
+        // condensed sub-elements keep their local node numbers
+        if (condensed != null)
+            return;
 
         // call setNode() for all elements that use that node
-        for (int i = 0; i < cnLinks.size(); i++) {
-            cnLinks.get(i).elm.setNode(cnLinks.get(i).num, n);
+        for (int k = getLinkStart(p); k < getLinkEnd(p); k++) {
+            getLinkElm(k).setNode(getLinkPost(k), n);
         }
 
     }
 
     public void setNodeVoltage(int n, double c) {
-        ArrayList<CircuitNodeLink> cnLinks;
         super.setNodeVoltage(n, c);
-        cnLinks = compNodeList.get(n).links;
-        for (int i = 0; i < cnLinks.size(); i++) {
-            cnLinks.get(i).elm.setNodeVoltage(cnLinks.get(i).num, c);
+        for (int k = getLinkStart(n); k < getLinkEnd(n); k++) {
+            getLinkElm(k).setNodeVoltage(getLinkPost(k), c);
         }
         setNodeVoltageDirect(n, c);
     }
@@ -423,7 +442,9 @@ public abstract class CompositeElm extends CircuitElm {
     }
 
     public int getVoltageSourceCount() {
-        return voltageSources.size();
+        if (condensed != null)
+            return 0;
+        return vsNodes.length;
     }
 
     // Find the component with the nth voltage
@@ -431,27 +452,23 @@ public abstract class CompositeElm extends CircuitElm {
     // appropriate source in that component
     public void setVoltageSource(int n, int v) {
         // voltSource(n) = v;
-        VoltageSourceRecord vsr;
-        vsr = voltageSources.get(n);
-        vsr.elm.setVoltageSource(vsr.vsNumForElement, v);
-        vsr.vsNode = v;
+        compElmList.get(vsElements[n]).setVoltageSource(vsNumbers[n], v);
+        vsNodes[n] = v;
     }
 
     @Override
     public void setCurrent(int vsn, double c) {
-        for (int i = 0; i < voltageSources.size(); i++)
-            if (voltageSources.get(i).vsNode == vsn) {
-                voltageSources.get(i).elm.setCurrent(vsn, c);
+        for (int k = 0; k < vsNodes.length; k++)
+            if (vsNodes[k] == vsn) {
+                compElmList.get(vsElements[k]).setCurrent(vsn, c);
             }
 
     }
 
     public double getCurrentIntoNode(int n) {
         double c = 0;
-        ArrayList<CircuitNodeLink> cnLinks;
-        cnLinks = compNodeList.get(n).links;
-        for (int i = 0; i < cnLinks.size(); i++) {
-            c += cnLinks.get(i).elm.getCurrentIntoNode(cnLinks.get(i).num);
+        for (int k = getLinkStart(n); k < getLinkEnd(n); k++) {
+            c += getLinkElm(k).getCurrentIntoNode(getLinkPost(k));
         }
         return c;
     }
@@ -0,0 +1,141 @@
+package com.lushprojects.circuitjs1.client.element;
+
+import com.lushprojects.circuitjs1.client.StringTokenizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Parsed form of a composite model string, shared by all CompositeElm instances that use
+// the same model and external node list.
+//
+// The model string lists one element per line: the element type followed by the model
+// node number of each post (0 = ground). Parsing it and building the node map used to be
+// repeated for every instance on every load and undo. A template stores the result once,
+// including the list of posts linked to each node, which instances used to keep as node
+// and link objects of their own. loadComposite() then only has to create the sub-elements
+// and record their internal nodes and voltage sources in a few int arrays.
+// Templates are immutable, so they can be shared freely.
+final class CompositeTemplate {
+
+    // a board usually uses a handful of models; this only guards against unbounded growth
+    // while a custom model is being edited
+    private static final int MAX_CACHED_TEMPLATES = 64;
+
+    private static final HashMap<String, CompositeTemplate> cache = new HashMap<>();
+
+    // type token of each element, as passed to CircuitElmCreator.constructElement()
+    final String[] elementTypes;
+
+    // elementNodes[i][post] = index into the composite node list, or -1 for ground
+    final int[][] elementNodes;
+
+    // number of nodes referenced by posts, external nodes first (excludes internal nodes
+    // of the sub-elements, which depend on the element instances)
+    final int nodeCount;
+
+    // posts linked to node n, in element order: post nodeLinkPosts[k] of element
+    // nodeLinkElements[k] for nodeLinkStart[n] <= k < nodeLinkStart[n+1]
+    final int[] nodeLinkStart;
+    final int[] nodeLinkElements;
+    final int[] nodeLinkPosts;
+    final int linkCount;
+
+    private CompositeTemplate(String model, int[] externalNodes) {
+        StringTokenizer modelLinet = new StringTokenizer(model, "\r");
+        ArrayList<String> types = new ArrayList<>();
+        ArrayList<int[]> modelNodes = new ArrayList<>();
+
+        // built exactly like the node hash in the original loadComposite(), so the
+        // iteration order below, and therefore the node numbering, stays the same
+        HashMap<Integer, Integer> nodeHash = new HashMap<>();
+        ArrayList<Integer> postNodes = new ArrayList<>();
+        while (modelLinet.hasMoreTokens()) {
+            StringTokenizer stModel = new StringTokenizer(modelLinet.nextToken(), " +\t\n\r\f");
+            types.add(stModel.nextToken());
+            postNodes.clear();
+            while (stModel.hasMoreTokens()) {
+                int node = CircuitElm.parseInt(stModel.nextToken());
+                postNodes.add(node);
+                if (node != 0 && !nodeHash.containsKey(node)) {
+                    nodeHash.put(node, -1);
+                }
+            }
+            int[] nodes = new int[postNodes.size()];
+            for (int p = 0; p < nodes.length; p++) {
+                nodes[p] = postNodes.get(p);
+            }
+            modelNodes.add(nodes);
+        }
+
+        // external nodes first, then the rest in hash order
+        HashMap<Integer, Integer> nodeIndex = new HashMap<>();
+        int index = 0;
+        for (int externalNode : externalNodes) {
+            if (!nodeHash.containsKey(externalNode)) {
+                throw new IllegalArgumentException();
+            }
+            nodeHash.remove(externalNode);
+            nodeIndex.put(externalNode, index++);
+        }
+        for (Integer node : nodeHash.keySet()) {
+            nodeIndex.put(node, index++);
+        }
+        nodeCount = index;
+
+        int elementCount = types.size();
+        elementTypes = types.toArray(new String[elementCount]);
+        elementNodes = new int[elementCount][];
+        for (int i = 0; i < elementCount; i++) {
+            int[] nodes = modelNodes.get(i);
+            for (int p = 0; p < nodes.length; p++) {
+                nodes[p] = nodes[p] == 0 ? -1 : nodeIndex.get(nodes[p]);
+            }
+            elementNodes[i] = nodes;
+        }
+
+        nodeLinkStart = new int[nodeCount + 1];
+        for (int[] nodes : elementNodes) {
+            for (int node : nodes) {
+                if (node >= 0) {
+                    nodeLinkStart[node + 1]++;
+                }
+            }
+        }
+        for (int n = 0; n < nodeCount; n++) {
+            nodeLinkStart[n + 1] += nodeLinkStart[n];
+        }
+        linkCount = nodeLinkStart[nodeCount];
+        nodeLinkElements = new int[linkCount];
+        nodeLinkPosts = new int[linkCount];
+        int[] fill = Arrays.copyOf(nodeLinkStart, nodeCount);
+        for (int i = 0; i < elementCount; i++) {
+            int[] nodes = elementNodes[i];
+            for (int p = 0; p < nodes.length; p++) {
+                if (nodes[p] >= 0) {
+                    int k = fill[nodes[p]]++;
+                    nodeLinkElements[k] = i;
+                    nodeLinkPosts[k] = p;
+                }
+            }
+        }
+    }
+
+    static CompositeTemplate get(String model, int[] externalNodes) {
+        StringBuilder key = new StringBuilder(model.length() + 4 * externalNodes.length + 1);
+        for (int n : externalNodes) {
+            key.append(n).append(',');
+        }
+        key.append('|').append(model);
+        String keyString = key.toString();
+        CompositeTemplate template = cache.get(keyString);
+        if (template == null) {
+            template = new CompositeTemplate(model, externalNodes);
+            if (cache.size() >= MAX_CACHED_TEMPLATES) {
+                cache.clear();
+            }
+            cache.put(keyString, template);
+        }
+        return template;
+    }
+}
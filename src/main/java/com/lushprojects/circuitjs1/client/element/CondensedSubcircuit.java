@@ -0,0 +1,206 @@
+package com.lushprojects.circuitjs1.client.element;
+
+import com.lushprojects.circuitjs1.client.CircuitMath;
+import com.lushprojects.circuitjs1.client.CircuitSimulator;
+import com.lushprojects.circuitjs1.client.StampTarget;
+
+import java.util.Arrays;
+
+// Linear subcircuit whose internal nodes are eliminated when the circuit is stamped.
+//
+// The sub-elements of the composite are stamped into a small local matrix instead of the
+// circuit matrix. Local unknowns are the composite's nodes (posts first) followed by the
+// currents of its voltage sources; sub-elements see composite node p as node p + 1, and
+// getVoltageSourceNode() puts their voltage source k in the row after the last node.
+// Splitting the unknowns into posts (e) and interior (i):
+//
+//   [ Aee Aei ] [xe]   [be]
+//   [ Aie Aii ] [xi] = [bi]
+//
+// only the Schur complement Aee - Aei Aii^-1 Aie and the right side be - Aei Aii^-1 bi
+// are stamped on the posts, so the interior never becomes rows of the circuit matrix.
+// Right side changes made in doStep() are condensed the same way. Once the step is
+// solved, xi = Aii^-1 (bi - Aie xe) gives the interior values back to the sub-elements.
+class CondensedSubcircuit implements StampTarget {
+
+    // the local matrix is dense, so keep it small
+    static final int MAX_SIZE = 100;
+
+    // tiny conductance added to the interior diagonal if it is singular, like
+    // CircuitSimulator.stampSingularMatrixStabilizers()
+    static final double STABILIZER = 1e-12;
+
+    private final int postCount;
+    private final int nodeCount;
+    private final int size;
+    private final int interiorSize;
+
+    private final double[][] matrix;
+    private final double[] constRightSide;
+    private final double[] stepRightSide;
+    // constRightSide while stamping, stepRightSide in doStep()
+    private double[] rightSide;
+    private boolean rightSideChanges;
+
+    private final double[][] interior;
+    private final int[] interiorPermute;
+    // coupling[p] = Aii^-1 * Aie(:,p)
+    private final double[][] coupling;
+    private final double[] constInterior;
+    private final double[] stepInterior;
+
+    // only linear elements that stamp through the simulator and don't read global
+    // circuit state can be condensed. A VCVS is linear when its expression is.
+    static boolean canCondense(CircuitElm ce) {
+        if (ce.nonLinear()) {
+            return false;
+        }
+        return ce instanceof ResistorElm || ce instanceof CapacitorElm || ce instanceof InductorElm ||
+                ce instanceof VoltageElm || ce instanceof CurrentElm || ce instanceof GroundElm ||
+                ce instanceof VCVSElm;
+    }
+
+    CondensedSubcircuit(int postCount, int nodeCount, int size) {
+        this.postCount = postCount;
+        this.nodeCount = nodeCount;
+        this.size = size;
+        interiorSize = size - postCount;
+        matrix = new double[size][size];
+        constRightSide = new double[size];
+        stepRightSide = new double[size];
+        rightSide = constRightSide;
+        interior = new double[interiorSize][interiorSize];
+        interiorPermute = new int[interiorSize];
+        coupling = new double[postCount][interiorSize];
+        constInterior = new double[interiorSize];
+        stepInterior = new double[interiorSize];
+    }
+
+    // start capturing the stamps of the sub-elements' stamp()
+    void beginStamp() {
+        for (int i = 0; i < size; i++) {
+            Arrays.fill(matrix[i], 0);
+        }
+        Arrays.fill(constRightSide, 0);
+        Arrays.fill(stepInterior, 0);
+        rightSide = constRightSide;
+        rightSideChanges = false;
+    }
+
+    // start capturing the right side changes of the sub-elements' doStep()
+    void beginStep() {
+        Arrays.fill(stepRightSide, 0);
+        rightSide = stepRightSide;
+    }
+
+    public void stampMatrix(int i, int j, double x) {
+        if (i > 0 && j > 0) {
+            matrix[i - 1][j - 1] += x;
+        }
+    }
+
+    public void stampRightSide(int i, double x) {
+        if (i > 0) {
+            rightSide[i - 1] += x;
+        }
+    }
+
+    public void markRightSideChanges(int i) {
+        rightSideChanges = true;
+    }
+
+    public void markNonLinear(int i) {
+        // canCondense() only accepts linear elements, which never call this
+    }
+
+    public int getVoltageSourceNode(int vs) {
+        return nodeCount + 1 + vs;
+    }
+
+    /**
+     * Factors the interior block and stamps the equivalent matrix and right side on the
+     * circuit nodes of the posts. Returns false if the interior block is singular.
+     */
+    boolean stampEquivalent(CircuitSimulator simulator, int[] postNodes) {
+        if (!factorInterior(0) && !factorInterior(STABILIZER)) {
+            return false;
+        }
+        int pc = postCount;
+        for (int p = 0; p < pc; p++) {
+            double[] y = coupling[p];
+            for (int a = 0; a < interiorSize; a++) {
+                y[a] = matrix[pc + a][p];
+            }
+            CircuitMath.lu_solve(interior, interiorSize, interiorPermute, y);
+        }
+        for (int a = 0; a < interiorSize; a++) {
+            constInterior[a] = constRightSide[pc + a];
+        }
+        CircuitMath.lu_solve(interior, interiorSize, interiorPermute, constInterior);
+
+        for (int p = 0; p < pc; p++) {
+            double[] row = matrix[p];
+            for (int q = 0; q < pc; q++) {
+                double x = row[q];
+                double[] y = coupling[q];
+                for (int a = 0; a < interiorSize; a++) {
+                    x -= row[pc + a] * y[a];
+                }
+                if (x != 0) {
+                    simulator.stampMatrix(postNodes[p], postNodes[q], x);
+                }
+            }
+            double b = constRightSide[p];
+            for (int a = 0; a < interiorSize; a++) {
+                b -= row[pc + a] * constInterior[a];
+            }
+            if (b != 0) {
+                simulator.stampRightSide(postNodes[p], b);
+            }
+            if (rightSideChanges) {
+                simulator.stampRightSide(postNodes[p]);
+            }
+        }
+        return true;
+    }
+
+    private boolean factorInterior(double stabilizer) {
+        int pc = postCount;
+        for (int a = 0; a < interiorSize; a++) {
+            System.arraycopy(matrix[pc + a], pc, interior[a], 0, interiorSize);
+            interior[a][a] += stabilizer;
+        }
+        return CircuitMath.lu_factor(interior, interiorSize, interiorPermute);
+    }
+
+    // stamp the condensed right side captured since beginStep()
+    void stampStep(CircuitSimulator simulator, int[] postNodes) {
+        int pc = postCount;
+        for (int a = 0; a < interiorSize; a++) {
+            stepInterior[a] = stepRightSide[pc + a];
+        }
+        CircuitMath.lu_solve(interior, interiorSize, interiorPermute, stepInterior);
+        for (int p = 0; p < pc; p++) {
+            double[] row = matrix[p];
+            double b = stepRightSide[p];
+            for (int a = 0; a < interiorSize; a++) {
+                b -= row[pc + a] * stepInterior[a];
+            }
+            if (b != 0) {
+                simulator.stampRightSide(postNodes[p], b);
+            }
+        }
+    }
+
+    // compute the interior unknowns (internal node voltages, then voltage source currents)
+    // from the solved post voltages
+    void solveInterior(double[] postVoltages, double[] result) {
+        for (int a = 0; a < interiorSize; a++) {
+            double x = constInterior[a] + stepInterior[a];
+            for (int p = 0; p < postCount; p++) {
+                x -= coupling[p][a] * postVoltages[p];
+            }
+            result[a] = x;
+        }
+    }
+}
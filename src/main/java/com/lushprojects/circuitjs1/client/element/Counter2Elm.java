@@ -116,6 +116,10 @@ public class Counter2Elm extends ChipElm {
         return bits + 1;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     boolean carry;
 
     void execute() {
@@ -146,6 +146,10 @@ public class CounterElm extends ChipElm {
         return bits;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         boolean neg = negativeEdgeTriggered();
         if (pins[0].value != neg && lastClock == neg) {
@@ -9,7 +9,6 @@ import com.lushprojects.circuitjs1.client.CustomCompositeModel;
 import com.lushprojects.circuitjs1.client.CustomLogicModel;
 import com.lushprojects.circuitjs1.client.ExtListEntry;
 import com.lushprojects.circuitjs1.client.Graphics;
-import com.lushprojects.circuitjs1.client.Rectangle;
 import com.lushprojects.circuitjs1.client.StringTokenizer;
 import com.lushprojects.circuitjs1.client.dialog.EditInfo;
 import com.lushprojects.circuitjs1.client.util.Locale;
@@ -96,8 +95,7 @@ public class CustomCompositeElm extends CompositeElm {
         }
         chip.setSelected(needsHighlight());
         chip.draw(g);
-        Rectangle r = chip.geom().getBoundingBox();
-        geom().getBoundingBox().setBounds(r.x, r.y, r.width, r.height);
+        geom().setBoundingBox(chip.geom().getBoundingBox());
     }
 
     public void setPoints() {
@@ -186,6 +184,7 @@ public class CustomCompositeElm extends CompositeElm {
         if (st == null)
             st = new StringTokenizer(model.elmDump, " ");
         loadComposite(st, model.nodeList, externalNodes);
+        updateCondensation();
         allocNodes();
         setPoints();
     }
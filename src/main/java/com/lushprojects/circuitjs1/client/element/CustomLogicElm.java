@@ -5,6 +5,7 @@ import com.lushprojects.circuitjs1.client.CircuitDocument;
 import com.google.gwt.user.client.ui.Button;
 import com.lushprojects.circuitjs1.client.CircuitSimulator;
 import com.lushprojects.circuitjs1.client.CustomLogicModel;
+import com.lushprojects.circuitjs1.client.CustomLogicRules;
 import com.lushprojects.circuitjs1.client.StringTokenizer;
 import com.lushprojects.circuitjs1.client.dialog.EditInfo;
 import com.lushprojects.circuitjs1.client.util.Locale;
@@ -15,6 +16,8 @@ public class CustomLogicElm extends ChipElm {
     int inputCount, outputCount;
     CustomLogicModel model;
     boolean lastValues[];
+    // pin values after the last step, one bit per pin, when the model's rules are compiled
+    int lastState;
     boolean patternValues[];
     boolean highImpedance[];
     static String lastModelName = "default";
@@ -95,6 +98,7 @@ public class CustomLogicElm extends ChipElm {
             pins[i + inputCount].fixName();
         }
         lastValues = new boolean[postCount];
+        lastState = 0;
         patternValues = new boolean[26];
         highImpedance = new boolean[postCount];
     }
@@ -162,6 +166,43 @@ public class CustomLogicElm extends ChipElm {
     }
 
     void execute() {
+        CustomLogicRules rules = model.compiledRules;
+        if (rules == null) {
+            interpret();
+            return;
+        }
+        int state = getState(rules);
+        int r = rules.match(state, lastState);
+        if (r >= 0) {
+            int n = Math.min(rules.getOutputCount(), outputCount);
+            for (int j = 0; j != n; j++) {
+                int output = rules.getOutput(r, j);
+                Pin p = pins[j + inputCount];
+                highImpedance[j + inputCount] = (output == CustomLogicRules.OUTPUT_HIGH_Z);
+                if (output >= CustomLogicRules.OUTPUT_PIN)
+                    p.value = ((state >>> (output - CustomLogicRules.OUTPUT_PIN)) & 1) != 0;
+                else if (output != CustomLogicRules.OUTPUT_HIGH_Z)
+                    p.value = (output == CustomLogicRules.OUTPUT_HIGH);
+            }
+        }
+
+        // save values for transition checking
+        lastState = getState(rules);
+    }
+
+    // values of the pins the rules look at, one bit per pin
+    int getState(CustomLogicRules rules) {
+        int n = Math.min(rules.getPinCount(), postCount);
+        int state = 0;
+        for (int j = 0; j != n; j++) {
+            if (pins[j].value)
+                state |= 1 << j;
+        }
+        return state;
+    }
+
+    // match the rules as written, for models compiledRules can't handle
+    void interpret() {
         int i;
         for (i = 0; i != model.rulesLeft.size(); i++) {
             // check for a match
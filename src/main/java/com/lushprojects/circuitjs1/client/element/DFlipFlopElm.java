@@ -92,6 +92,10 @@ public class DFlipFlopElm extends ChipElm {
         return 2;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     public void reset() {
         super.reset();
         setNodeVoltageDirect(2, highVoltage);
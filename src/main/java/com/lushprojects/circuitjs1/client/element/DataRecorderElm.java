@@ -3,10 +3,11 @@ package com.lushprojects.circuitjs1.client.element;
 import com.lushprojects.circuitjs1.client.CircuitDocument;
 
 import com.google.gwt.i18n.client.DateTimeFormat;
-import com.google.gwt.user.client.ui.Anchor;
+import com.google.gwt.user.client.ui.Button;
 import com.lushprojects.circuitjs1.client.CircuitSimulator;
 import com.lushprojects.circuitjs1.client.Font;
 import com.lushprojects.circuitjs1.client.Graphics;
+import com.lushprojects.circuitjs1.client.SignalRecorder;
 import com.lushprojects.circuitjs1.client.StringTokenizer;
 import com.lushprojects.circuitjs1.client.dialog.EditInfo;
 import com.lushprojects.circuitjs1.client.util.Locale;
@@ -14,10 +15,12 @@ import com.lushprojects.circuitjs1.client.util.Locale;
 import java.util.Date;
 
 public class DataRecorderElm extends CircuitElm {
-    int dataCount, dataPtr;
+    // record everything to temporary files instead of keeping the last dataCount points
+    final int FLAG_TO_DISK = 1;
+    int dataCount;
     int lastTimeStepCount;
-    double data[];
-    boolean dataFull;
+    final SignalRecorder recorder = new SignalRecorder(1, 1);
+    final double sample[] = new double[1];
 
     public DataRecorderElm(CircuitDocument circuitDocument, int xx, int yy) {
         super(circuitDocument, xx, yy);
@@ -43,11 +46,15 @@ public class DataRecorderElm extends CircuitElm {
     }
 
     public void reset() {
-        dataPtr = 0;
-        dataFull = false;
+        recorder.start(hasFlag(FLAG_TO_DISK));
         lastTimeStepCount = 0;
     }
 
+    public void delete() {
+        recorder.clear();
+        super.delete();
+    }
+
     public void setPoints() {
         super.setPoints();
         double dn = getDn();
@@ -78,42 +85,47 @@ public class DataRecorderElm extends CircuitElm {
     public void getInfo(String arr[]) {
         arr[0] = "data export";
         arr[1] = "V = " + getVoltageText(getNodeVoltage(0));
-        arr[2] = (dataFull ? dataCount : dataPtr) + "/" + dataCount;
+        if (recorder.isSpilling()) {
+            arr[2] = recorder.getFrameCount() + " (disk)";
+        } else {
+            arr[2] = Math.min(recorder.getFrameCount(), dataCount) + "/" + dataCount;
+        }
+        long missing = recorder.getMissingFrameCount();
+        if (missing > 0) {
+            arr[3] = missing + " missing";
+        }
     }
 
     public void stepFinished() {
         CircuitSimulator simulator = simulator();
         if (lastTimeStepCount == simulator.timeStepCount)
             return;
-        data[dataPtr++] = getNodeVoltage(0);
+        sample[0] = getNodeVoltage(0);
+        recorder.record(simulator.t, sample);
         lastTimeStepCount = simulator.timeStepCount;
-        if (dataPtr >= dataCount) {
-            dataPtr = 0;
-            dataFull = true;
-        }
     }
 
     void setDataCount(int ct) {
         dataCount = ct;
-        data = new double[dataCount];
-        dataPtr = 0;
-        dataFull = false;
-    }
-
-    static public final native String getBlobUrl(String data)
-    /*-{
-            var datain=[""];
-            datain[0]=data;
-    var oldblob = $doc.recorderBlob;
-    // remove old blob if any.  We should do this when dialog is dismissed, but this is easier
-    if (oldblob)
-        URL.revokeObjectURL(oldblob);
-            var blob=new Blob(datain, {type: 'text/plain' } );
-            var url = URL.createObjectURL(blob);
-            $doc.recorderBlob = url;
-            return url;
+        recorder.setMemoryLimit(dataCount);
+        recorder.start(hasFlag(FLAG_TO_DISK));
+    }
+
+    static native void download(String url, String fileName) /*-{
+        var link = $doc.createElement('a');
+        link.href = url;
+        link.download = fileName;
+        link.style.display = 'none';
+        $doc.body.appendChild(link);
+        link.click();
+        $doc.body.removeChild(link);
     }-*/;
 
+    String getFileName(String ext) {
+        DateTimeFormat dtf = DateTimeFormat.getFormat("yyyyMMdd-HHmm");
+        return "data-" + dtf.format(new Date()) + ".circuitjs." + ext;
+    }
+
     public EditInfo getEditInfo(int n) {
         if (n == 0) {
             EditInfo ei = new EditInfo("# of Data Points", dataCount, -1, -1).setDimensionless();
@@ -121,33 +133,37 @@ public class DataRecorderElm extends CircuitElm {
         }
         if (n == 1) {
             EditInfo ei = new EditInfo("", 0, -1, -1);
-            String dataStr = "# time step = " + simulator().timeStep + " sec\n";
-            int i;
-            if (dataFull) {
-                for (i = 0; i != dataCount; i++)
-                    dataStr += data[(i + dataPtr) % dataCount] + "\n";
-            } else {
-                for (i = 0; i != dataPtr; i++)
-                    dataStr += data[i] + "\n";
-            }
-            String url = getBlobUrl(dataStr);
-            Date date = new Date();
-            DateTimeFormat dtf = DateTimeFormat.getFormat("yyyyMMdd-HHmm");
-            String fname = "data-" + dtf.format(date) + ".circuitjs.txt";
-            Anchor a = new Anchor(fname, url);
-            a.getElement().setAttribute("Download", fname);
-            ei.widget = a;
+            ei.button = new Button(Locale.LS("Export CSV"));
+            return ei;
+        }
+        if (n == 2) {
+            EditInfo ei = new EditInfo("", 0, -1, -1);
+            ei.button = new Button(Locale.LS("Export WAV"));
             return ei;
         }
+        if (n == 3 && SignalRecorder.canSpill()) {
+            return EditInfo.createCheckbox("Record to Disk (no limit)", hasFlag(FLAG_TO_DISK));
+        }
         return null;
     }
 
     public void setEditValue(int n, EditInfo ei) {
-        if (n == 0 && ei.value > 0) {
+        if (n == 0 && ei.value > 0 && (int) ei.value != dataCount) {
             setDataCount((int) ei.value);
         }
-        if (n == 1)
-            return;
+        if (n == 1) {
+            // the export is made when asked for, so opening the dialog stays cheap
+            String comment = "# time step = " + simulator().timeStep + " sec\n";
+            download(recorder.getCsvUrl(comment, new String[] { "t", "V" }), getFileName("csv"));
+        }
+        if (n == 2) {
+            double rate = Math.min(1 / simulator().maxTimeStep, Integer.MAX_VALUE);
+            download(recorder.getWavUrl(0, Math.max(1, (int) Math.round(rate))), getFileName("wav"));
+        }
+        if (n == 3) {
+            flags = ei.changeFlag(flags, FLAG_TO_DISK);
+            recorder.start(hasFlag(FLAG_TO_DISK));
+        }
     }
 
     @Override
@@ -159,9 +175,22 @@ public class DataRecorderElm extends CircuitElm {
     public java.util.Map<String, Object> getJsonProperties() {
         java.util.Map<String, Object> props = super.getJsonProperties();
         props.put("data_points", dataCount);
+        props.put("record_to_disk", hasFlag(FLAG_TO_DISK));
         return props;
     }
 
+    @Override
+    public void applyJsonProperties(java.util.Map<String, Object> props) {
+        super.applyJsonProperties(props);
+        if (getJsonBoolean(props, "record_to_disk", false)) {
+            flags |= FLAG_TO_DISK;
+        } else {
+            flags &= ~FLAG_TO_DISK;
+        }
+        // restarts the recording with the flag
+        setDataCount(Math.max(1, getJsonInt(props, "data_points", dataCount)));
+    }
+
     @Override
     public String[] getJsonPinNames() {
         return new String[] { "input" };
@@ -86,6 +86,10 @@ public class DeMultiplexerElm extends ChipElm {
         return outputCount;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         int val = 0;
         int i;
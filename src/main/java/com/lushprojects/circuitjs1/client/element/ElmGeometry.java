@@ -11,8 +11,20 @@ import com.lushprojects.circuitjs1.client.Rectangle;
  */
 public final class ElmGeometry {
 
+    // A spatial index of the elements (ElementGrid) that wants to know when the endpoints
+    // or the bounding box of one of them are written. It is told once, with the key it
+    // gave, and not again until it calls clearChangeReported(), so an element whose draw()
+    // rewrites its box on every frame costs one call per frame at most.
+    public interface Listener {
+        void geometryChanged(CircuitElm elm, int key);
+    }
+
     private final CircuitElm owner;
 
+    private Listener listener;
+    private int listenerKey;
+    private boolean changeReported;
+
     // Endpoints (grid coordinates)
     private int x1, y1, x2, y2;
 
@@ -24,6 +36,14 @@ public final class ElmGeometry {
 
     private final Rectangle boundingBox = new Rectangle();
 
+    // incremented whenever the endpoints change, so spatial indexes can tell which
+    // elements moved. The bounding box is not counted: most elements recompute it in
+    // draw() on every frame.
+    private int version;
+    // version when setBbox() last computed the bounding box. Until draw() has done that,
+    // the box is only the endpoint rectangle, or stale after the endpoints changed.
+    private int boxVersion = -1;
+
     // Derived geometry
     private int dx, dy, dsign;
     private double dn;
@@ -111,9 +131,37 @@ public final class ElmGeometry {
         return boundingBox;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    // has the bounding box been computed for the current endpoints?
+    public boolean isBoundingBoxCurrent() {
+        return boxVersion == version;
+    }
+
+    public void setListener(Listener listener, int key) {
+        this.listener = listener;
+        listenerKey = key;
+        changeReported = false;
+    }
+
+    public void clearChangeReported() {
+        changeReported = false;
+    }
+
+    private void reportChange() {
+        if (listener != null && !changeReported) {
+            changeReported = true;
+            listener.geometryChanged(owner, listenerKey);
+        }
+    }
+
     // ======== Core recompute ========
 
     public void updatePointsFromEndpoints() {
+        version++;
+        reportChange();
         dx = x2 - x1;
         dy = y2 - y1;
         dn = Math.sqrt((double) dx * (double) dx + (double) dy * (double) dy);
@@ -218,9 +266,14 @@ public final class ElmGeometry {
         y1 += dy;
         x2 += dx;
         y2 += dy;
+        boolean boxCurrent = isBoundingBoxCurrent();
         boundingBox.translate(dx, dy);
         updatePointsFromEndpoints();
         owner.setPoints();
+        // moving the element moves its box with it
+        if (boxCurrent) {
+            boxVersion = version;
+        }
     }
 
     public void dragTo(int xx, int yy) {
@@ -385,6 +438,7 @@ public final class ElmGeometry {
                 BaseCircuitElm.min(y1, y2),
                 BaseCircuitElm.abs(x2 - x1) + 1,
                 BaseCircuitElm.abs(y2 - y1) + 1);
+        reportChange();
     }
 
     public boolean isZeroSize() {
@@ -417,6 +471,15 @@ public final class ElmGeometry {
             y2 = q;
         }
         boundingBox.setBounds(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+        boxVersion = version;
+        reportChange();
+    }
+
+    // copy the bounds of another element's box, computed by its draw()
+    public void setBoundingBox(Rectangle r) {
+        boundingBox.setBounds(r.x, r.y, r.width, r.height);
+        boxVersion = version;
+        reportChange();
     }
 
     public void setBbox(Point p1, Point p2, double w) {
@@ -442,6 +505,7 @@ public final class ElmGeometry {
         x2 = BaseCircuitElm.max(boundingBox.x + boundingBox.width, x2);
         y2 = BaseCircuitElm.max(boundingBox.y + boundingBox.height, y2);
         boundingBox.setBounds(x1, y1, x2 - x1, y2 - y1);
+        reportChange();
     }
 
     public void adjustBbox(Point p1, Point p2) {
@@ -76,6 +76,10 @@ public class FullAdderElm extends ChipElm {
         return bits + 1;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         int i;
         int c = pins[carryIn].value ? 1 : 0;
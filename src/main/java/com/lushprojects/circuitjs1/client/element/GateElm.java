@@ -328,6 +328,10 @@ public abstract class GateElm extends CircuitElm {
         return (n1 == inputCount);
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     public double getCurrentIntoNode(int n) {
         if (n == inputCount)
             return current;
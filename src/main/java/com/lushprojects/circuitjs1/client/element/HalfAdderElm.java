@@ -63,6 +63,10 @@ public class HalfAdderElm extends ChipElm {
         return 2;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
 
         pins[0].value = pins[2].value ^ pins[3].value;
@@ -86,6 +86,10 @@ public class JKFlipFlopElm extends ChipElm {
         return 2;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     boolean justLoaded;
 
     void execute() {
@@ -89,6 +89,10 @@ public class LatchElm extends ChipElm {
         return bits;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     public int getPostCount() {
         return bits * 2 + 1;
     }
@@ -109,6 +109,10 @@ public class MultiplexerElm extends ChipElm {
         return hasFlag(FLAG_INVERTED_OUTPUT) ? 2 : 1;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         int selectedValue = 0;
         int i;
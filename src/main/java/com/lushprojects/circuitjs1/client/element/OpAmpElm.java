@@ -190,7 +190,7 @@ public class OpAmpElm extends CircuitElm {
 
     public void stamp() {
         CircuitSimulator simulator = simulator();
-        int vn = simulator.nodeList.size() + voltSource;
+        int vn = simulator.getVoltageSourceNode(voltSource);
         simulator.stampNonLinear(vn);
         simulator.stampMatrix(getNode(2), vn, 1);
     }
@@ -204,7 +204,7 @@ public class OpAmpElm extends CircuitElm {
         else if (getNodeVoltage(2) > maxOut + .1 || getNodeVoltage(2) < minOut - .1)
             simulator.converged = false;
         double x = 0;
-        int vn = simulator().nodeList.size() + voltSource;
+        int vn = simulator().getVoltageSourceNode(voltSource);
         double dx = 0;
         double maxAdj = maxOut - midpoint;
         double minAdj = minOut - midpoint;
@@ -55,7 +55,7 @@ public class PhaseCompElm extends ChipElm {
 
     public void stamp() {
         CircuitSimulator simulator = simulator();
-        int vn = simulator.nodeList.size() + pins[2].voltSource;
+        int vn = simulator.getVoltageSourceNode(pins[2].voltSource);
         simulator.stampNonLinear(vn);
         simulator.stampNonLinear(0);
         simulator.stampNonLinear(getNode(2));
@@ -79,7 +79,7 @@ public class PhaseCompElm extends ChipElm {
             simulator.stampVoltageSource(0, getNode(2), pins[2].voltSource, out);
         else {
             // tie current through output pin to 0
-            int vn = simulator.nodeList.size() + pins[2].voltSource;
+            int vn = simulator.getVoltageSourceNode(pins[2].voltSource);
             simulator.stampMatrix(vn, vn, 1);
         }
         pins[0].value = v1;
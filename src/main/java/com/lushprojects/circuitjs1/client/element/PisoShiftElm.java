@@ -120,6 +120,10 @@ public class PisoShiftElm extends ChipElm {
         return 1;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         //LOAD raised
         if (pins[0].value != loadState) {
@@ -95,6 +95,10 @@ public class RingCounterElm extends ChipElm {
         return bits;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         int i;
 
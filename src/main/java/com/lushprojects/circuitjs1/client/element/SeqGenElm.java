@@ -110,6 +110,10 @@ public class SeqGenElm extends ChipElm {
         return 1;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     boolean hasPlayOnce() {
         return (flags & FLAG_PLAY_ONCE) != 0;
     }
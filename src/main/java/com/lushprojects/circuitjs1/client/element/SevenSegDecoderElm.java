@@ -109,6 +109,10 @@ public class SevenSegDecoderElm extends ChipElm {
         return 7;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         int input = 0;
         if (pins[7].value) input += 8;
@@ -95,6 +95,10 @@ public class SipoShiftElm extends ChipElm {
         return bits;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     void execute() {
         if (pins[1].value != clockstate) {
             clockstate = pins[1].value;
@@ -80,6 +80,10 @@ public class TFlipFlopElm extends ChipElm {
         return 2;
     }
 
+    public boolean isEventDriven() {
+        return true;
+    }
+
     public void reset() {
         super.reset();
         setNodeVoltageDirect(2, highVoltage);
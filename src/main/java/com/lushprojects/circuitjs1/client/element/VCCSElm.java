@@ -23,8 +23,8 @@ import com.lushprojects.circuitjs1.client.CircuitDocument;
 
 import com.google.gwt.user.client.Window;
 import com.lushprojects.circuitjs1.client.CustomLogicModel;
-import com.lushprojects.circuitjs1.client.Expr;
 import com.lushprojects.circuitjs1.client.ExprParser;
+import com.lushprojects.circuitjs1.client.ExprProgram;
 import com.lushprojects.circuitjs1.client.ExprState;
 import com.lushprojects.circuitjs1.client.Graphics;
 import com.lushprojects.circuitjs1.client.StringTokenizer;
@@ -34,8 +34,10 @@ import com.lushprojects.circuitjs1.client.util.Locale;
 public class VCCSElm extends ChipElm {
     double gain;
     int inputCount;
-    Expr expr;
+    ExprProgram expr;
     ExprState exprState;
+    // partial derivatives of the expression by input, filled by evalGradient()
+    double exprGradient[];
     String exprString;
     public boolean broken;
 
@@ -73,6 +75,7 @@ public class VCCSElm extends ChipElm {
         pins[inputCount + 1] = new Pin(1, SIDE_E, "C-");
         lastVolts = new double[inputCount];
         exprState = new ExprState(inputCount);
+        exprGradient = new double[exprState.values.length];
         allocNodes();
     }
 
@@ -143,22 +146,15 @@ public class VCCSElm extends ChipElm {
                 exprState.values[i] = getNodeVoltage(i);
             exprState.t = simulator().t;
             exprState.timeStep = simulator().timeStep;
-            double v0 = -expr.eval(exprState);
+            double v0 = -expr.evalGradient(exprState, exprGradient);
 //        	if (Math.abs(getNodeVoltage(inputCount)-v0) > Math.abs(v0)*.01 && sim.subIterations < 100)
 //        	    sim.converged = false;
             double rs = v0;
 
-            // calculate and stamp output derivatives
+            // stamp output derivatives
             for (i = 0; i != inputCount; i++) {
                 double vi = getNodeVoltage(i);
-                double dv = vi - lastVolts[i];
-                if (Math.abs(dv) < 1e-6)
-                    dv = 1e-6;
-                exprState.values[i] = vi;
-                double v = -expr.eval(exprState);
-                exprState.values[i] = vi - dv;
-                double v2 = -expr.eval(exprState);
-                double dx = (v - v2) / dv;
+                double dx = -exprGradient[i];
                 if (Math.abs(dx) < 1e-6)
                     dx = sign(dx, 1e-6);
                 simulator().stampVCCurrentSource(getNode(inputCount), getNode(inputCount + 1), getNode(i), 0, dx);
@@ -166,7 +162,6 @@ public class VCCSElm extends ChipElm {
                 //sim.console("ccedx " + i + " " + dx + " " + sim.subIterations + " " + sim.t);
                 // adjust right side
                 rs -= dx * vi;
-                exprState.values[i] = vi;
             }
 //        	sim.console("ccers " + rs);
             simulator().stampCurrentSource(getNode(inputCount), getNode(inputCount + 1), rs);
@@ -178,6 +173,14 @@ public class VCCSElm extends ChipElm {
             lastVolts[i] = getNodeVoltage(i);
     }
 
+    // derivative of the expression by input current n of the current-controlled sources,
+    // which also set i to the first current when they have fewer than 9 inputs
+    double getCurrentExprDerivative(int n, int inputPairCount) {
+        if (n == 0 && inputPairCount < 9)
+            return exprGradient[0] + exprGradient[8];
+        return exprGradient[n];
+    }
+
     public void stepFinished() {
         exprState.updateLastValues(pins[inputCount].current);
     }
@@ -242,7 +245,7 @@ public class VCCSElm extends ChipElm {
 
     void parseExpr() {
         ExprParser parser = new ExprParser(exprString);
-        expr = parser.parseExpression();
+        expr = new ExprProgram(parser.parseExpression());
         String err = parser.gotError();
         if (err != null)
             Window.alert(Locale.LS("Parse error in expression") + ": " + exprString + ": " + err);
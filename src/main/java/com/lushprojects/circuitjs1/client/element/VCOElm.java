@@ -97,8 +97,8 @@ public class VCOElm extends ChipElm {
         // now we set the current through the cap to be equal to the
         // current through R1 and R2, so we can measure the voltage
         // across the cap
-        int cur1 = simulator().nodeList.size() + pins[4].voltSource;
-        int cur2 = simulator().nodeList.size() + pins[5].voltSource;
+        int cur1 = simulator().getVoltageSourceNode(pins[4].voltSource);
+        int cur2 = simulator().getVoltageSourceNode(pins[5].voltSource);
         simulator.stampMatrix(getNode(2), cur1, dir);
         simulator.stampMatrix(getNode(2), cur2, dir);
         simulator.stampMatrix(getNode(3), cur1, -dir);
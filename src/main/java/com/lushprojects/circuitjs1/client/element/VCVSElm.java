@@ -24,6 +24,8 @@ import com.lushprojects.circuitjs1.client.CircuitDocument;
 import com.lushprojects.circuitjs1.client.ExprState;
 import com.lushprojects.circuitjs1.client.StringTokenizer;
 
+import java.util.Arrays;
+
 public class VCVSElm extends VCCSElm {
     public VCVSElm(CircuitDocument circuitDocument, int xa, int ya, int xb, int yb, int f,
                    StringTokenizer st) {
@@ -46,6 +48,7 @@ public class VCVSElm extends VCCSElm {
         pins[inputCount + 1] = new Pin(1, SIDE_E, "V-");
         lastVolts = new double[inputCount];
         exprState = new ExprState(inputCount);
+        exprGradient = new double[exprState.values.length];
         allocNodes();
     }
 
@@ -53,13 +56,31 @@ public class VCVSElm extends VCCSElm {
         return "VCVS";
     }
 
+    // an affine expression is stamped once, with its constant gradient
+    public boolean nonLinear() {
+        return expr == null || !expr.isLinear();
+    }
+
     public void stamp() {
-        int vn = pins[inputCount].voltSource + simulator().nodeList.size();
+        int vn = simulator().getVoltageSourceNode(pins[inputCount].voltSource);
+        if (!nonLinear()) {
+            // the constant term is the output with all inputs at 0
+            Arrays.fill(exprState.values, 0, inputCount, 0);
+            double v0 = expr.evalGradient(exprState, exprGradient);
+            simulator().stampVoltageSource(getNode(inputCount + 1), getNode(inputCount), pins[inputCount].voltSource, v0);
+            for (int i = 0; i != inputCount; i++) {
+                if (exprGradient[i] != 0)
+                    simulator().stampMatrix(vn, getNode(i), -exprGradient[i]);
+            }
+            return;
+        }
         simulator().stampNonLinear(vn);
         simulator().stampVoltageSource(getNode(inputCount + 1), getNode(inputCount), pins[inputCount].voltSource);
     }
 
     public void doStep() {
+        if (!nonLinear())
+            return;
         int i;
         // converged yet?
         double convergeLimit = getConvergeLimit();
@@ -69,37 +90,29 @@ public class VCVSElm extends VCCSElm {
 //        	if (Double.isNaN(getNodeVoltage(i)))
 //        	    setNodeVoltageDirect(i, 0);
         }
-        int vn = pins[inputCount].voltSource + simulator().nodeList.size();
+        int vn = simulator().getVoltageSourceNode(pins[inputCount].voltSource);
         if (expr != null) {
             // calculate output
             for (i = 0; i != inputCount; i++)
                 exprState.values[i] = getNodeVoltage(i);
             exprState.t = simulator().t;
             exprState.timeStep = simulator().timeStep;
-            double v0 = expr.eval(exprState);
+            double v0 = expr.evalGradient(exprState, exprGradient);
             if (Math.abs(getNodeVoltage(inputCount) - getNodeVoltage(inputCount + 1) - v0) > Math.abs(v0) * .01 && simulator().subIterations < 100)
                 simulator().converged = false;
             double rs = v0;
 
-            // calculate and stamp output derivatives
+            // stamp output derivatives
             for (i = 0; i != inputCount; i++) {
                 double vi = getNodeVoltage(i);
-                double dv = vi - lastVolts[i];
-                if (Math.abs(dv) < 1e-6)
-                    dv = 1e-6;
-                exprState.values[i] = vi;
-                double v = expr.eval(exprState);
-                exprState.values[i] = vi - dv;
-                double v2 = expr.eval(exprState);
-                double dx = (v - v2) / dv;
+                double dx = exprGradient[i];
                 if (Math.abs(dx) < 1e-6)
                     dx = sign(dx, 1e-6);
 //        	    if (sim.subIterations > 1)
-//        		sim.console("ccedx " + i + " " + dx + " v " + v + " v2 " + v2 + " dv " + dv + " lv " + lastVolts[i] + " " + getNodeVoltage(i) + " " + sim.subIterations + " " + sim.t);
+//        		sim.console("ccedx " + i + " " + dx + " lv " + lastVolts[i] + " " + getNodeVoltage(i) + " " + sim.subIterations + " " + sim.t);
                 simulator().stampMatrix(vn, getNode(i), -dx);
                 // adjust right side
                 rs -= dx * vi;
-                exprState.values[i] = vi;
             }
             simulator().stampRightSide(vn, rs);
         }
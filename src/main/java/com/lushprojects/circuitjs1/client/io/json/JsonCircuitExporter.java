@@ -435,6 +435,8 @@ public class JsonCircuitExporter implements CircuitExporter {
                 plotMode.put("plot_xy", JSONBoolean.getInstance(scope.plotXY));
                 plotMode.put("max_scale", JSONBoolean.getInstance(scope.maxScale));
                 plotMode.put("log_spectrum", JSONBoolean.getInstance(scope.logSpectrum));
+                plotMode.put("spectrum_window", new JSONNumber(scope.getSpectrumWindow()));
+                plotMode.put("spectrum_averages", new JSONNumber(scope.getSpectrumAverages()));
                 scopeObj.put("plot_mode", plotMode);
 
                 // Trigger settings (optional)
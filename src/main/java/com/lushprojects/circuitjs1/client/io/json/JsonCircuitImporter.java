@@ -618,6 +618,8 @@ public class JsonCircuitImporter implements CircuitImporter {
                 scope.plotXY = getBoolean(plotMode, "plot_xy", false);
                 scope.maxScale = getBoolean(plotMode, "max_scale", false);
                 scope.logSpectrum = getBoolean(plotMode, "log_spectrum", false);
+                scope.setSpectrumWindow(getInt(plotMode, "spectrum_window", Scope.SPECTRUM_WINDOW_SINE));
+                scope.setSpectrumAverages(getInt(plotMode, "spectrum_averages", Scope.DEFAULT_SPECTRUM_AVERAGES));
             }
 
             // Trigger settings (optional)
@@ -0,0 +1,154 @@
+/**
+ * Solver Benchmark Script
+ *
+ * Вимірює продуктивність розв'язувача та кроку симуляції.
+ *
+ * Бенчмарки:
+ * 1. CircuitMath.lu_factor/lu_solve та SparseLU на синтетичних матрицях різного розміру
+ *    (CircuitJS1.benchmarkSolver)
+ * 2. Завантаження + analyzeCircuit + stampCircuit для схем з public/circuits/
+ * 3. Фіксована кількість кроків runCircuit для типових схем (CircuitJS1.runBatch)
+ *
+ * Результати у ns/op, щоб регресії було видно при порівнянні запусків.
+ * Браузер не дає рахувати алокації, тому їх тут немає; для цього використовуйте
+ * Memory panel у Chrome DevTools.
+ *
+ * Використання через Chrome DevTools Console:
+ * 1. Завантажте цей файл або скопіюйте код в консоль
+ * 2. Викличте: await runSolverBenchmarks()
+ */
+
+// Розміри матриць для синтетичного бенчмарку
+const BENCH_MATRIX_SIZES = [20, 50, 100, 200, 500, 1000, 2000];
+
+// Схеми для бенчмарку (шляхи відносно public/circuits/)
+const BENCH_CIRCUITS = [
+    // RC ladder
+    'ladder.txt',
+    // Switch-mode supply
+    'conv-buck.txt',
+    // Лічильник на логічних елементах
+    'counter.txt'
+];
+
+// Кількість кроків runCircuit на схему
+const BENCH_STEPS = 20000;
+
+// Кількість повторів завантаження + аналізу
+const BENCH_LOAD_REPEATS = 20;
+
+/**
+ * Завантажує схему з файлу через fetch
+ */
+async function loadBenchCircuit(filename) {
+    const url = `${window.location.origin}/circuits/${filename}`;
+    try {
+        const response = await fetch(url);
+        if (!response.ok) {
+            throw new Error(`HTTP ${response.status}`);
+        }
+        return await response.text();
+    } catch (e) {
+        console.error(`Failed to load ${filename}:`, e);
+        return null;
+    }
+}
+
+/**
+ * Повертає timestep з рядка "$ ..." схеми
+ */
+function getCircuitTimeStep(circuitText) {
+    const header = circuitText.split('\n').find(line => line.startsWith('$ '));
+    const timeStep = header ? parseFloat(header.split(' ')[2]) : NaN;
+    return isNaN(timeStep) || timeStep <= 0 ? 5e-6 : timeStep;
+}
+
+/**
+ * Бенчмарк розв'язувача на синтетичних матрицях
+ */
+function benchmarkMatrixSizes(sizes = BENCH_MATRIX_SIZES, iterations = 10) {
+    const results = [];
+    for (const size of sizes) {
+        const r = CircuitJS1.benchmarkSolver(size, iterations);
+        results.push(r);
+        const dense = isNaN(r.denseFactorNs) ? 'skipped' :
+            `factor ${r.denseFactorNs.toFixed(0)} ns/op, solve ${r.denseSolveNs.toFixed(0)} ns/op`;
+        console.log(`  n=${size}: dense ${dense}; sparse factor ${r.sparseFactorNs.toFixed(0)}, ` +
+            `refactor ${r.sparseRefactorNs.toFixed(0)} (changed pattern ${r.sparseRefactorChangedNs.toFixed(0)}), ` +
+            `solve ${r.sparseSolveNs.toFixed(0)} ns/op ` +
+            `(${r.sparseFactorNonZeros} nonzeros in L+U)`);
+    }
+    return results;
+}
+
+/**
+ * Бенчмарк однієї схеми: завантаження + аналіз + стемпінг, потім BENCH_STEPS кроків
+ */
+function benchmarkCircuit(circuitText, name, steps = BENCH_STEPS) {
+    const result = { name: name, error: null };
+
+    // endTime = 0: тільки завантаження, analyzeCircuit і stampCircuit
+    let start = performance.now();
+    for (let i = 0; i < BENCH_LOAD_REPEATS; i++) {
+        if (CircuitJS1.runBatch(circuitText, { endTime: 0 }) === null) {
+            result.error = 'load failed: ' + CircuitJS1.getLastLogs(1)[0];
+            return result;
+        }
+    }
+    result.loadNs = (performance.now() - start) * 1e6 / BENCH_LOAD_REPEATS;
+
+    const timeStep = getCircuitTimeStep(circuitText);
+    const endTime = timeStep * steps;
+    start = performance.now();
+    const samples = CircuitJS1.runBatch(circuitText, { endTime: endTime, sampleInterval: endTime, format: 'binary' });
+    const elapsedMs = performance.now() - start;
+    if (samples === null) {
+        result.error = 'run failed: ' + CircuitJS1.getLastLogs(1)[0];
+        return result;
+    }
+    // включає одне завантаження, але при BENCH_STEPS кроків воно не суттєве
+    result.stepNs = elapsedMs * 1e6 / steps;
+    result.simTime = samples[samples.length - 1];
+    return result;
+}
+
+/**
+ * Запускає всі бенчмарки
+ */
+async function runSolverBenchmarks(circuitList = BENCH_CIRCUITS) {
+    console.log('=== Solver Benchmarks ===');
+    console.log('Synthetic mesh matrices:');
+    const matrixResults = benchmarkMatrixSizes();
+
+    console.log('');
+    console.log('Circuits:');
+    const circuitResults = [];
+    for (const filename of circuitList) {
+        const circuitText = await loadBenchCircuit(filename);
+        if (!circuitText) {
+            console.log(`  ${filename}: ⊘ SKIPPED`);
+            continue;
+        }
+        const r = benchmarkCircuit(circuitText, filename);
+        circuitResults.push(r);
+        if (r.error) {
+            console.log(`  ${filename}: ✗ ${r.error}`);
+        } else {
+            console.log(`  ${filename}: load+analyze+stamp ${r.loadNs.toFixed(0)} ns/op, ` +
+                `step ${r.stepNs.toFixed(0)} ns/op`);
+        }
+    }
+
+    return { matrices: matrixResults, circuits: circuitResults };
+}
+
+// Експортуємо функції в глобальний простір
+window.runSolverBenchmarks = runSolverBenchmarks;
+window.benchmarkMatrixSizes = benchmarkMatrixSizes;
+window.benchmarkCircuit = benchmarkCircuit;
+
+console.log('Solver Benchmark Script loaded.');
+console.log('Available functions:');
+console.log('  - runSolverBenchmarks() - run all benchmarks');
+console.log('  - benchmarkMatrixSizes(sizes, iterations) - solver on synthetic matrices');
+console.log('  - benchmarkCircuit(circuitText, name, steps) - one circuit');
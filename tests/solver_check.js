@@ -0,0 +1,180 @@
+/**
+ * Solver Check Script
+ *
+ * Перевіряє правильність SparseLU: розв'язує ту саму систему через SparseLU
+ * (factor і refactor) та через CircuitMath.lu_factor/lu_solve і порівнює
+ * (CircuitJS1.checkSolver).
+ *
+ * Перевірки:
+ * 1. Синтетичні матриці SolverBenchmark.buildMeshMatrix різного розміру
+ * 2. Застемплена (лінійна, спрощена) матриця схем з public/circuits/
+ *
+ * Нев'язки — нормовані похибки max|Ax - b| / (max|A| * max|x| + max|b|),
+ * тобто мають бути близькі до машинної точності. Різниця розв'язків залежить
+ * ще й від обумовленості матриці, тому її поріг м'якший.
+ * Якщо обидва розв'язувачі вважають матрицю виродженою, це теж збіг
+ * (лінійна частина нелінійної схеми може бути виродженою сама по собі).
+ *
+ * Використання через Chrome DevTools Console:
+ * 1. Завантажте цей файл або скопіюйте код в консоль
+ * 2. Викличте: await runSolverChecks()
+ */
+
+// Розміри матриць (dense пропускається понад 1000, тоді перевіряються лише нев'язки)
+const CHECK_MATRIX_SIZES = [1, 2, 20, 50, 150, 500, 1000, 2000];
+
+// Схеми для перевірки (шляхи відносно public/circuits/)
+const CHECK_CIRCUITS = [
+    // Лінійні
+    'ohms.txt',
+    'lrc.txt',
+    'filt-lopass.txt',
+    'ladder.txt',
+    'grid.txt',
+    'grid2.txt',
+
+    // Нелінійні
+    'diodevar.txt',
+    'npn.txt',
+    'opamp.txt',
+    'amp-invert.txt',
+    'joule-thief.txt',
+    'conv-buck.txt',
+
+    // Логіка
+    'cmosff.txt',
+    'counter.txt'
+];
+
+// Допустима нормована нев'язка
+const MAX_RESIDUAL = 1e-12;
+
+// Допустима відносна різниця між розв'язками SparseLU і dense
+const MAX_DIFFERENCE = 1e-6;
+
+/**
+ * Завантажує схему з файлу через fetch
+ */
+async function loadCheckCircuit(filename) {
+    const url = `${window.location.origin}/circuits/${filename}`;
+    try {
+        const response = await fetch(url);
+        if (!response.ok) {
+            throw new Error(`HTTP ${response.status}`);
+        }
+        return await response.text();
+    } catch (e) {
+        console.error(`Failed to load ${filename}:`, e);
+        return null;
+    }
+}
+
+/**
+ * Перевіряє результат CircuitJS1.checkSolver, повертає текст помилки або null
+ */
+function checkResultError(r) {
+    if (r.denseSingular && r.sparseSingular) {
+        return null;
+    }
+    if (r.sparseSingular) {
+        return 'SparseLU says singular, dense does not';
+    }
+    if (r.denseSingular) {
+        return 'dense says singular, SparseLU does not';
+    }
+    // NaN не проходить жодне порівняння, тому перевіряємо "не менше"
+    if (!(r.sparseResidual <= MAX_RESIDUAL)) {
+        return `factor residual ${r.sparseResidual}`;
+    }
+    if (!(r.refactorResidual <= MAX_RESIDUAL)) {
+        return `refactor residual ${r.refactorResidual}`;
+    }
+    // dense пропущено для великих матриць
+    if (!isNaN(r.denseResidual) && !(r.maxDifference <= MAX_DIFFERENCE)) {
+        return `differs from dense by ${r.maxDifference}`;
+    }
+    return null;
+}
+
+function formatCheckResult(r) {
+    if (r.denseSingular && r.sparseSingular) {
+        return 'singular in both solvers';
+    }
+    return `residual factor ${r.sparseResidual.toExponential(2)}, ` +
+        `refactor ${r.refactorResidual.toExponential(2)}, ` +
+        `dense ${isNaN(r.denseResidual) ? 'skipped' : r.denseResidual.toExponential(2)}, ` +
+        `difference ${isNaN(r.maxDifference) ? '-' : r.maxDifference.toExponential(2)}`;
+}
+
+/**
+ * Перевірка на синтетичних матрицях
+ */
+function checkMatrixSizes(sizes = CHECK_MATRIX_SIZES) {
+    const results = [];
+    for (const size of sizes) {
+        const r = CircuitJS1.checkSolver(size);
+        r.error = checkResultError(r);
+        results.push(r);
+        console.log(`  n=${size}: ${r.error ? '✗ ' + r.error : '✓'} (${formatCheckResult(r)})`);
+    }
+    return results;
+}
+
+/**
+ * Перевірка однієї схеми: завантаження + аналіз + стемпінг, потім checkSolver
+ */
+function checkCircuit(circuitText, name) {
+    if (CircuitJS1.runBatch(circuitText, { endTime: 0 }) === null) {
+        return { name: name, error: 'load failed: ' + CircuitJS1.getLastLogs(1)[0] };
+    }
+    const r = CircuitJS1.checkSolver(0);
+    if (r === null) {
+        return { name: name, error: 'no circuit matrix' };
+    }
+    r.name = name;
+    r.error = checkResultError(r);
+    return r;
+}
+
+/**
+ * Запускає всі перевірки
+ */
+async function runSolverChecks(circuitList = CHECK_CIRCUITS) {
+    console.log('=== Solver Checks ===');
+    console.log('Synthetic mesh matrices:');
+    const matrixResults = checkMatrixSizes();
+
+    console.log('');
+    console.log('Circuits:');
+    const circuitResults = [];
+    for (const filename of circuitList) {
+        const circuitText = await loadCheckCircuit(filename);
+        if (!circuitText) {
+            console.log(`  ${filename}: ⊘ SKIPPED`);
+            continue;
+        }
+        const r = checkCircuit(circuitText, filename);
+        circuitResults.push(r);
+        if (r.size === undefined) {
+            console.log(`  ${filename}: ✗ ${r.error}`);
+        } else {
+            console.log(`  ${filename} (n=${r.size}): ${r.error ? '✗ ' + r.error : '✓'} (${formatCheckResult(r)})`);
+        }
+    }
+
+    const failed = matrixResults.concat(circuitResults).filter(r => r.error);
+    console.log('');
+    console.log(failed.length === 0 ? '✓ All checks passed' : `✗ ${failed.length} checks failed`);
+    return { passed: failed.length === 0, matrices: matrixResults, circuits: circuitResults };
+}
+
+// Експортуємо функції в глобальний простір
+window.runSolverChecks = runSolverChecks;
+window.checkMatrixSizes = checkMatrixSizes;
+window.checkCircuit = checkCircuit;
+
+console.log('Solver Check Script loaded.');
+console.log('Available functions:');
+console.log('  - runSolverChecks() - run all checks');
+console.log('  - checkMatrixSizes(sizes) - SparseLU vs dense on synthetic matrices');
+console.log('  - checkCircuit(circuitText, name) - SparseLU vs dense on one circuit');